@@ -0,0 +1,64 @@
+package group.msg.jpowermonitor.agent.context.bootstrap;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * Entry point of the code instrumented into the executors of the JDK in order to propagate the energy context.
+ * <br><br>
+ * The instrumented code runs in classes of the bootstrap class loader, which cannot see the classes of the agent.
+ * Hence, this class is injected into the bootstrap class loader and only refers to classes of the JDK, the agent
+ * installs the functions wrapping the tasks. Must not refer to any other class of jPowerMonitor.
+ */
+public final class ContextPropagationBridge {
+    private static volatile UnaryOperator<Runnable> runnableWrapper;
+    private static volatile UnaryOperator<Runnable> runnableUnwrapper;
+    private static volatile UnaryOperator<Callable<?>> callableWrapper;
+    private static volatile UnaryOperator<Executor> executorBinder;
+
+    private ContextPropagationBridge() {
+    }
+
+    /**
+     * @param wrapRunnable   wraps a runnable, so that it runs with the context of the current thread
+     * @param unwrapRunnable returns the runnable wrapped, the runnable itself if not wrapped
+     * @param wrapCallable   wraps a callable, so that it runs with the context of the current thread
+     * @param bindExecutor   wraps an executor, so that its tasks run with the context of the current thread
+     */
+    public static void install(UnaryOperator<Runnable> wrapRunnable, UnaryOperator<Runnable> unwrapRunnable,
+                               UnaryOperator<Callable<?>> wrapCallable, UnaryOperator<Executor> bindExecutor) {
+        runnableWrapper = wrapRunnable;
+        runnableUnwrapper = unwrapRunnable;
+        callableWrapper = wrapCallable;
+        executorBinder = bindExecutor;
+    }
+
+    public static Runnable wrap(Runnable task) {
+        UnaryOperator<Runnable> wrapper = runnableWrapper;
+        return wrapper != null && task != null ? wrapper.apply(task) : task;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        UnaryOperator<Callable<?>> wrapper = callableWrapper;
+        return wrapper != null && task != null ? (Callable<V>) wrapper.apply(task) : task;
+    }
+
+    public static Runnable unwrap(Runnable task) {
+        UnaryOperator<Runnable> unwrapper = runnableUnwrapper;
+        return unwrapper != null && task != null ? unwrapper.apply(task) : task;
+    }
+
+    public static void unwrapAll(List<Runnable> tasks) {
+        if (runnableUnwrapper != null && tasks != null) {
+            tasks.replaceAll(ContextPropagationBridge::unwrap);
+        }
+    }
+
+    public static Executor bind(Executor executor) {
+        UnaryOperator<Executor> binder = executorBinder;
+        return binder != null && executor != null ? binder.apply(executor) : executor;
+    }
+}
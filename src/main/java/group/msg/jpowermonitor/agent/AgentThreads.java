@@ -0,0 +1,47 @@
+package group.msg.jpowermonitor.agent;
+
+/**
+ * Names of the threads jPowerMonitor runs in the monitored application.
+ * <br><br>
+ * These threads are sampled like any other thread. Their CPU time and energy are accounted as jPowerMonitor overhead
+ * instead of being attributed to methods.
+ */
+public final class AgentThreads {
+    /**
+     * Thread sampling the stacks.
+     */
+    public static final String STACK_SAMPLER = "StackSampler";
+    /**
+     * Thread aggregating the samples and collecting the power.
+     */
+    public static final String POWER_MEASUREMENT_COLLECTOR = "PowerMeasurementCollector";
+    /**
+     * Timer thread writing the energy per method to CSV files.
+     */
+    public static final String CSV_RESULTS_WRITER = "CsvResultsWriter";
+    /**
+     * Timer thread writing the energy per method to Prometheus.
+     */
+    public static final String PROMETHEUS_WRITER = "PrometheusWriter";
+    // threads of the Prometheus HTTPServer thread pool, e.g. prometheus-http-1-1
+    private static final String PROMETHEUS_HTTP_SERVER_PREFIX = "prometheus-http-";
+    // thread of the JFR recording stream when sampling with JFR, e.g. JFR Event Stream 1
+    private static final String JFR_EVENT_STREAM_PREFIX = "JFR Event Stream";
+
+    private AgentThreads() {
+    }
+
+    /**
+     * @param threadName name of the thread
+     * @return <code>true</code>, if the thread is run by jPowerMonitor
+     */
+    public static boolean isAgentThread(String threadName) {
+        return threadName != null
+            && (STACK_SAMPLER.equals(threadName)
+            || POWER_MEASUREMENT_COLLECTOR.equals(threadName)
+            || CSV_RESULTS_WRITER.equals(threadName)
+            || PROMETHEUS_WRITER.equals(threadName)
+            || threadName.startsWith(PROMETHEUS_HTTP_SERVER_PREFIX)
+            || threadName.startsWith(JFR_EVENT_STREAM_PREFIX));
+    }
+}
@@ -0,0 +1,113 @@
+package group.msg.jpowermonitor.agent;
+
+import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the energy of a block of code run by the current thread, e.g. a step of a batch job:
+ * <pre>{@code
+ * EnergyScope scope = EnergyScope.start("reindex");
+ * try (scope) {
+ *     reindex();
+ * }
+ * double joules = scope.getEnergyInJoule();
+ * }</pre>
+ * The energy is the power times the duration of the block, times the share of the block in the CPU time of the process:
+ * the CPU time of the current thread consumed while the scope was open, divided by the CPU time of all threads of the process.
+ * <br><br>
+ * If the jPowerMonitor agent is running, the power is the mean of the power it measured last when the scope was started
+ * and when it was closed, so a scope costs a few reads of the CPU time only. Otherwise, the power is measured with the
+ * configured measure method when the scope is closed, which may take a while (e.g. 100 ms for the estimation).
+ * <br><br>
+ * A scope must be closed by the thread that started it. The energy of threads the block hands work over to is not included.
+ */
+@Slf4j
+public final class EnergyScope implements AutoCloseable {
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    /**
+     * Name of the scope, e.g. the step of a batch job.
+     */
+    @Getter
+    private final String name;
+    private final ThreadMXBean threadMXBean;
+    private final long startTime;
+    private final long startThreadCpuTime;
+    private final long startProcessCpuTime;
+    private final double startPowerInWatts;
+    private boolean closed;
+    /**
+     * Time elapsed between starting and closing the scope, 0 until closed.
+     */
+    @Getter
+    private long elapsedTimeInNs;
+    /**
+     * CPU time consumed by the thread while the scope was open, 0 until closed.
+     */
+    @Getter
+    private long cpuTimeInNs;
+    /**
+     * Energy consumed by the block, 0 until closed.
+     */
+    @Getter
+    private double energyInJoule;
+
+    private EnergyScope(String name) {
+        this.name = name;
+        this.threadMXBean = CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication();
+        this.startPowerInWatts = agentPowerInWatts();
+        this.startProcessCpuTime = CpuAndThreadUtils.getProcessCpuTime();
+        this.startThreadCpuTime = threadMXBean.getCurrentThreadCpuTime();
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Starts measuring the energy of the current thread until the returned scope is closed.
+     *
+     * @param name name of the scope, e.g. the step of a batch job
+     * @return the scope
+     */
+    public static EnergyScope start(String name) {
+        return new EnergyScope(name);
+    }
+
+    /**
+     * Ends the measurement and calculates the energy of the block. Closing a scope again does not change its results.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        elapsedTimeInNs = System.nanoTime() - startTime;
+        cpuTimeInNs = threadMXBean.getCurrentThreadCpuTime() - startThreadCpuTime;
+        long processCpuTime = CpuAndThreadUtils.getProcessCpuTime() - startProcessCpuTime;
+        // without the CPU time of the process, the block is assumed to be the only work of the process
+        double cpuTimeShare = startProcessCpuTime >= 0 && processCpuTime > 0 ? Math.min(1.0, (double) cpuTimeInNs / processCpuTime) : 1.0;
+        energyInJoule = powerInWatts() * elapsedTimeInNs / NANOS_PER_SECOND * cpuTimeShare;
+        log.debug("Energy scope '{}' consumed {} joule in {} ms ({} ms CPU time)", name, energyInJoule,
+            elapsedTimeInNs / 1_000_000L, cpuTimeInNs / 1_000_000L);
+    }
+
+    private double powerInWatts() {
+        double endPowerInWatts = agentPowerInWatts();
+        if (startPowerInWatts > 0 && endPowerInWatts > 0) {
+            return (startPowerInWatts + endPowerInWatts) / 2;
+        } else if (endPowerInWatts > 0) {
+            return endPowerInWatts;
+        }
+        return PowerMeasurementCollector.getCurrentCpuPowerInWatts().getValue();
+    }
+
+    /**
+     * @return power measured last by the running agent, 0 if the agent is not running or did not measure yet
+     */
+    private static double agentPowerInWatts() {
+        PowerMeasurementCollector collector = JPowerMonitorAgent.getPowerMeasurementCollector();
+        return collector != null ? collector.getCurrentPowerInWatts() : 0.0;
+    }
+}
@@ -1,13 +1,14 @@
 package group.msg.jpowermonitor.agent;
 
+import group.msg.jpowermonitor.agent.context.ContextPropagationInstaller;
 import group.msg.jpowermonitor.agent.export.csv.CsvResultsWriter;
+import group.msg.jpowermonitor.agent.export.flamegraph.FoldedStacksWriter;
 import group.msg.jpowermonitor.agent.export.prometheus.PrometheusWriter;
 import group.msg.jpowermonitor.agent.export.statistics.StatisticsWriter;
 import group.msg.jpowermonitor.config.DefaultCfgProvider;
 import group.msg.jpowermonitor.config.dto.JPowerMonitorCfg;
 import group.msg.jpowermonitor.config.dto.JavaAgentCfg;
 import group.msg.jpowermonitor.config.dto.MeasureMethodKey;
-import group.msg.jpowermonitor.measurement.est.EstimationReader;
 import group.msg.jpowermonitor.util.Constants;
 import group.msg.jpowermonitor.util.CpuAndThreadUtils;
 import lombok.Getter;
@@ -34,6 +35,12 @@ public class JPowerMonitorAgent {
     private static final int ONE_SECOND_IN_MILLIS = 1000;
     @Getter
     private static final boolean slf4jLoggerImplPresent = !LoggerFactory.getILoggerFactory().getLogger("JPowerMonitorAgent").getName().equals("NOP");
+    /**
+     * Collector started by {@link #premain(String, Instrumentation)}, e.g. to query the methods consuming the most energy recently.
+     * <code>null</code> if the agent is not running.
+     */
+    @Getter
+    private static volatile PowerMeasurementCollector powerMeasurementCollector;
 
     private JPowerMonitorAgent() {
     }
@@ -65,27 +72,25 @@ public class JPowerMonitorAgent {
 
         JavaAgentCfg javaAgentCfg = cfg.getJavaAgent();
         log.debug("Start monitoring application with PID {}, javaAgentCfg.getMeasurementIntervalInMs(): {}", pid, javaAgentCfg.getMeasurementIntervalInMs());
-        // TimerTask to calculate power consumption per thread at runtime using a configurable measurement interval
         // start Timer as daemon thread, so that it does not prevent applications from stopping
-        Timer powerMeasurementTimer = new Timer("PowerMeasurementCollector", true);
-        Timer energyToCsvTimer = new Timer("CsvResultsWriter", true);
-        Timer energyToPrometheusTimer = new Timer("PrometheusWriter", true);
+        Timer energyToCsvTimer = new Timer(AgentThreads.CSV_RESULTS_WRITER, true);
+        Timer energyToPrometheusTimer = new Timer(AgentThreads.PROMETHEUS_WRITER, true);
 
+        // calculate power consumption per thread at runtime using a configurable measurement interval.
+        // The power is measured by the aggregating thread, so the time the measure method takes (e.g. the estimation method
+        // sleeping while measuring the CPU usage) does not delay sampling.
         PowerMeasurementCollector powerMeasurementCollector = new PowerMeasurementCollector(pid, threadMXBean, javaAgentCfg);
-        if (MeasureMethodKey.EST.equals(measureMethodKey)) {
-            // as the estimation method is sleeping for a certain time while measuring the power, correct the wait time
-            // in the power measure collector by that period of time.
-            powerMeasurementCollector.setCorrectionMeasureStackActivityInMs(EstimationReader.MEASURE_TIME_ESTIMATION_MS);
-
-            // for the other methods there is also a small delay depending on the hardware running on. This may vary between 10 and 40 ms.
-            // Ignore this for the moment...
+        powerMeasurementCollector.start();
+        JPowerMonitorAgent.powerMeasurementCollector = powerMeasurementCollector;
+        log.debug("Started PowerMeasurementCollector with measurement interval {} ms", javaAgentCfg.getMeasurementIntervalInMs());
+        if (javaAgentCfg.isPropagateEnergyContext()) {
+            // pass the tags of the energy contexts to the tasks of the executors, wrapping the tasks is the fallback
+            ContextPropagationInstaller.install(inst);
         }
-        long delayAndPeriodPmc = javaAgentCfg.getMeasurementIntervalInMs();
-        powerMeasurementTimer.schedule(powerMeasurementCollector, delayAndPeriodPmc, delayAndPeriodPmc);
-        log.debug("Scheduled PowerMeasurementCollector with delay {} ms and period {} ms", delayAndPeriodPmc, delayAndPeriodPmc);
         // TimerTask to write energy measurement statistics to CSV files while application still running
         if (javaAgentCfg.getWriteEnergyMeasurementsToCsvIntervalInS() > 0) {
             CsvResultsWriter cw = new CsvResultsWriter();
+            FoldedStacksWriter fw = new FoldedStacksWriter();
             long delayAndPeriodCw = javaAgentCfg.getWriteEnergyMeasurementsToCsvIntervalInS() * ONE_SECOND_IN_MILLIS;
             // start Timer as daemon thread, so that it does not prevent applications from stopping
             energyToCsvTimer.schedule(
@@ -94,6 +99,17 @@ public class JPowerMonitorAgent {
                     public void run() {
                         cw.writeEnergyConsumptionPerMethod(powerMeasurementCollector.getEnergyConsumptionPerMethod(false));
                         cw.writeEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true));
+                        if (powerMeasurementCollector.isInclusiveEnergy()) {
+                            cw.writeInclusiveEnergyConsumptionPerMethod(powerMeasurementCollector.getEnergyConsumptionPerMethod(false, true));
+                            cw.writeInclusiveEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true, true));
+                        }
+                        if (powerMeasurementCollector.isThreadGroups()) {
+                            cw.writeEnergyConsumptionPerThreadGroup(powerMeasurementCollector.getEnergyConsumptionPerThreadGroup());
+                        }
+                        cw.writeEnergyConsumptionPerTag(powerMeasurementCollector.getEnergyConsumptionPerTag());
+                        if (powerMeasurementCollector.getCallTree() != null) {
+                            fw.writeEnergyConsumptionPerStack(powerMeasurementCollector.getCallTree());
+                        }
                     }
                 }, delayAndPeriodCw, delayAndPeriodCw);
             log.debug("Scheduled CsvResultsWriter with delay {} ms and period {} ms", delayAndPeriodCw, delayAndPeriodCw);
@@ -106,6 +122,13 @@ public class JPowerMonitorAgent {
                     @Override
                     public void run() {
                         pw.writeEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true));
+                        if (powerMeasurementCollector.isInclusiveEnergy()) {
+                            pw.writeInclusiveEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true, true));
+                        }
+                        if (powerMeasurementCollector.isThreadGroups()) {
+                            pw.writeEnergyConsumptionPerThreadGroup(powerMeasurementCollector.getEnergyConsumptionPerThreadGroup());
+                        }
+                        pw.writeEnergyConsumptionPerTag(powerMeasurementCollector.getEnergyConsumptionPerTag());
                     }
                 }, delayAndPeriodPw, delayAndPeriodPw);
             log.debug("Scheduled PrometheusWriter with delay {} ms and period {} ms", delayAndPeriodPw, delayAndPeriodPw);
@@ -114,8 +137,7 @@ public class JPowerMonitorAgent {
         // Gracefully stop measurement at application shutdown
         Runtime.getRuntime().addShutdownHook(
             new Thread(() -> {
-                powerMeasurementTimer.cancel();
-                powerMeasurementTimer.purge();
+                powerMeasurementCollector.cancel();
                 energyToCsvTimer.cancel();
                 energyToCsvTimer.purge();
                 energyToPrometheusTimer.cancel();
@@ -128,6 +150,17 @@ public class JPowerMonitorAgent {
             CsvResultsWriter rw = new CsvResultsWriter();
             rw.writeEnergyConsumptionPerMethod(powerMeasurementCollector.getEnergyConsumptionPerMethod(false));
             rw.writeEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true));
+            if (powerMeasurementCollector.isInclusiveEnergy()) {
+                rw.writeInclusiveEnergyConsumptionPerMethod(powerMeasurementCollector.getEnergyConsumptionPerMethod(false, true));
+                rw.writeInclusiveEnergyConsumptionPerMethodFiltered(powerMeasurementCollector.getEnergyConsumptionPerMethod(true, true));
+            }
+            if (powerMeasurementCollector.isThreadGroups()) {
+                rw.writeEnergyConsumptionPerThreadGroup(powerMeasurementCollector.getEnergyConsumptionPerThreadGroup());
+            }
+            rw.writeEnergyConsumptionPerTag(powerMeasurementCollector.getEnergyConsumptionPerTag());
+            if (powerMeasurementCollector.getCallTree() != null) {
+                new FoldedStacksWriter().writeEnergyConsumptionPerStack(powerMeasurementCollector.getCallTree());
+            }
             new StatisticsWriter(powerMeasurementCollector).writeStatistics(rw);
         }));
     }
@@ -2,45 +2,74 @@ package group.msg.jpowermonitor.agent;
 
 import group.msg.jpowermonitor.MeasureMethod;
 import group.msg.jpowermonitor.MeasureMethodProvider;
+import group.msg.jpowermonitor.agent.context.EnergyContextRegistry;
 import group.msg.jpowermonitor.agent.export.csv.CsvResultsWriter;
 import group.msg.jpowermonitor.agent.export.prometheus.PrometheusWriter;
+import group.msg.jpowermonitor.agent.sampling.ActivityCounter;
+import group.msg.jpowermonitor.agent.sampling.CallTree;
+import group.msg.jpowermonitor.agent.sampling.EnergyAccumulator;
+import group.msg.jpowermonitor.agent.sampling.EnergyRollups;
+import group.msg.jpowermonitor.agent.sampling.FrameDictionary;
+import group.msg.jpowermonitor.agent.sampling.JfrSampler;
+import group.msg.jpowermonitor.agent.sampling.PackageFilter;
+import group.msg.jpowermonitor.agent.sampling.SampleHandler;
+import group.msg.jpowermonitor.agent.sampling.SampleRingBuffer;
+import group.msg.jpowermonitor.agent.sampling.SamplingIntervalController;
+import group.msg.jpowermonitor.agent.sampling.StackSampler;
+import group.msg.jpowermonitor.agent.sampling.ThreadDumpSampler;
+import group.msg.jpowermonitor.agent.sampling.TickScheduler;
 import group.msg.jpowermonitor.config.DefaultCfgProvider;
 import group.msg.jpowermonitor.config.dto.JPowerMonitorCfg;
 import group.msg.jpowermonitor.config.dto.JavaAgentCfg;
-import group.msg.jpowermonitor.dto.Activity;
+import group.msg.jpowermonitor.config.dto.SamplingMethodKey;
+import group.msg.jpowermonitor.config.dto.ThreadCpuTimeSourceKey;
 import group.msg.jpowermonitor.dto.DataPoint;
-import group.msg.jpowermonitor.dto.MethodActivity;
-import group.msg.jpowermonitor.dto.Quantity;
 import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import group.msg.jpowermonitor.util.ProcThreadCpuReader;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.management.ThreadMXBean;
 import java.time.LocalDateTime;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static group.msg.jpowermonitor.util.Constants.ONE_THOUSAND;
 
 /**
- * Thread for collecting power statistics.
+ * Collects the power statistics in two threads connected by a {@link SampleRingBuffer}.
+ * <br><br>
+ * The sampling thread ({@link AgentThreads#STACK_SAMPLER}) samples the stacks of the running threads at fixed deadlines
+ * and publishes them into the ring buffer. At the end of each measurement interval it reads the CPU time of all threads
+ * and hands a snapshot of the thread registry over to the aggregating thread.
+ * <br><br>
+ * The aggregating thread ({@link AgentThreads#POWER_MEASUREMENT_COLLECTOR}) consumes the samples, reads the power from the
+ * measure method at the end of each measurement interval, attributes the energy to the methods and writes the results.
+ * A slow power reading or export thus does not delay sampling. If the aggregating thread does not keep up,
+ * samples are dropped and counted instead (see {@link #getDroppedSamples()}), and measurement intervals are merged into
+ * the next one, so that the intervals waiting for aggregation are bounded.
  */
 @Slf4j
-public class PowerMeasurementCollector extends TimerTask {
+public class PowerMeasurementCollector {
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+    // samples of about 10 seconds with 64 threads running and the default gather statistics interval of 10 ms
+    private static final int SAMPLE_BUFFER_CAPACITY = 1 << 16;
+    // interval the aggregating thread drains the samples in while waiting for the end of the measurement interval
+    private static final long DRAIN_INTERVAL_IN_MS = 50;
+    private static final long JOIN_TIMEOUT_IN_MS = 1000;
+    // measurement intervals waiting for the aggregating thread, further intervals are merged into the next one
+    private static final int MAX_PENDING_INTERVALS = 64;
+    // minimum size of the frame dictionary the frames not referenced anymore are released at, if the methods tracked are bounded
+    private static final int MIN_FRAMES_TO_RELEASE = 4096;
     /**
      * Power measurement method.
      */
@@ -51,89 +80,455 @@ public class PowerMeasurementCollector extends TimerTask {
         measureMethod = MeasureMethodProvider.resolveMeasureMethod(config);
     }
 
-    private static final String CLASS_METHOD_SEPARATOR = ".";
     /**
      * Total energy consumption of application.
      */
     @Getter
     private final AtomicReference<DataPoint> energyConsumptionTotalInJoule =
         new AtomicReference<>(new DataPoint("energyConsumptionTotalInJoule", 0.0, Unit.JOULE, LocalDateTime.now(), null));
-    private final Map<String, Long> threadsCpuTime = new HashMap<>();
-    private final Map<String, DataPoint> energyConsumptionPerMethod = new ConcurrentHashMap<>();
     private final long measurementInterval;
     private final long gatherStatisticsInterval;
-    private final double activityToEnergyRatio;
+    /**
+     * Share of the interval a sample stands for: 1 / number of ticks actually sampled in the current measurement interval.
+     */
+    private double activityToEnergyRatio;
+    /**
+     * Actual duration of the current measurement interval in seconds.
+     */
+    private double intervalDurationInS;
+    /**
+     * Power measured at the end of the last measurement interval, 0 before the first interval ended.
+     */
+    @Getter
+    private volatile double currentPowerInWatts;
+    /**
+     * Total number of sampling ticks skipped, because sampling took longer than the sampling interval.
+     */
+    @Getter
+    private volatile long missedTicks;
     /**
      * Process id.
      */
     @Getter
     private final long pid;
     private final ThreadMXBean threadMXBean;
-    private static Set<String> packageFilter;
+    /**
+     * Reader of the CPU time of all threads from the proc file system, <code>null</code> if the CPU time is read with the thread mx bean.
+     */
+    private final ProcThreadCpuReader procThreadCpuReader;
+    /**
+     * Share of the power distributed over the threads by their allocated bytes instead of their CPU time, 0 if not configured
+     * or not supported by the JVM.
+     */
+    private final double allocationEnergyShareInPercent;
+    /**
+     * Threads of the application, only used by the sampling thread.
+     */
+    private final ThreadRegistry threadRegistry = new ThreadRegistry();
+    private final StackSampler stackSampler;
+    /**
+     * Samples per thread id of the current measurement interval, only needed if the stack sampler does not sample
+     * all running threads.
+     */
+    private final Map<Long, Integer> samplesPerThread = new HashMap<>();
+    private final FrameDictionary frameDictionary = new FrameDictionary();
+    /**
+     * Size of the frame dictionary the unreferenced frames are released at, only if the number of methods tracked is bounded.
+     */
+    private int framesToRelease;
+    /**
+     * Total energy per method, unfiltered and filtered.
+     */
+    @Getter
+    private final EnergyAccumulator energyConsumptionPerMethod;
+    /**
+     * Total energy per method including the methods called by it, unfiltered and filtered, <code>null</code> if not enabled.
+     */
+    private final EnergyAccumulator inclusiveEnergyConsumptionPerMethod;
+    /**
+     * Samples per thread id and frame id of the current measurement interval, counting every distinct method of a stack once.
+     */
+    private final ActivityCounter inclusiveActivityCounter = new ActivityCounter();
+    // stamp of the last sample each frame id was counted in, in order to count recursive methods once per sample
+    private int[] inclusiveFrameStamps = new int[1024];
+    private int inclusiveSampleStamp;
+    /**
+     * Energy per method in time windows of one second, one minute and one hour.
+     */
+    private final EnergyRollups energyRollups = new EnergyRollups(frameDictionary);
+    /**
+     * Normalizes the thread names to their thread group, before they are used as thread of the power and energy per method.
+     */
+    private final ThreadNameNormalizer threadNameNormalizer;
+    /**
+     * Total energy per thread group, only collected if thread groups are configured.
+     */
+    private final Map<String, DataPoint> energyConsumptionPerThreadGroup = new ConcurrentHashMap<>();
+    // energy per thread group of the current measurement interval, only used by the aggregating thread
+    private final Map<String, Double> energyPerThreadGroupInInterval = new HashMap<>();
+    private final EnergyContextRegistry contextRegistry = EnergyContextRegistry.getInstance();
+    /**
+     * Samples per thread id and energy context id of the current measurement interval, only counted for samples with tags.
+     */
+    private final ActivityCounter contextCounter = new ActivityCounter();
+    /**
+     * Total energy per energy context tag (<code>key=value</code>).
+     */
+    private final Map<String, DataPoint> energyConsumptionPerTag = new ConcurrentHashMap<>();
+    // energy per tag of the current measurement interval, only used by the aggregating thread
+    private final Map<String, Double> energyPerTagInInterval = new HashMap<>();
+    /**
+     * Samples per thread id and activity (frame id and filtered frame id) of the current measurement interval.
+     */
+    private final ActivityCounter activityCounter = new ActivityCounter();
+    private final SampleHandler sampleHandler = this::publishSample;
+    private final SampleRingBuffer sampleBuffer = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY);
+    /**
+     * Ends of the measurement intervals passed from the sampling thread to the aggregating thread.
+     */
+    private final BlockingQueue<IntervalEnd> intervalEnds = new ArrayBlockingQueue<>(MAX_PENDING_INTERVALS);
+    /**
+     * Elapsed time and ticks of the intervals merged into the current one, only used by the sampling thread.
+     */
+    private long mergedElapsedTime;
+    private int mergedTicks;
+    private int mergedMissedTicks;
+    private long reportedDroppedSamples;
+    private volatile boolean running;
+    private Thread samplingThread;
+    private Thread aggregatingThread;
+    /**
+     * Call tree of the complete sampled stacks, <code>null</code> if not enabled.
+     */
+    @Getter
+    private final CallTree callTree;
+    /**
+     * Samples per thread id and call tree node of the current measurement interval.
+     */
+    private final ActivityCounter stackCounter = new ActivityCounter();
+    private final PackageFilter packageFilter;
+    /**
+     * Sampling interval, adapted to the sampling overhead budget if configured.
+     */
+    @Getter
+    private final SamplingIntervalController samplingIntervalController;
+    /**
+     * Total CPU time consumed by the threads of jPowerMonitor itself.
+     */
+    @Getter
+    private volatile long overheadCpuTimeInNs;
+    /**
+     * Total energy consumed by the threads of jPowerMonitor itself, not attributed to any method.
+     */
+    @Getter
+    private volatile double overheadEnergyInJoule;
     private PrometheusWriter prometheusWriter;
     private final CsvResultsWriter csvResultsWriter;
-    @Setter
-    private long correctionMeasureStackActivityInMs;
 
 
     public PowerMeasurementCollector(long pid, ThreadMXBean threadMXBean, JavaAgentCfg javaAgentCfg) {
         this.measurementInterval = javaAgentCfg.getMeasurementIntervalInMs();
         this.gatherStatisticsInterval = javaAgentCfg.getGatherStatisticsIntervalInMs();
-        // cast gatherStatisticsInterval to double in order to get double values.
-        this.activityToEnergyRatio = measurementInterval > 0 ? (double) this.gatherStatisticsInterval / this.measurementInterval : 0.0;
+        this.samplingIntervalController = new SamplingIntervalController(gatherStatisticsInterval, measurementInterval,
+            javaAgentCfg.getMaxSamplingOverheadInPercent());
         this.pid = pid;
 
         this.threadMXBean = threadMXBean;
-        PowerMeasurementCollector.packageFilter = javaAgentCfg.getPackageFilter();
+        this.allocationEnergyShareInPercent = getAllocationEnergyShareInPercent(threadMXBean, javaAgentCfg);
+        this.stackSampler = createStackSampler(threadMXBean, javaAgentCfg);
+        this.procThreadCpuReader = createProcThreadCpuReader(javaAgentCfg);
+        this.packageFilter = new PackageFilter(javaAgentCfg.getPackageFilter());
+        this.threadNameNormalizer = new ThreadNameNormalizer(javaAgentCfg.getThreadGroups());
+        contextRegistry.setMaxTags(javaAgentCfg.getMaxContextTags());
+        this.energyConsumptionPerMethod = new EnergyAccumulator(frameDictionary, packageFilter, javaAgentCfg.getMaxTrackedMethods());
+        this.inclusiveEnergyConsumptionPerMethod = javaAgentCfg.isInclusiveEnergy()
+            ? new EnergyAccumulator(frameDictionary, packageFilter, javaAgentCfg.getMaxTrackedMethods()) : null;
+        this.callTree = javaAgentCfg.getCallTree().isEnabled() ? new CallTree(frameDictionary, javaAgentCfg.getCallTree().getMaxNodes()) : null;
+        this.framesToRelease = javaAgentCfg.getMaxTrackedMethods() > 0
+            ? Math.max(MIN_FRAMES_TO_RELEASE, 4 * javaAgentCfg.getMaxTrackedMethods()) : Integer.MAX_VALUE;
         if (javaAgentCfg.getMonitoring().getPrometheus().isEnabled()) {
             this.prometheusWriter = new PrometheusWriter(javaAgentCfg.getMonitoring().getPrometheus());
         }
         this.csvResultsWriter = new CsvResultsWriter();
     }
 
-    @Override
-    public void run() {
-        Map<String, Set<MethodActivity>> methodActivityPerThread = new HashMap<>();
-        Set<Thread> threads = Thread.getAllStackTraces().keySet();
-        long duration = 0;
-        while (duration < measurementInterval - correctionMeasureStackActivityInMs) { // 1 sec
-            gatherMethodActivityPerThread(methodActivityPerThread, threads);
-            duration += gatherStatisticsInterval; // 10 ms
-            try { // Sleep for statisticsInterval, e.g. 10 ms
-                TimeUnit.MILLISECONDS.sleep(gatherStatisticsInterval);
-            } catch (InterruptedException ex) {
-                log.error("sleep interrupted: {}", ex.getMessage());
+    /**
+     * Starts the sampling thread and the aggregating thread, as daemon threads, so that they do not prevent applications from stopping.
+     */
+    public void start() {
+        running = true;
+        samplingThread = startDaemonThread(this::sample, AgentThreads.STACK_SAMPLER);
+        aggregatingThread = startDaemonThread(this::aggregate, AgentThreads.POWER_MEASUREMENT_COLLECTOR);
+    }
+
+    private static Thread startDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Samples the stacks until stopped, one measurement interval after the other.
+     */
+    private void sample() {
+        long intervalStart = System.nanoTime();
+        long lastIntervalEnd = intervalStart;
+        while (running) {
+            // the sampling interval only changes between measurement intervals, so all samples of an interval have the same weight
+            long samplingInterval = samplingIntervalController.getIntervalInMs();
+            // sample at fixed deadlines, so that the time spent sampling does not delay the interval
+            TickScheduler tickScheduler = new TickScheduler(intervalStart, TimeUnit.MILLISECONDS.toNanos(samplingInterval),
+                TimeUnit.MILLISECONDS.toNanos(measurementInterval));
+            while (running && awaitNextTick(tickScheduler)) {
+                long tickStart = currentThreadCpuTime();
+                stackSampler.sample(sampleHandler);
+                samplingIntervalController.recordTick(currentThreadCpuTime() - tickStart);
+            }
+            if (!running) {
+                break;
+            }
+            // The interval lasts from the end of the previous interval until now.
+            long intervalEnd = System.nanoTime();
+            endSamplingInterval(tickScheduler, samplingInterval, intervalEnd - lastIntervalEnd);
+            lastIntervalEnd = intervalEnd;
+            intervalStart += TimeUnit.MILLISECONDS.toNanos(measurementInterval);
+        }
+    }
+
+    private void publishSample(long threadId, String threadName, StackTraceElement[] stackTrace) {
+        // the tags must be read while sampling, the thread may have left the context when the sample is aggregated
+        ThreadRegistry.RegisteredThread thread = threadRegistry.getThread(threadId);
+        int contextId = thread != null ? thread.getContextId(contextRegistry) : EnergyContextRegistry.NO_CONTEXT;
+        sampleBuffer.offer(threadId, contextId, stackTrace);
+    }
+
+    /**
+     * Reads the CPU time of all threads at the end of a measurement interval and hands the interval over to the aggregating thread.
+     */
+    private void endSamplingInterval(TickScheduler tickScheduler, long samplingInterval, long elapsedTime) {
+        if (intervalEnds.remainingCapacity() == 0) {
+            // the aggregating thread does not keep up, the CPU time is read at the end of the next interval for both intervals
+            mergedElapsedTime += elapsedTime;
+            mergedTicks += tickScheduler.getTicks();
+            mergedMissedTicks += tickScheduler.getMissedTicks();
+            return;
+        }
+        elapsedTime += mergedElapsedTime;
+        int ticks = tickScheduler.getTicks() + mergedTicks;
+        int missedTicks = tickScheduler.getMissedTicks() + mergedMissedTicks;
+        mergedElapsedTime = 0;
+        mergedTicks = 0;
+        mergedMissedTicks = 0;
+        // CPU time for each thread
+        long totalApplicationCpuTime = CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, procThreadCpuReader, threadRegistry);
+        // bytes allocated for each thread, if part of the power is distributed by allocations
+        long totalApplicationAllocatedBytes = allocationEnergyShareInPercent > 0
+            ? CpuAndThreadUtils.getTotalApplicationAllocatedBytesAndCalculateAllocatedBytesPerApplicationThread(threadMXBean, threadRegistry)
+            : 0L;
+        // the aggregating thread gets its own copy of the threads of this interval, the terminated ones are not needed by the next interval
+        ThreadRegistry threads = threadRegistry.snapshot();
+        threadRegistry.evictTerminatedThreads();
+        samplingIntervalController.endInterval(elapsedTime);
+        intervalEnds.add(new IntervalEnd(sampleBuffer.getPublishedSequence(), elapsedTime, ticks, missedTicks, samplingInterval,
+            totalApplicationCpuTime, totalApplicationAllocatedBytes, threads));
+    }
+
+    /**
+     * Consumes the samples and aggregates each measurement interval handed over by the sampling thread until stopped.
+     */
+    private void aggregate() {
+        while (running) {
+            IntervalEnd intervalEnd = pollIntervalEnd();
+            if (intervalEnd == null) {
+                // keep the buffer free while waiting, but do not consume the samples of the next interval, if an interval ended meanwhile
+                long publishedSequence = sampleBuffer.getPublishedSequence();
+                IntervalEnd next = intervalEnds.peek();
+                sampleBuffer.drain(next != null ? next.sequence : publishedSequence, this::gatherMethodActivity);
+                continue;
+            }
+            sampleBuffer.drain(intervalEnd.sequence, this::gatherMethodActivity);
+            try {
+                endInterval(intervalEnd);
+            } catch (RuntimeException ex) {
+                log.error("Unable to aggregate the measurement interval: {}", ex.getMessage(), ex);
             }
         }
+    }
+
+    private IntervalEnd pollIntervalEnd() {
+        try {
+            return intervalEnds.poll(DRAIN_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            return null; // stopped
+        }
+    }
+
+    /**
+     * Attributes the energy of a measurement interval to the methods sampled in it and writes the results.
+     */
+    private void endInterval(IntervalEnd intervalEnd) {
         // Adds current power to total energy consumption of application
         DataPoint currentPower = getCurrentCpuPowerInWatts();
+        currentPowerInWatts = currentPower.getValue();
 
-        // If the measurementInterval is 1000 ms = 1 sec, then it's fine to treat power and energy as equal here since power is measured each second and 1 joule = 1 watt / second.
-        // If the interval is different from 1000 ms = 1 sec, then the power will be multiplied with the measurementInterval in order to get the energy over the interval.
         // It is assumed that the power is staying the same value for the whole interval.
-        DataPoint currentEnergy = cloneAndCalculateDataPoint(currentPower, Unit.JOULE, val -> measurementInterval != 1000L ? val * measurementInterval : val);
+        intervalDurationInS = intervalEnd.elapsedTimeInNs / NANOS_PER_SECOND;
+        // each sample taken stands for the same share of the interval
+        activityToEnergyRatio = intervalEnd.ticks > 0 ? 1.0 / intervalEnd.ticks : 0.0;
+        if (intervalEnd.missedTicks > 0) {
+            missedTicks += intervalEnd.missedTicks;
+            log.debug("Missed {} of {} sampling ticks, sampling took longer than the sampling interval of {} ms",
+                intervalEnd.missedTicks, intervalEnd.ticks + intervalEnd.missedTicks, intervalEnd.samplingIntervalInMs);
+        }
+        long droppedSamples = sampleBuffer.getDroppedSamples();
+        if (droppedSamples > reportedDroppedSamples) {
+            log.debug("Dropped {} samples, the aggregation did not keep up with sampling", droppedSamples - reportedDroppedSamples);
+            reportedDroppedSamples = droppedSamples;
+        }
+        DataPoint currentEnergy = cloneAndCalculateDataPoint(currentPower, Unit.JOULE, val -> val * intervalDurationInS);
         energyConsumptionTotalInJoule.getAndAccumulate(currentEnergy, this::addDataPoint);
 
-        // CPU time for each thread
-        long totalApplicationCpuTime = CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, threadsCpuTime, threads);
-        Map<String, Double> powerPerThread = CpuAndThreadUtils.calculatePowerPerApplicationThread(threadsCpuTime, currentPower, totalApplicationCpuTime);
+        ThreadRegistry threads = intervalEnd.threads;
+        CpuAndThreadUtils.calculatePowerPerApplicationThread(threads, currentPower, intervalEnd.totalApplicationCpuTime,
+            intervalEnd.totalApplicationAllocatedBytes, allocationEnergyShareInPercent);
+        attributeCarrierPowerToVirtualThreads(threads);
 
         // Now we have power for each thread, and stats for methods in each thread
-        // We allocated power to each method based on activity
-        allocateEnergyUsageToActivity(methodActivityPerThread, powerPerThread);
-
-        List<Activity> activities = methodActivityPerThread
-            .values()
-            .stream()
-            .flatMap(Collection::stream)
-            .collect(Collectors.toList());
+        // We allocate power to each method based on activity
+        Map<String, DataPoint> powerConsumption = new HashMap<>();
+        Map<String, DataPoint> filteredPowerConsumption = new HashMap<>();
+        countSamplesPerThread();
+        allocateEnergyUsageToActivity(threads, powerConsumption, filteredPowerConsumption);
+        activityCounter.clear();
+        if (inclusiveEnergyConsumptionPerMethod != null) {
+            allocateInclusiveEnergyUsage(threads);
+            inclusiveActivityCounter.clear();
+        }
+        allocateEnergyUsageToContexts(threads);
+        contextCounter.clear();
+        if (callTree != null) {
+            allocateEnergyUsageToCallTree(threads);
+            stackCounter.clear();
+        }
+        accountAgentOverhead(threads);
 
-        Map<String, DataPoint> powerConsumption = aggregateActivityToDataPoints(activities, false);
-        Map<String, DataPoint> filteredPowerConsumption = aggregateActivityToDataPoints(activities, true);
         csvResultsWriter.writePowerConsumptionPerMethod(powerConsumption);
         csvResultsWriter.writePowerConsumptionPerMethodFiltered(filteredPowerConsumption);
         if (prometheusWriter != null) {
             prometheusWriter.writePowerConsumptionPerMethodFiltered(filteredPowerConsumption);
+            prometheusWriter.writeSamplingStatistics(samplingIntervalController.getIntervalInMs(), samplingIntervalController.getOverheadInPercent(),
+                droppedSamples);
+            prometheusWriter.writeOverheadStatistics(overheadEnergyInJoule, overheadCpuTimeInNs);
+            if (procThreadCpuReader != null) {
+                prometheusWriter.writeThreadCpuTimes(threads.getThreads());
+            }
+        }
+        if (frameDictionary.size() >= framesToRelease) {
+            releaseUnreferencedFrames();
+        }
+    }
+
+    /**
+     * If the number of methods tracked is bounded, releases the frame ids not referenced anymore, e.g. of the methods evicted
+     * or of methods only sampled in a previous interval, so that the frame dictionary and the arrays indexed by the frame ids
+     * do not grow with every distinct method seen. The frames of the energy rollups are kept until their windows expire.
+     * Must be called at the end of an interval, when the activity counters are cleared.
+     */
+    private void releaseUnreferencedFrames() {
+        BitSet referenced = new BitSet(frameDictionary.size());
+        energyConsumptionPerMethod.forEachFrame(referenced::set);
+        if (inclusiveEnergyConsumptionPerMethod != null) {
+            inclusiveEnergyConsumptionPerMethod.forEachFrame(referenced::set);
+        }
+        if (callTree != null) {
+            callTree.forEachFrame(referenced::set);
+        }
+        energyRollups.forEachFrame(referenced::set);
+        frameDictionary.retainOnly(referenced, packageFilter::release);
+        // referenced frames are not released, release again once as many new frames have been interned
+        framesToRelease = Math.max(framesToRelease, 2 * frameDictionary.size());
+    }
+
+    /**
+     * @return number of samples dropped so far, because the aggregating thread did not keep up with sampling
+     */
+    public long getDroppedSamples() {
+        return sampleBuffer.getDroppedSamples();
+    }
+
+    private boolean awaitNextTick(TickScheduler tickScheduler) {
+        try {
+            return tickScheduler.awaitNextTick();
+        } catch (InterruptedException ex) {
+            if (!running) {
+                return false; // interrupted by cancel()
+            }
+            log.error("sleep interrupted: {}", ex.getMessage());
+            return true; // the tick is due nevertheless
+        }
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, the elapsed time if CPU time measurement is not supported
+     */
+    private long currentThreadCpuTime() {
+        long cpuTime = threadMXBean.getCurrentThreadCpuTime();
+        return cpuTime >= 0 ? cpuTime : System.nanoTime();
+    }
+
+    private StackSampler createStackSampler(ThreadMXBean threadMXBean, JavaAgentCfg javaAgentCfg) {
+        if (SamplingMethodKey.JFR.equals(javaAgentCfg.getSamplingMethodKey())) {
+            try {
+                return new JfrSampler(threadMXBean, gatherStatisticsInterval, javaAgentCfg.getMaxStackDepth(), threadRegistry,
+                    allocationEnergyShareInPercent > 0);
+            } catch (Exception | LinkageError ex) {
+                log.warn("Unable to start JFR execution sampling, falling back to thread dumps: {}", ex.getMessage());
+            }
+        }
+        return new ThreadDumpSampler(threadMXBean, javaAgentCfg.getMaxStackDepth(), threadRegistry, allocationEnergyShareInPercent > 0);
+    }
+
+    private static double getAllocationEnergyShareInPercent(ThreadMXBean threadMXBean, JavaAgentCfg javaAgentCfg) {
+        double allocationEnergyShareInPercent = Math.min(Math.max(javaAgentCfg.getAllocationEnergyShareInPercent(), 0.0), 100.0);
+        if (allocationEnergyShareInPercent > 0 && !CpuAndThreadUtils.enableThreadAllocatedMemory(threadMXBean)) {
+            log.warn("Allocated bytes per thread are not supported in this JVM, distributing the power by CPU time only");
+            return 0.0;
+        }
+        return allocationEnergyShareInPercent;
+    }
+
+    private static ProcThreadCpuReader createProcThreadCpuReader(JavaAgentCfg javaAgentCfg) {
+        if (!ThreadCpuTimeSourceKey.PROC.equals(javaAgentCfg.getThreadCpuTimeSourceKey())) {
+            return null;
+        }
+        ProcThreadCpuReader reader = new ProcThreadCpuReader();
+        if (!reader.isAvailable()) {
+            log.warn("{} is not available, reading the CPU time of the threads with the thread mx bean", ProcThreadCpuReader.DEFAULT_TASK_DIR);
+            return null;
+        }
+        return reader;
+    }
+
+    /**
+     * Stops the sampling thread and the aggregating thread, the collector must not be started again.
+     */
+    public void cancel() {
+        running = false;
+        join(samplingThread);
+        join(aggregatingThread);
+        stackSampler.close();
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(JOIN_TIMEOUT_IN_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -146,123 +541,277 @@ public class PowerMeasurementCollector extends TimerTask {
         return measureMethod.measureFirstConfiguredPath();
     }
 
-    private static void gatherMethodActivityPerThread(Map<String, Set<MethodActivity>> methodActivityPerThread, Set<Thread> threads) {
-        for (Thread thread : threads) {
-            // Only consider threads that are currently running (not waiting or blocked)
-            if (Thread.State.RUNNABLE == thread.getState()) {
-                StackTraceElement[] stackTrace = thread.getStackTrace();
-                if (stackTrace.length == 0) {
-                    continue;
+    private void gatherMethodActivity(long threadId, int contextId, StackTraceElement[] stackTrace) {
+        int frameId = frameDictionary.intern(stackTrace[0].getClassName(), stackTrace[0].getMethodName());
+        int filteredFrameId = FrameDictionary.NO_FRAME;
+        if (!packageFilter.isEmpty()) {
+            for (int i = 0; i < stackTrace.length; i++) {
+                int id = i == 0 ? frameId : frameDictionary.intern(stackTrace[i].getClassName(), stackTrace[i].getMethodName());
+                if (packageFilter.matches(frameDictionary, id)) {
+                    filteredFrameId = id;
+                    break;
                 }
+            }
+        }
+        activityCounter.increment(threadId, toActivity(frameId, filteredFrameId));
+        if (contextId != EnergyContextRegistry.NO_CONTEXT) {
+            contextCounter.increment(threadId, contextId);
+        }
+        if (inclusiveEnergyConsumptionPerMethod != null) {
+            gatherInclusiveMethodActivity(threadId, stackTrace, frameId);
+        }
+        if (callTree != null) {
+            stackCounter.increment(threadId, callTree.addStack(stackTrace));
+        }
+    }
 
-                String threadName = thread.getName();
-                methodActivityPerThread.putIfAbsent(threadName, new HashSet<>());
-                MethodActivity activity = new MethodActivity();
-                activity.setThreadName(threadName);
-                activity.setTime(LocalDateTime.now());
-
-                Arrays.stream(stackTrace)
-                    .findFirst()
-                    .map(PowerMeasurementCollector::getFullQualifiedMethodName)
-                    .ifPresent(activity::setMethodQualifier);
-                Arrays.stream(stackTrace)
-                    .map(PowerMeasurementCollector::getFullQualifiedMethodName)
-                    .filter(PowerMeasurementCollector::isMethodInFilterList)
-                    .findFirst()
-                    .ifPresent(activity::setFilteredMethodQualifier);
-
-                methodActivityPerThread.get(threadName).add(activity);
+    /**
+     * Counts the sample for every distinct method on the stack, methods called recursively are counted once.
+     */
+    private void gatherInclusiveMethodActivity(long threadId, StackTraceElement[] stackTrace, int topFrameId) {
+        int stamp = ++inclusiveSampleStamp;
+        if (stamp == 0) {
+            // the stamps wrapped around, forget the stamps of all previous samples
+            Arrays.fill(inclusiveFrameStamps, 0);
+            stamp = ++inclusiveSampleStamp;
+        }
+        for (int i = 0; i < stackTrace.length; i++) {
+            int id = i == 0 ? topFrameId : frameDictionary.intern(stackTrace[i].getClassName(), stackTrace[i].getMethodName());
+            if (id >= inclusiveFrameStamps.length) {
+                inclusiveFrameStamps = Arrays.copyOf(inclusiveFrameStamps, Math.max(id + 1, inclusiveFrameStamps.length * 2));
+            }
+            if (inclusiveFrameStamps[id] != stamp) {
+                inclusiveFrameStamps[id] = stamp;
+                inclusiveActivityCounter.increment(threadId, id);
             }
         }
     }
 
-    @NotNull
-    private static String getFullQualifiedMethodName(StackTraceElement ste) {
-        return ste.getClassName() + CLASS_METHOD_SEPARATOR + ste.getMethodName();
+    private static long toActivity(int frameId, int filteredFrameId) {
+        return ((long) frameId << 32) | (filteredFrameId & 0xFFFFFFFFL);
     }
 
-    private static boolean isMethodInFilterList(String method) {
-        return packageFilter.stream()
-            .anyMatch(method::startsWith);
+    private static int frameIdOf(long activity) {
+        return (int) (activity >>> 32);
     }
 
-    private void allocateEnergyUsageToActivity(Map<String, Set<MethodActivity>> methodActivityPerThread, Map<String, Double> powerPerApplicationThread) {
-        for (Map.Entry<String, Set<MethodActivity>> entry : methodActivityPerThread.entrySet()) {
-            String threadName = entry.getKey();
+    private static int filteredFrameIdOf(long activity) {
+        return (int) activity;
+    }
 
-            for (MethodActivity activity : entry.getValue()) {
-                Quantity methodPower = Quantity.of(powerPerApplicationThread.get(threadName) * activityToEnergyRatio, Unit.WATT);
-                Quantity methodEnergy = Quantity.of(methodPower.getValue() * measurementInterval / ONE_THOUSAND, Unit.JOULE);
-                if (methodEnergy.getValue() > 0) {
-                    activity.setRepresentedQuantity(methodEnergy);
-                    appendEnergyUsage(activity);
-                    activity.setRepresentedQuantity(methodPower);
+    /**
+     * Allocates the power of the threads to the activities counted in the current measurement interval.
+     * Every distinct combination of thread and activity is visited once, adding its energy to the total energy per method
+     * and per thread group and its power to both the unfiltered and the filtered power per method and thread group.
+     */
+    private void allocateEnergyUsageToActivity(ThreadRegistry threads, Map<String, DataPoint> powerConsumption,
+                                               Map<String, DataPoint> filteredPowerConsumption) {
+        LocalDateTime now = LocalDateTime.now();
+        long nowInMs = System.currentTimeMillis();
+        activityCounter.forEach((threadId, activity, count) -> {
+            ThreadRegistry.RegisteredThread thread = threads.getThread(threadId);
+            if (thread == null) {
+                return;
+            }
+            String threadName = threadNameNormalizer.normalize(thread.getName());
+            double methodPower = powerOfSamples(thread, count);
+            double methodEnergy = methodPower * intervalDurationInS;
+            if (methodEnergy <= 0) {
+                return;
+            }
+            if (isThreadGroups()) {
+                energyPerThreadGroupInInterval.merge(threadName, methodEnergy, Double::sum);
+            }
+            int frameId = frameIdOf(activity);
+            energyConsumptionPerMethod.add(frameId, methodEnergy, threadName, now);
+            energyRollups.add(frameId, methodEnergy, nowInMs);
+            String methodName = frameDictionary.getName(frameId);
+            powerConsumption.merge(methodName + threadName, new DataPoint(methodName, methodPower, Unit.WATT, now, threadName), this::addDataPoint);
+            int filteredFrameId = filteredFrameIdOf(activity);
+            if (filteredFrameId != FrameDictionary.NO_FRAME) {
+                String filteredMethodName = frameDictionary.getName(filteredFrameId);
+                filteredPowerConsumption.merge(filteredMethodName + threadName,
+                    new DataPoint(filteredMethodName, methodPower, Unit.WATT, now, threadName), this::addDataPoint);
+            }
+        });
+        energyPerThreadGroupInInterval.forEach((threadGroup, energy) -> energyConsumptionPerThreadGroup.merge(threadGroup,
+            new DataPoint(threadGroup, energy, Unit.JOULE, now, threadGroup), this::addDataPoint));
+        energyPerThreadGroupInInterval.clear();
+    }
+
+    /**
+     * Allocates the energy of the threads to every method on the stacks sampled in the current measurement interval.
+     */
+    private void allocateInclusiveEnergyUsage(ThreadRegistry threads) {
+        LocalDateTime now = LocalDateTime.now();
+        inclusiveActivityCounter.forEach((threadId, frameId, count) -> {
+            ThreadRegistry.RegisteredThread thread = threads.getThread(threadId);
+            if (thread == null) {
+                return;
+            }
+            double energy = powerOfSamples(thread, count) * intervalDurationInS;
+            if (energy > 0) {
+                inclusiveEnergyConsumptionPerMethod.add((int) frameId, energy, threadNameNormalizer.normalize(thread.getName()), now);
+            }
+        });
+    }
+
+    /**
+     * Allocates the energy of the threads to the tags of the energy contexts sampled in the current measurement interval.
+     * The energy of a sample is attributed to every tag active in the sample.
+     */
+    private void allocateEnergyUsageToContexts(ThreadRegistry threads) {
+        contextCounter.forEach((threadId, contextId, count) -> {
+            ThreadRegistry.RegisteredThread thread = threads.getThread(threadId);
+            if (thread == null) {
+                return;
+            }
+            double energy = powerOfSamples(thread, count) * intervalDurationInS;
+            if (energy > 0) {
+                for (int tagId : contextRegistry.getTagIds((int) contextId)) {
+                    energyPerTagInInterval.merge(contextRegistry.getTagName(tagId), energy, Double::sum);
                 }
             }
+        });
+        if (!energyPerTagInInterval.isEmpty()) {
+            LocalDateTime now = LocalDateTime.now();
+            energyPerTagInInterval.forEach((tag, energy) -> energyConsumptionPerTag.merge(tag,
+                new DataPoint(tag, energy, Unit.JOULE, now, ""), this::addDataPoint));
+            energyPerTagInInterval.clear();
         }
     }
 
-    private void appendEnergyUsage(MethodActivity activity) {
-        if (!activity.isFinalized()) {
+    /**
+     * Allocates the energy of the threads to the call tree nodes of the stacks sampled in the current measurement interval.
+     */
+    private void allocateEnergyUsageToCallTree(ThreadRegistry threads) {
+        stackCounter.forEach((threadId, nodeId, count) -> {
+            ThreadRegistry.RegisteredThread thread = threads.getThread(threadId);
+            if (thread == null) {
+                return;
+            }
+            double energy = powerOfSamples(thread, count) * intervalDurationInS;
+            if (energy > 0) {
+                callTree.addEnergy((int) nodeId, energy);
+            }
+        });
+    }
+
+    /**
+     * Virtual threads have no CPU time of their own, they consume the CPU time of the carrier threads they are mounted on.
+     * Thus the power of all carrier threads is the power of the virtual threads, distributed over all samples of the virtual threads
+     * and the carrier threads.
+     */
+    private static void attributeCarrierPowerToVirtualThreads(ThreadRegistry threads) {
+        ThreadRegistry.RegisteredThread virtualThreads = threads.getThread(ThreadRegistry.VIRTUAL_THREADS_ID);
+        if (virtualThreads == null) {
             return;
         }
-        energyConsumptionPerMethod.merge(
-            activity.getIdentifier(false),
-            getDataPointFrom(activity, false),
-            this::addDataPoint
-        );
+        double power = 0.0;
+        for (ThreadRegistry.RegisteredThread thread : threads.getThreads()) {
+            if (thread.isCarrier()) {
+                power += thread.getPower();
+            }
+        }
+        virtualThreads.setPower(power);
     }
 
+    /**
+     * Adds the CPU time and the energy of the threads of jPowerMonitor in the current measurement interval to the overhead.
+     * The samples of these threads are not attributed to methods, so their share of the power is only accounted here.
+     */
+    private void accountAgentOverhead(ThreadRegistry threads) {
+        double power = 0.0;
+        long cpuTime = 0L;
+        for (ThreadRegistry.RegisteredThread thread : threads.getThreads()) {
+            if (thread.isAgentThread()) {
+                power += thread.getPower();
+                cpuTime += thread.getCpuTimeInInterval();
+            }
+        }
+        overheadCpuTimeInNs += cpuTime;
+        overheadEnergyInJoule += power * intervalDurationInS;
+    }
+
+    private void countSamplesPerThread() {
+        samplesPerThread.clear();
+        if (!stackSampler.isSamplingAllRunningThreads()) {
+            activityCounter.forEach((threadId, activity, count) -> samplesPerThread.merge(threadId, count, Integer::sum));
+        }
+    }
+
+    private double powerOfSamples(ThreadRegistry.RegisteredThread thread, int count) {
+        // if not all running threads are sampled each time, the power of a thread is distributed over the samples taken of it
+        double shareOfThread = stackSampler.isSamplingAllRunningThreads()
+            ? activityToEnergyRatio * count
+            : (double) count / samplesPerThread.getOrDefault(thread.getId(), count);
+        return thread.getPower() * shareOfThread;
+    }
+
+    /**
+     * @param asFiltered <code>true</code> for the methods matching the package filter only
+     * @return unmodifiable view of the total energy per method, updated with the methods changed since the previous call
+     */
     public Map<String, DataPoint> getEnergyConsumptionPerMethod(boolean asFiltered) {
-        return energyConsumptionPerMethod.entrySet().stream()
-            .filter(e -> asFiltered ? isMethodInFilterList(e.getKey()) : e.getKey() != null)
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return getEnergyConsumptionPerMethod(asFiltered, false);
     }
 
     /**
-     * Creates a new {@link DataPoint} equivalent for the {@link Activity} provided.
-     *
-     * @param activity {@link Activity} to create a {@link DataPoint} for
-     * @param filtered if the {@link Activity}'s identifier should be filtered
-     * @return new {@link DataPoint}
-     */
-    public DataPoint getDataPointFrom(Activity activity, boolean filtered) {
-        Optional<Quantity> quantity = Optional.ofNullable(activity.getRepresentedQuantity());
-        return new DataPoint(
-            activity.getIdentifier(filtered),
-            quantity.map(Quantity::getValue).orElse(null),
-            quantity.map(Quantity::getUnit).orElse(null),
-            activity.getTime(),
-            activity.getThreadName()
-        );
-    }
-
-    /**
-     * Transforms a {@link Collection} of {@link Activity}s into a {@link Map} of {@link DataPoint}s
-     * where each entry consists of
-     * <ul>
-     *     <li>
-     *         key - the activity identifier
-     *     </li>
-     *     <li>
-     *         value - a {@link DataPoint} consisting of the sum of all {@link Activity}s
-     *         resp. their {@link Quantity} with the identifier in the collection provided
-     *     </li>
-     * </ul>
+     * @param asFiltered <code>true</code> for the methods matching the package filter only
+     * @param inclusive  <code>true</code> for the energy including the methods called, <code>false</code> for the energy of the
+     *                   method itself (exclusive or self energy)
+     * @return unmodifiable view of the total energy per method, updated with the methods changed since the previous call,
+     * empty if the inclusive energy is requested but not enabled
+     */
+    public Map<String, DataPoint> getEnergyConsumptionPerMethod(boolean asFiltered, boolean inclusive) {
+        if (!inclusive) {
+            return energyConsumptionPerMethod.snapshot(asFiltered);
+        }
+        return isInclusiveEnergy() ? inclusiveEnergyConsumptionPerMethod.snapshot(asFiltered) : Collections.emptyMap();
+    }
+
+    /**
+     * @return <code>true</code>, if the energy per method including the methods called is collected
+     */
+    public boolean isInclusiveEnergy() {
+        return inclusiveEnergyConsumptionPerMethod != null;
+    }
+
+    /**
+     * @return <code>true</code>, if thread groups are configured and the energy per thread group is collected
+     */
+    public boolean isThreadGroups() {
+        return threadNameNormalizer.hasRules();
+    }
+
+    /**
+     * @return unmodifiable view of the total energy per thread group, i.e. per thread name normalized with <code>javaAgent.threadGroups</code>,
+     * empty if no thread groups are configured
+     */
+    public Map<String, DataPoint> getEnergyConsumptionPerThreadGroup() {
+        return Collections.unmodifiableMap(energyConsumptionPerThreadGroup);
+    }
+
+    /**
+     * @return unmodifiable view of the total energy per energy context tag, named <code>key=value</code>
+     * @see group.msg.jpowermonitor.agent.context.EnergyContext
+     */
+    public Map<String, DataPoint> getEnergyConsumptionPerTag() {
+        return Collections.unmodifiableMap(energyConsumptionPerTag);
+    }
+
+    /**
+     * Finds the methods consuming the most energy recently, e.g. in the last 5 minutes.
+     * The time is rounded up to whole seconds (up to one minute), minutes (up to one hour) or hours (up to 24 hours).
      *
-     * @param activityCollection {@link Collection} of {@link Activity}s
-     * @param filtered           if the filtered identifier should be used instead
-     * @return aggregated {@link Map}
+     * @param durationInMs time to look back from now, at most 24 hours
+     * @param limit        maximum number of methods returned
+     * @param asFiltered   <code>true</code> for the methods matching the package filter only
+     * @return energy per method, the method consuming the most energy first
      */
-    public Map<String, DataPoint> aggregateActivityToDataPoints(Collection<Activity> activityCollection, boolean filtered) {
-        return activityCollection.stream()
-            .filter(activity -> activity.getIdentifier(filtered) != null)
-            .filter(Activity::isFinalized)
-            .collect(Collectors.toMap(
-                activity -> activity.getIdentifier(filtered) + activity.getThreadName(),
-                activity -> getDataPointFrom(activity, filtered),
-                this::addDataPoint
-            ));
+    public List<DataPoint> getTopEnergyConsumingMethods(long durationInMs, int limit, boolean asFiltered) {
+        return energyRollups.getTopMethods(durationInMs, System.currentTimeMillis(), limit,
+            methodName -> !asFiltered || packageFilter.matches(methodName));
     }
 
     /**
@@ -313,4 +862,32 @@ public class PowerMeasurementCollector extends TimerTask {
     public DataPoint cloneAndCalculateDataPoint(@NotNull DataPoint dp, @NotNull Unit unit, Function<Double, Double> valueTransformer) {
         return new DataPoint(dp.getName(), valueTransformer.apply(dp.getValue()), unit, dp.getTime(), dp.getThreadName());
     }
+
+    /**
+     * End of a measurement interval, passed from the sampling thread to the aggregating thread.
+     */
+    private static class IntervalEnd {
+        // sequence of the first sample of the next interval in the sample buffer
+        private final long sequence;
+        private final long elapsedTimeInNs;
+        private final int ticks;
+        private final int missedTicks;
+        private final long samplingIntervalInMs;
+        private final long totalApplicationCpuTime;
+        private final long totalApplicationAllocatedBytes;
+        // copy of the threads with their CPU time in the interval, owned by the aggregating thread
+        private final ThreadRegistry threads;
+
+        IntervalEnd(long sequence, long elapsedTimeInNs, int ticks, int missedTicks, long samplingIntervalInMs,
+                    long totalApplicationCpuTime, long totalApplicationAllocatedBytes, ThreadRegistry threads) {
+            this.sequence = sequence;
+            this.elapsedTimeInNs = elapsedTimeInNs;
+            this.ticks = ticks;
+            this.missedTicks = missedTicks;
+            this.samplingIntervalInMs = samplingIntervalInMs;
+            this.totalApplicationCpuTime = totalApplicationCpuTime;
+            this.totalApplicationAllocatedBytes = totalApplicationAllocatedBytes;
+            this.threads = threads;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package group.msg.jpowermonitor.agent;
+
+import group.msg.jpowermonitor.config.dto.ThreadGroupCfg;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes thread names to the name of their thread group (<code>javaAgent.threadGroups</code>),
+ * e.g. <code>pool-7-thread-193</code> to <code>pool-7</code> or <code>http-nio-8080-exec-42</code> to <code>http-nio-8080-exec</code>.
+ * <br><br>
+ * The first rule whose pattern matches the complete thread name wins, the name of the group may refer to the groups
+ * of the pattern (e.g. <code>$1</code>). Thread names not matching any rule are kept as they are.
+ * The result is cached per thread name, so every distinct thread name is matched only once.
+ * <br><br>
+ * Must only be used by the aggregating thread.
+ */
+public class ThreadNameNormalizer {
+    // thread pools may create new threads with new names all the time, start over, if too many names are cached
+    private static final int MAX_CACHED_NAMES = 10_000;
+
+    private final Pattern[] patterns;
+    private final String[] names;
+    private final Map<String, String> groupPerThreadName = new HashMap<>();
+
+    /**
+     * @param threadGroups the rules, the first one matching a thread name wins
+     */
+    public ThreadNameNormalizer(List<ThreadGroupCfg> threadGroups) {
+        this.patterns = new Pattern[threadGroups.size()];
+        this.names = new String[threadGroups.size()];
+        for (int i = 0; i < threadGroups.size(); i++) {
+            patterns[i] = Pattern.compile(threadGroups.get(i).getPattern());
+            names[i] = threadGroups.get(i).getName();
+        }
+    }
+
+    /**
+     * @return <code>true</code>, if any rule is configured
+     */
+    public boolean hasRules() {
+        return patterns.length > 0;
+    }
+
+    /**
+     * @param threadName name of a thread
+     * @return name of the thread group of the thread, the thread name itself if no rule matches
+     */
+    public String normalize(String threadName) {
+        if (patterns.length == 0 || threadName == null) {
+            return threadName;
+        }
+        String group = groupPerThreadName.get(threadName);
+        if (group == null) {
+            group = match(threadName);
+            if (groupPerThreadName.size() >= MAX_CACHED_NAMES) {
+                groupPerThreadName.clear();
+            }
+            groupPerThreadName.put(threadName, group);
+        }
+        return group;
+    }
+
+    private String match(String threadName) {
+        for (int i = 0; i < patterns.length; i++) {
+            Matcher matcher = patterns[i].matcher(threadName);
+            if (matcher.matches()) {
+                // replace the complete match, replaceFirst would search the name again and might match a part of it only
+                StringBuilder group = new StringBuilder();
+                matcher.appendReplacement(group, names[i]);
+                return group.toString();
+            }
+        }
+        return threadName;
+    }
+}
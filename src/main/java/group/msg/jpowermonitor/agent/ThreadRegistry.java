@@ -0,0 +1,439 @@
+package group.msg.jpowermonitor.agent;
+
+import group.msg.jpowermonitor.agent.context.ContextSlot;
+import group.msg.jpowermonitor.agent.context.EnergyContextRegistry;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Registry of the threads of the application, keyed by thread id.
+ * <br><br>
+ * The registry also keeps the CPU time, the allocated bytes and the power of each thread per measurement interval. Thread ids are never reused,
+ * so the values of different threads with the same name are kept apart. The threads are indexed in an open addressing
+ * hash table over the primitive thread ids, which is rebuilt when terminated threads are evicted, so the memory used
+ * only depends on the number of live threads, not on the number of threads started over time.
+ * <br><br>
+ * The registry is maintained incrementally from the thread dumps taken while sampling: every tick registers
+ * the threads contained in the dump, threads missing in a dump are marked as terminated.
+ * Terminated threads stay registered until {@link #evictTerminatedThreads()} is called, so that they can still
+ * be considered at the end of the measurement interval they terminated in.
+ * Threads run by jPowerMonitor itself are marked as agent threads (see {@link AgentThreads}).
+ * <br><br>
+ * The registry is used by one thread only (the sampling thread). The threads of a measurement interval are handed over
+ * to other threads as a {@link #snapshot()}.
+ * <br><br>
+ * Virtual threads are too many to be tracked one by one, and they have no CPU time of their own. They are all registered
+ * as one entry {@link #VIRTUAL_THREADS_ID}, which is attributed the CPU time of the carrier threads they run on.
+ */
+@Slf4j
+public class ThreadRegistry {
+    /**
+     * Id of the entry all virtual threads are registered as. Thread ids are positive, so it does not clash with a real thread.
+     */
+    public static final long VIRTUAL_THREADS_ID = -1L;
+    /**
+     * Name of the entry all virtual threads are registered as.
+     */
+    public static final String VIRTUAL_THREADS_NAME = "VirtualThreads";
+    private static final int INITIAL_CAPACITY = 256;
+    private final List<RegisteredThread> threads = new ArrayList<>();
+    // open addressing hash table over the thread ids, a slot is empty if it holds no thread
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private RegisteredThread[] slots = new RegisteredThread[INITIAL_CAPACITY];
+    private long currentTick;
+
+    /**
+     * Starts registering the threads of a new thread dump.
+     */
+    public void beginTick() {
+        currentTick++;
+    }
+
+    /**
+     * Registers a thread contained in the current thread dump.
+     *
+     * @param threadId   id of the thread
+     * @param threadName current name of the thread
+     * @return the registered thread
+     */
+    public RegisteredThread register(long threadId, String threadName) {
+        RegisteredThread thread = getThread(threadId);
+        if (thread == null) {
+            thread = add(threadId);
+            log.trace("New thread '{}' (id {})", threadName, threadId);
+        }
+        if (!Objects.equals(threadName, thread.name)) {
+            thread.name = threadName;
+            thread.agentThread = AgentThreads.isAgentThread(threadName);
+        }
+        thread.lastSeenTick = currentTick;
+        return thread;
+    }
+
+    /**
+     * Registers a sample of a virtual thread. All virtual threads share one entry, which never terminates.
+     *
+     * @return the entry of the virtual threads
+     */
+    public RegisteredThread registerVirtualThreads() {
+        RegisteredThread thread = getThread(VIRTUAL_THREADS_ID);
+        if (thread == null) {
+            thread = add(VIRTUAL_THREADS_ID);
+            thread.name = VIRTUAL_THREADS_NAME;
+            thread.virtualThreads = true;
+            log.debug("First virtual thread sampled");
+        }
+        thread.lastSeenTick = currentTick;
+        return thread;
+    }
+
+    /**
+     * Marks a registered thread as carrier thread of virtual threads.
+     *
+     * @param threadId id of the thread
+     */
+    public void markCarrier(long threadId) {
+        RegisteredThread thread = getThread(threadId);
+        if (thread != null && !thread.carrier) {
+            thread.carrier = true;
+            log.trace("Thread '{}' (id {}) is a carrier of virtual threads", thread.name, thread.id);
+        }
+    }
+
+    /**
+     * Marks a thread as terminated, e.g. when its termination has been reported by an event.
+     *
+     * @param threadId id of the thread
+     */
+    public void markTerminated(long threadId) {
+        RegisteredThread thread = getThread(threadId);
+        if (thread != null && !thread.terminated) {
+            thread.terminated = true;
+            log.trace("Thread '{}' (id {}) terminated", thread.name, thread.id);
+        }
+    }
+
+    /**
+     * Marks all threads that were not registered since {@link #beginTick()} as terminated.
+     */
+    public void endTick() {
+        for (RegisteredThread thread : threads) {
+            if (!thread.terminated && !thread.virtualThreads && thread.lastSeenTick != currentTick) {
+                thread.terminated = true;
+                log.trace("Thread '{}' (id {}) terminated", thread.name, thread.id);
+            }
+        }
+    }
+
+    /**
+     * @param threadId id of the thread
+     * @return the registered thread or <code>null</code>, if no thread with the given id is registered
+     */
+    public RegisteredThread getThread(long threadId) {
+        int mask = slots.length - 1;
+        for (int slot = hash(threadId) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+            if (ids[slot] == threadId) {
+                return slots[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all registered threads, including the ones terminated since the last eviction
+     */
+    public Collection<RegisteredThread> getThreads() {
+        return Collections.unmodifiableList(threads);
+    }
+
+    /**
+     * Copies the registry, e.g. to hand the threads of a measurement interval over to another thread, while this registry
+     * keeps being updated.
+     *
+     * @return a new registry with copies of all registered threads, including the ones terminated since the last eviction
+     */
+    public ThreadRegistry snapshot() {
+        ThreadRegistry snapshot = new ThreadRegistry();
+        snapshot.currentTick = currentTick;
+        for (RegisteredThread thread : threads) {
+            snapshot.threads.add(new RegisteredThread(thread));
+        }
+        snapshot.rebuildIndex(capacityFor(threads.size()));
+        return snapshot;
+    }
+
+    /**
+     * Removes all threads marked as terminated from the registry, including their CPU time and power.
+     */
+    public void evictTerminatedThreads() {
+        if (threads.removeIf(RegisteredThread::isTerminated)) {
+            // rebuild the index sized to the remaining threads, so that it shrinks again after many threads terminated
+            rebuildIndex(capacityFor(threads.size()));
+        }
+    }
+
+    private RegisteredThread add(long threadId) {
+        RegisteredThread thread = new RegisteredThread(threadId);
+        threads.add(thread);
+        if (threads.size() * 2 > slots.length) {
+            rebuildIndex(slots.length * 2);
+        } else {
+            index(thread);
+        }
+        return thread;
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size * 4) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private void rebuildIndex(int capacity) {
+        if (capacity == slots.length) {
+            Arrays.fill(slots, null);
+        } else {
+            ids = new long[capacity];
+            slots = new RegisteredThread[capacity];
+        }
+        for (RegisteredThread thread : threads) {
+            index(thread);
+        }
+    }
+
+    private void index(RegisteredThread thread) {
+        int mask = slots.length - 1;
+        int slot = hash(thread.id) & mask;
+        while (slots[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        ids[slot] = thread.id;
+        slots[slot] = thread;
+    }
+
+    private static int hash(long threadId) {
+        long h = threadId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * A thread known to the registry.
+     */
+    @Getter
+    public static class RegisteredThread {
+        private final long id;
+        private String name;
+        private long lastSeenTick;
+        private boolean terminated;
+        /**
+         * <code>true</code>, if the thread is run by jPowerMonitor.
+         */
+        private boolean agentThread;
+        /**
+         * <code>true</code>, if the thread carries virtual threads.
+         */
+        private boolean carrier;
+        /**
+         * <code>true</code> for the entry of all virtual threads ({@link #VIRTUAL_THREADS_ID}), which has no CPU time of its own.
+         */
+        private boolean virtualThreads;
+        /**
+         * Linux thread id (tid) of the native thread running the thread, -1 if not known.
+         */
+        private long nativeThreadId = -1;
+        /**
+         * <code>true</code>, if the CPU time is read from the proc file system of the native thread instead of the thread mx bean.
+         */
+        private boolean cpuTimeFromProc;
+        /**
+         * CPU time spent in user mode read last, -1 if not read from the proc file system.
+         */
+        private long userCpuTime = -1;
+        /**
+         * CPU time spent in kernel mode read last, -1 if not read from the proc file system.
+         */
+        private long systemCpuTime = -1;
+        /**
+         * CPU core the thread ran on last, -1 if not read from the proc file system.
+         */
+        private int processor = -1;
+        /**
+         * CPU time of the thread read last, -1 if not read yet.
+         */
+        private long cpuTime = -1;
+        /**
+         * CPU time of the thread at the end of the last measurement interval.
+         */
+        private long cpuTimeAtIntervalEnd;
+        /**
+         * CPU time consumed by the thread in the last measurement interval.
+         */
+        private long cpuTimeInInterval;
+        /**
+         * Bytes allocated by the thread read last, -1 if not read yet.
+         */
+        private long allocatedBytes = -1;
+        /**
+         * Bytes allocated by the thread until the end of the last measurement interval.
+         */
+        private long allocatedBytesAtIntervalEnd;
+        /**
+         * Bytes allocated by the thread in the last measurement interval.
+         */
+        private long allocatedBytesInInterval;
+        /**
+         * Power attributed to the thread in the last measurement interval.
+         */
+        private double power;
+        /**
+         * Slot of the energy context of the thread, <code>null</code> if the thread did not set a context yet.
+         */
+        @Getter(AccessLevel.NONE)
+        private ContextSlot contextSlot;
+        @Getter(AccessLevel.NONE)
+        private int contextSlotsVersion = -1;
+
+        RegisteredThread(long id) {
+            this.id = id;
+        }
+
+        private RegisteredThread(RegisteredThread thread) {
+            this.id = thread.id;
+            this.name = thread.name;
+            this.lastSeenTick = thread.lastSeenTick;
+            this.terminated = thread.terminated;
+            this.agentThread = thread.agentThread;
+            this.carrier = thread.carrier;
+            this.virtualThreads = thread.virtualThreads;
+            this.nativeThreadId = thread.nativeThreadId;
+            this.cpuTimeFromProc = thread.cpuTimeFromProc;
+            this.userCpuTime = thread.userCpuTime;
+            this.systemCpuTime = thread.systemCpuTime;
+            this.processor = thread.processor;
+            this.cpuTime = thread.cpuTime;
+            this.cpuTimeAtIntervalEnd = thread.cpuTimeAtIntervalEnd;
+            this.cpuTimeInInterval = thread.cpuTimeInInterval;
+            this.allocatedBytes = thread.allocatedBytes;
+            this.allocatedBytesAtIntervalEnd = thread.allocatedBytesAtIntervalEnd;
+            this.allocatedBytesInInterval = thread.allocatedBytesInInterval;
+            this.power = thread.power;
+        }
+
+        /**
+         * Reads the energy context currently active in the thread, only used by the sampling thread.
+         * The slot of the thread is only looked up again, if slots were registered since the last lookup.
+         *
+         * @param contextRegistry the registry of the energy contexts
+         * @return id of the context of the thread, {@link EnergyContextRegistry#NO_CONTEXT} if none
+         */
+        public int getContextId(EnergyContextRegistry contextRegistry) {
+            if (contextSlot == null) {
+                int slotsVersion = contextRegistry.getSlotsVersion();
+                if (slotsVersion == contextSlotsVersion || virtualThreads) {
+                    return EnergyContextRegistry.NO_CONTEXT;
+                }
+                contextSlotsVersion = slotsVersion;
+                contextSlot = contextRegistry.getSlot(id);
+                if (contextSlot == null) {
+                    return EnergyContextRegistry.NO_CONTEXT;
+                }
+            }
+            return contextSlot.getContextId();
+        }
+
+        /**
+         * Updates the CPU time of the thread. Reading the CPU time while the thread is running keeps the CPU time it consumed
+         * until then, even if it terminates before the end of the measurement interval.
+         *
+         * @param cpuTimeInNs CPU time as returned by {@link java.lang.management.ThreadMXBean#getThreadCpuTime(long)},
+         *                    negative values (thread terminated) are ignored, as well as any value once the CPU time is read
+         *                    from the proc file system
+         */
+        public void updateCpuTime(long cpuTimeInNs) {
+            if (cpuTimeInNs >= 0 && !cpuTimeFromProc) {
+                cpuTime = cpuTimeInNs;
+            }
+        }
+
+        /**
+         * Updates the CPU time of the thread from the proc file system of its native thread. From then on, the CPU time
+         * is only taken from the proc file system, as it is counted in clock ticks and does not match the CPU time of the
+         * thread mx bean exactly.
+         *
+         * @param userCpuTimeInNs   CPU time spent in user mode
+         * @param systemCpuTimeInNs CPU time spent in kernel mode
+         * @param processor         CPU core the thread ran on last
+         */
+        public void updateCpuTime(long userCpuTimeInNs, long systemCpuTimeInNs, int processor) {
+            long cpuTimeInNs = userCpuTimeInNs + systemCpuTimeInNs;
+            if (!cpuTimeFromProc) {
+                // the CPU time of the thread mx bean read before may be ahead of the clock ticks, do not count the difference twice
+                cpuTimeFromProc = true;
+                cpuTimeAtIntervalEnd = Math.min(cpuTimeAtIntervalEnd, cpuTimeInNs);
+            }
+            this.userCpuTime = userCpuTimeInNs;
+            this.systemCpuTime = systemCpuTimeInNs;
+            this.processor = processor;
+            cpuTime = cpuTimeInNs;
+        }
+
+        /**
+         * @param nativeThreadId Linux thread id (tid) of the native thread running the thread
+         */
+        public void setNativeThreadId(long nativeThreadId) {
+            this.nativeThreadId = nativeThreadId;
+        }
+
+        /**
+         * Ends the measurement interval: the CPU time consumed since the end of the last interval becomes the CPU time in this interval.
+         *
+         * @return the CPU time consumed in this interval
+         */
+        public long endCpuTimeInterval() {
+            cpuTimeInInterval = cpuTime >= cpuTimeAtIntervalEnd ? cpuTime - cpuTimeAtIntervalEnd : 0L;
+            cpuTimeAtIntervalEnd = Math.max(cpuTime, cpuTimeAtIntervalEnd);
+            return cpuTimeInInterval;
+        }
+
+        /**
+         * Updates the bytes allocated by the thread. Reading the allocated bytes while the thread is running keeps the bytes
+         * it allocated until then, even if it terminates before the end of the measurement interval.
+         *
+         * @param allocatedBytes bytes allocated as returned by {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)},
+         *                       negative values (thread terminated or not supported) are ignored
+         */
+        public void updateAllocatedBytes(long allocatedBytes) {
+            if (allocatedBytes >= 0) {
+                this.allocatedBytes = allocatedBytes;
+            }
+        }
+
+        /**
+         * Ends the measurement interval: the bytes allocated since the end of the last interval become the bytes allocated in this interval.
+         *
+         * @return the bytes allocated in this interval
+         */
+        public long endAllocatedBytesInterval() {
+            allocatedBytesInInterval = allocatedBytes >= allocatedBytesAtIntervalEnd ? allocatedBytes - allocatedBytesAtIntervalEnd : 0L;
+            allocatedBytesAtIntervalEnd = Math.max(allocatedBytes, allocatedBytesAtIntervalEnd);
+            return allocatedBytesInInterval;
+        }
+
+        /**
+         * @param power power attributed to the thread in the last measurement interval
+         */
+        public void setPower(double power) {
+            this.power = power;
+        }
+    }
+}
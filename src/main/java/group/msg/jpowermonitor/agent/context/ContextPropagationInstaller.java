@@ -0,0 +1,240 @@
+package group.msg.jpowermonitor.agent.context;
+
+import group.msg.jpowermonitor.agent.context.bootstrap.ContextPropagationBridge;
+import lombok.extern.slf4j.Slf4j;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.loading.ClassInjector;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+
+import static net.bytebuddy.matcher.ElementMatchers.hasSuperClass;
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isSynthetic;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Instruments the executors of the JDK, so that their tasks run with the tags of {@link EnergyContext} active in the thread
+ * submitting them:
+ * <ul>
+ *     <li><code>ThreadPoolExecutor.execute</code>, i.e. all tasks of a <code>ThreadPoolExecutor</code></li>
+ *     <li>the <code>schedule</code> methods of <code>ScheduledThreadPoolExecutor</code></li>
+ *     <li><code>ForkJoinPool.execute</code> and <code>submit</code>, except for <code>ForkJoinTask</code>s</li>
+ *     <li>the async methods of <code>CompletableFuture</code></li>
+ * </ul>
+ * The tasks are wrapped like {@link EnergyContext#wrap(Runnable)} does, <code>beforeExecute</code>,
+ * <code>afterExecute</code> and <code>shutdownNow</code> of a <code>ThreadPoolExecutor</code> see the tasks submitted.
+ * The queue of a <code>ThreadPoolExecutor</code> contains the wrapped tasks, i.e. <code>remove(Runnable)</code> does
+ * not find a task submitted with tags active.
+ */
+@Slf4j
+public final class ContextPropagationInstaller {
+    /**
+     * Name of {@link ContextPropagationBridge}. The class is not on the class path, it is shipped as resource
+     * {@link #BRIDGE_RESOURCE}, so that only the bootstrap class loader defines it.
+     */
+    private static final String BRIDGE_CLASS_NAME = "group.msg.jpowermonitor.agent.context.bootstrap.ContextPropagationBridge";
+    private static final String BRIDGE_RESOURCE = "/group/msg/jpowermonitor/agent/context/bootstrap/ContextPropagationBridge.classdata";
+    private static final String THREAD_POOL_EXECUTOR = "java.util.concurrent.ThreadPoolExecutor";
+    private static final String SCHEDULED_THREAD_POOL_EXECUTOR = "java.util.concurrent.ScheduledThreadPoolExecutor";
+    private static boolean installed;
+
+    private ContextPropagationInstaller() {
+    }
+
+    /**
+     * Instruments the executors of the JDK, does nothing if already installed.
+     *
+     * @param inst instrumentation of the java agent, <code>null</code> if not started as java agent
+     * @return <code>true</code> if the executors are instrumented
+     */
+    public static synchronized boolean install(Instrumentation inst) {
+        if (installed) {
+            return true;
+        }
+        if (inst == null || !inst.isRetransformClassesSupported()) {
+            log.warn("Retransforming classes is not supported, wrap the tasks with EnergyContext in order to propagate the tags");
+            return false;
+        }
+        try {
+            injectBridge(inst);
+        } catch (IOException | ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            log.warn("Unable to inject {} into the bootstrap class loader, wrap the tasks with EnergyContext in order to propagate the tags", BRIDGE_CLASS_NAME, ex);
+            return false;
+        }
+        ContextPropagationBridge.install(EnergyContext::wrap, EnergyContext::unwrap, EnergyContext::wrap, EnergyContext::bind);
+        // The transformers must not refer to the classes they transform, a class being loaded cannot be loaded again.
+        new AgentBuilder.Default()
+            .disableClassFormatChanges()
+            .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+            .with(new ErrorListener())
+            .ignore(nameStartsWith("net.bytebuddy.").or(nameStartsWith("group.msg.jpowermonitor.shaded.")).or(isSynthetic()))
+            .type(named(THREAD_POOL_EXECUTOR))
+            .transform(ContextPropagationInstaller::instrumentThreadPoolExecutor)
+            .type(named(SCHEDULED_THREAD_POOL_EXECUTOR))
+            .transform(ContextPropagationInstaller::instrumentScheduledThreadPoolExecutor)
+            .type(hasSuperClass(named(THREAD_POOL_EXECUTOR)))
+            .transform(ContextPropagationInstaller::instrumentThreadPoolExecutorSubclass)
+            .type(named("java.util.concurrent.ForkJoinPool"))
+            .transform(ContextPropagationInstaller::instrumentForkJoinPool)
+            .type(named("java.util.concurrent.CompletableFuture"))
+            .transform(ContextPropagationInstaller::instrumentCompletableFuture)
+            .installOn(inst);
+        installed = true;
+        log.debug("Instrumented the executors of the JDK to propagate the tags of the energy contexts");
+        return true;
+    }
+
+    /**
+     * Injects the bridge into the bootstrap class loader. Fails, if the bridge the agent refers to is not the one of the
+     * bootstrap class loader, e.g. because another class loader defined it before, the instrumented classes would use
+     * another bridge than the agent installs the functions into then.
+     */
+    private static void injectBridge(Instrumentation inst) throws IOException, ReflectiveOperationException {
+        byte[] bridge;
+        try (InputStream in = ContextPropagationInstaller.class.getResourceAsStream(BRIDGE_RESOURCE)) {
+            if (in == null) {
+                throw new IOException("Resource " + BRIDGE_RESOURCE + " not found");
+            }
+            bridge = in.readAllBytes();
+        }
+        File folder = Files.createTempDirectory("jpowermonitor").toFile();
+        folder.deleteOnExit();
+        ClassInjector.UsingInstrumentation.of(folder, ClassInjector.UsingInstrumentation.Target.BOOTSTRAP, inst)
+            .injectRaw(Map.of(BRIDGE_CLASS_NAME, bridge));
+        Class<?> injected = Class.forName(BRIDGE_CLASS_NAME, false, null);
+        if (ContextPropagationBridge.class != injected) {
+            throw new IllegalStateException(BRIDGE_CLASS_NAME + " is already defined by " + ContextPropagationBridge.class.getClassLoader());
+        }
+    }
+
+    private static DynamicType.Builder<?> instrumentThreadPoolExecutor(DynamicType.Builder<?> builder, TypeDescription type,
+                                                                       ClassLoader classLoader, JavaModule module,
+                                                                       ProtectionDomain protectionDomain) {
+        return builder
+            .visit(Advice.to(WrapRunnable.class).on(named("execute").and(takesArguments(Runnable.class))))
+            .visit(Advice.to(UnwrapReturnedTasks.class).on(named("shutdownNow").and(takesArguments(0))));
+    }
+
+    private static DynamicType.Builder<?> instrumentScheduledThreadPoolExecutor(DynamicType.Builder<?> builder, TypeDescription type,
+                                                                                ClassLoader classLoader, JavaModule module,
+                                                                                ProtectionDomain protectionDomain) {
+        // execute and submit call schedule, the tasks are not passed on to ThreadPoolExecutor.execute
+        return builder
+            .visit(Advice.to(WrapRunnable.class).on(named("schedule").or(named("scheduleAtFixedRate")).or(named("scheduleWithFixedDelay"))
+                .and(takesArgument(0, Runnable.class))))
+            .visit(Advice.to(WrapCallable.class).on(named("schedule").and(takesArgument(0, Callable.class))));
+    }
+
+    private static DynamicType.Builder<?> instrumentThreadPoolExecutorSubclass(DynamicType.Builder<?> builder, TypeDescription type,
+                                                                               ClassLoader classLoader, JavaModule module,
+                                                                               ProtectionDomain protectionDomain) {
+        // subclasses see the tasks submitted, e.g. to check the Future in afterExecute
+        return builder
+            .visit(Advice.to(UnwrapSecondArgument.class).on(named("beforeExecute").and(takesArguments(Thread.class, Runnable.class)).and(not(isAbstract()))))
+            .visit(Advice.to(UnwrapFirstArgument.class).on(named("afterExecute").and(takesArguments(Runnable.class, Throwable.class)).and(not(isAbstract()))));
+    }
+
+    private static DynamicType.Builder<?> instrumentForkJoinPool(DynamicType.Builder<?> builder, TypeDescription type,
+                                                                 ClassLoader classLoader, JavaModule module,
+                                                                 ProtectionDomain protectionDomain) {
+        return builder
+            .visit(Advice.to(WrapRunnableUnlessForkJoinTask.class).on(named("execute").or(named("submit")).and(takesArgument(0, Runnable.class))))
+            .visit(Advice.to(WrapCallable.class).on(named("submit").and(takesArgument(0, Callable.class))));
+    }
+
+    private static DynamicType.Builder<?> instrumentCompletableFuture(DynamicType.Builder<?> builder, TypeDescription type,
+                                                                      ClassLoader classLoader, JavaModule module,
+                                                                      ProtectionDomain protectionDomain) {
+        // the executors of all async methods pass either screenExecutor or defaultExecutor, supplyAsync and runAsync with
+        // the default executor pass neither
+        return builder
+            .visit(Advice.to(BindReturnedExecutor.class).on(named("screenExecutor").or(named("defaultExecutor")).and(takesArguments(Executor.class).or(takesArguments(0)))))
+            .visit(Advice.to(BindFirstArgument.class).on(named("asyncSupplyStage").or(named("asyncRunStage")).and(takesArgument(0, Executor.class))));
+    }
+
+    private static class ErrorListener extends AgentBuilder.Listener.Adapter {
+        @Override
+        public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+            log.warn("Unable to instrument {} to propagate the tags of the energy contexts", typeName, throwable);
+        }
+    }
+
+    // The advices are inlined into the instrumented classes, which might be loaded by the bootstrap class loader, so they
+    // must only refer to ContextPropagationBridge.
+
+    static class WrapRunnable {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            task = ContextPropagationBridge.wrap(task);
+        }
+    }
+
+    static class WrapRunnableUnlessForkJoinTask {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            if (!(task instanceof ForkJoinTask)) {
+                task = ContextPropagationBridge.wrap(task);
+            }
+        }
+    }
+
+    static class WrapCallable {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+            task = ContextPropagationBridge.wrap(task);
+        }
+    }
+
+    static class UnwrapFirstArgument {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            task = ContextPropagationBridge.unwrap(task);
+        }
+    }
+
+    static class UnwrapSecondArgument {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 1, readOnly = false) Runnable task) {
+            task = ContextPropagationBridge.unwrap(task);
+        }
+    }
+
+    static class UnwrapReturnedTasks {
+        @Advice.OnMethodExit
+        static void exit(@Advice.Return List<Runnable> tasks) {
+            ContextPropagationBridge.unwrapAll(tasks);
+        }
+    }
+
+    static class BindFirstArgument {
+        @Advice.OnMethodEnter
+        static void enter(@Advice.Argument(value = 0, readOnly = false) Executor executor) {
+            executor = ContextPropagationBridge.bind(executor);
+        }
+    }
+
+    static class BindReturnedExecutor {
+        @Advice.OnMethodExit
+        static void exit(@Advice.Return(readOnly = false) Executor executor) {
+            executor = ContextPropagationBridge.bind(executor);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package group.msg.jpowermonitor.agent.context;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * The energy context currently active in one thread, written by the thread itself and read by the sampling thread.
+ */
+public final class ContextSlot {
+    private final WeakReference<Thread> thread;
+    private volatile int contextId = EnergyContextRegistry.NO_CONTEXT;
+
+    ContextSlot(Thread thread) {
+        this.thread = new WeakReference<>(thread);
+    }
+
+    /**
+     * @return id of the context currently active in the thread, {@link EnergyContextRegistry#NO_CONTEXT} if none
+     */
+    public int getContextId() {
+        return contextId;
+    }
+
+    void setContextId(int contextId) {
+        this.contextId = contextId;
+    }
+
+    boolean isThreadAlive() {
+        Thread t = thread.get();
+        return t != null && t.isAlive();
+    }
+}
@@ -0,0 +1,231 @@
+package group.msg.jpowermonitor.agent.context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Tags the work of the current thread, e.g. with the tenant or the endpoint of the request processed, so that its energy
+ * is attributed to the tags in addition to the methods:
+ * <pre>{@code
+ * try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+ *     processRequest();
+ * }
+ * }</pre>
+ * Tags are nested: a tag is active together with the tags of the enclosing scopes, a tag replaces the tag of an enclosing
+ * scope with the same key. Closing a scope restores the tags active before, it must be closed by the thread that opened it.
+ * <br><br>
+ * The sampling thread reads the tags of a sampled thread as one int id, without any lookup by name or allocation.
+ * Tags are only attributed energy, if the jPowerMonitor agent is running, otherwise tagging costs a few map lookups only.
+ * With <code>javaAgent.samplingMethod: jfr</code> the tags are read when a sample arrives, i.e. up to about a second late.
+ * Virtual threads are not attributed to tags.
+ * <br><br>
+ * Tasks submitted to the executors of the JDK, i.e. <code>ThreadPoolExecutor</code>, <code>ForkJoinPool</code> and the
+ * async methods of <code>CompletableFuture</code>, carry the tags of the submitting thread along, if the agent propagates
+ * the tags (<code>javaAgent.propagateEnergyContext</code>). Otherwise, or for other threads, e.g. a new
+ * <code>Thread</code> or a <code>ForkJoinTask</code> forked, wrap the tasks or the executor:
+ * <pre>{@code
+ * ExecutorService executor = EnergyContext.wrapExecutorService(Executors.newFixedThreadPool(4));
+ * CompletableFuture.supplyAsync(this::loadOrders, EnergyContext.wrapExecutor(ForkJoinPool.commonPool()));
+ * }</pre>
+ */
+public final class EnergyContext {
+    // no initial value, so that capturing the context in a thread that never set one does not register the thread
+    private static final ThreadLocal<ContextSlot> SLOT = new ThreadLocal<>();
+
+    private EnergyContext() {
+    }
+
+    /**
+     * Activates a tag in the current thread until the returned scope is closed.
+     *
+     * @param key   key of the tag, e.g. <code>tenant</code>, must not contain '='
+     * @param value value of the tag, e.g. <code>acme</code>
+     * @return the scope of the tag
+     */
+    public static Scope tag(String key, String value) {
+        if (key == null || value == null || key.indexOf('=') >= 0) {
+            throw new IllegalArgumentException("Key and value of an energy context tag must be set and the key must not contain '=': " + key);
+        }
+        EnergyContextRegistry registry = EnergyContextRegistry.getInstance();
+        ContextSlot slot = slot();
+        int previousContextId = slot.getContextId();
+        slot.setContextId(registry.addTag(previousContextId, registry.internTag(key, value)));
+        return new Scope(slot, previousContextId);
+    }
+
+    /**
+     * Wraps a task, so that it runs with the tags active in the current thread, whichever thread runs it.
+     *
+     * @param task the task
+     * @return the wrapped task, the task itself if no tags are active
+     */
+    public static Runnable wrap(Runnable task) {
+        int contextId = currentContextId();
+        if (contextId == EnergyContextRegistry.NO_CONTEXT || task instanceof ContextPropagatingRunnable) {
+            return task;
+        }
+        return new ContextPropagatingRunnable(task, contextId);
+    }
+
+    /**
+     * Wraps a task, so that it runs with the tags active in the current thread, whichever thread runs it.
+     *
+     * @param task the task
+     * @param <V>  result type of the task
+     * @return the wrapped task, the task itself if no tags are active
+     */
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        int contextId = currentContextId();
+        if (contextId == EnergyContextRegistry.NO_CONTEXT || task instanceof ContextPropagatingCallable) {
+            return task;
+        }
+        return new ContextPropagatingCallable<>(task, contextId);
+    }
+
+    /**
+     * Wraps an executor, e.g. the one passed to <code>CompletableFuture.supplyAsync</code>, so that the tasks run with the
+     * tags active in the thread submitting them.
+     *
+     * @param executor the executor
+     * @return the wrapped executor
+     */
+    public static Executor wrapExecutor(Executor executor) {
+        return command -> executor.execute(wrap(command));
+    }
+
+    /**
+     * Wraps an executor service, so that the tasks run with the tags active in the thread submitting them.
+     *
+     * @param executorService the executor service
+     * @return the wrapped executor service, shutting it down shuts down the given one
+     */
+    public static ExecutorService wrapExecutorService(ExecutorService executorService) {
+        return new ContextPropagatingExecutorService(executorService);
+    }
+
+    /**
+     * @param task a task, wrapped or not
+     * @return the task wrapped, the task itself if not wrapped
+     */
+    static Runnable unwrap(Runnable task) {
+        return task instanceof ContextPropagatingRunnable ? ((ContextPropagatingRunnable) task).delegate : task;
+    }
+
+    /**
+     * Binds an executor to the tags active in the current thread, unlike {@link #wrapExecutor(Executor)} the tags are
+     * captured now instead of when a task is submitted.
+     *
+     * @param executor the executor
+     * @return the bound executor, the executor itself if no tags are active
+     */
+    static Executor bind(Executor executor) {
+        int contextId = currentContextId();
+        if (contextId == EnergyContextRegistry.NO_CONTEXT
+            || executor instanceof ContextBoundExecutor && ((ContextBoundExecutor) executor).contextId == contextId) {
+            return executor;
+        }
+        return new ContextBoundExecutor(executor, contextId);
+    }
+
+    private static int currentContextId() {
+        ContextSlot slot = SLOT.get();
+        return slot != null ? slot.getContextId() : EnergyContextRegistry.NO_CONTEXT;
+    }
+
+    /**
+     * Activates the tags of a context captured in another thread instead of the tags active in the current thread.
+     */
+    private static Scope attach(int contextId) {
+        ContextSlot slot = slot();
+        int previousContextId = slot.getContextId();
+        slot.setContextId(contextId);
+        return new Scope(slot, previousContextId);
+    }
+
+    private static ContextSlot slot() {
+        ContextSlot slot = SLOT.get();
+        if (slot == null) {
+            slot = EnergyContextRegistry.getInstance().registerCurrentThread();
+            SLOT.set(slot);
+        }
+        return slot;
+    }
+
+    private static final class ContextPropagatingRunnable implements Runnable {
+        private final Runnable delegate;
+        private final int contextId;
+
+        private ContextPropagatingRunnable(Runnable delegate, int contextId) {
+            this.delegate = delegate;
+            this.contextId = contextId;
+        }
+
+        @Override
+        public void run() {
+            Scope scope = attach(contextId);
+            try {
+                delegate.run();
+            } finally {
+                scope.close();
+            }
+        }
+    }
+
+    private static final class ContextPropagatingCallable<V> implements Callable<V> {
+        private final Callable<V> delegate;
+        private final int contextId;
+
+        private ContextPropagatingCallable(Callable<V> delegate, int contextId) {
+            this.delegate = delegate;
+            this.contextId = contextId;
+        }
+
+        @Override
+        public V call() throws Exception {
+            Scope scope = attach(contextId);
+            try {
+                return delegate.call();
+            } finally {
+                scope.close();
+            }
+        }
+    }
+
+    private static final class ContextBoundExecutor implements Executor {
+        private final Executor delegate;
+        private final int contextId;
+
+        private ContextBoundExecutor(Executor delegate, int contextId) {
+            this.delegate = delegate;
+            this.contextId = contextId;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(command instanceof ContextPropagatingRunnable ? command : new ContextPropagatingRunnable(command, contextId));
+        }
+    }
+
+    /**
+     * Scope of a tag, closing it restores the tags active before.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final ContextSlot slot;
+        private final int previousContextId;
+        private boolean closed;
+
+        private Scope(ContextSlot slot, int previousContextId) {
+            this.slot = slot;
+            this.previousContextId = previousContextId;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                slot.setContextId(previousContextId);
+            }
+        }
+    }
+}
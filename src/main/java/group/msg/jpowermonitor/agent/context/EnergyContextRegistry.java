@@ -0,0 +1,204 @@
+package group.msg.jpowermonitor.agent.context;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the tags and the combinations of tags (contexts) of {@link EnergyContext} into int ids, and keeps the
+ * {@link ContextSlot} of every thread that ever set a context.
+ * <br><br>
+ * A tag is a key and a value, e.g. <code>tenant=acme</code>. A context is the set of tags active in a thread, its id is
+ * all the sampling thread has to read per sample. The number of distinct tags is limited ({@link #setMaxTags(int)}):
+ * further values of a key are replaced by {@link #OTHER_VALUE}, so the tags of e.g. a request id cannot exhaust the memory.
+ * Keys not known yet are replaced by {@link #OTHER_VALUE} as well, so tagging with distinct keys cannot exhaust the memory either.
+ * The number of contexts is limited as well, a tag exceeding it is ignored.
+ * <br><br>
+ * Tags and contexts are interned by the application threads, the lookup of known ones does not lock.
+ * The sampling and aggregating threads only read the ids and the arrays of names, which are published when growing.
+ */
+@Slf4j
+public final class EnergyContextRegistry {
+    /**
+     * Id of the empty context, i.e. no tags active.
+     */
+    public static final int NO_CONTEXT = 0;
+    /**
+     * Value replacing the values of a key exceeding the maximum number of tags.
+     */
+    public static final String OTHER_VALUE = "(other)";
+    /**
+     * Default maximum number of distinct tags, the default of <code>javaAgent.maxContextTags</code> as well.
+     */
+    public static final int DEFAULT_MAX_TAGS = 1000;
+    private static final int MAX_CONTEXTS = 65_536;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int[] NO_TAGS = new int[0];
+    private static final EnergyContextRegistry INSTANCE = new EnergyContextRegistry();
+
+    private volatile int maxTags = DEFAULT_MAX_TAGS;
+    // tag id per value per key
+    private final Map<String, Map<String, Integer>> tagIds = new ConcurrentHashMap<>();
+    // the arrays are replaced when growing, volatile publishes the new arrays to the reading threads
+    private volatile String[] tagNames = new String[INITIAL_CAPACITY];
+    private volatile String[] tagKeys = new String[INITIAL_CAPACITY];
+    private int tagCount;
+    // context id per parent context id (high 32 bits) and tag id (low 32 bits) added to it
+    private final Map<Long, Integer> childContexts = new ConcurrentHashMap<>();
+    private volatile int[][] contextTags = new int[INITIAL_CAPACITY][];
+    private int contextCount = 1;
+    private boolean contextsExhaustedLogged;
+    private final Map<Long, ContextSlot> slotsByThreadId = new ConcurrentHashMap<>();
+    private int purgeSlotsAt = INITIAL_CAPACITY;
+    private volatile int slotsVersion;
+
+    EnergyContextRegistry() {
+        contextTags[NO_CONTEXT] = NO_TAGS;
+    }
+
+    /**
+     * @return the registry used by {@link EnergyContext}
+     */
+    public static EnergyContextRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param maxTags maximum number of distinct tags, further values of a key are replaced by {@link #OTHER_VALUE}
+     */
+    public void setMaxTags(int maxTags) {
+        this.maxTags = maxTags > 0 ? maxTags : DEFAULT_MAX_TAGS;
+    }
+
+    int internTag(String key, String value) {
+        Map<String, Integer> values = tagIds.get(key);
+        Integer id = values != null ? values.get(value) : null;
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            values = tagIds.get(key);
+            id = values != null ? values.get(value) : null;
+            if (id != null) {
+                return id;
+            }
+            if (tagCount >= maxTags && !OTHER_VALUE.equals(value)) {
+                // beyond the maximum one tag per key known, and a single tag for all keys not known yet
+                return values != null ? internTag(key, OTHER_VALUE) : internTag(OTHER_VALUE, OTHER_VALUE);
+            }
+            if (values == null) {
+                values = new ConcurrentHashMap<>();
+                tagIds.put(key, values);
+            }
+            if (tagCount == tagNames.length) {
+                tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+                tagNames = Arrays.copyOf(tagNames, tagCount * 2);
+            }
+            id = tagCount;
+            tagKeys[id] = key;
+            tagNames[id] = key + '=' + value;
+            tagCount++;
+            values.put(value, id);
+            return id;
+        }
+    }
+
+    /**
+     * @return number of distinct tags interned
+     */
+    synchronized int getTagCount() {
+        return tagCount;
+    }
+
+    /**
+     * @return id of the context with the tags of the parent context and the given tag, replacing a tag of the same key
+     */
+    int addTag(int parentContextId, int tagId) {
+        long key = ((long) parentContextId << 32) | tagId;
+        Integer id = childContexts.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = childContexts.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (contextCount == MAX_CONTEXTS) {
+                if (!contextsExhaustedLogged) {
+                    contextsExhaustedLogged = true;
+                    log.warn("More than {} combinations of energy context tags, further tags are ignored", MAX_CONTEXTS);
+                }
+                return parentContextId;
+            }
+            int[] parentTags = contextTags[parentContextId];
+            String tagKey = tagKeys[tagId];
+            int[] tags = new int[parentTags.length + 1];
+            int count = 0;
+            for (int parentTag : parentTags) {
+                if (!tagKey.equals(tagKeys[parentTag])) {
+                    tags[count++] = parentTag;
+                }
+            }
+            tags[count++] = tagId;
+            if (contextCount == contextTags.length) {
+                contextTags = Arrays.copyOf(contextTags, contextCount * 2);
+            }
+            id = contextCount++;
+            contextTags[id] = count == tags.length ? tags : Arrays.copyOf(tags, count);
+            childContexts.put(key, id);
+            return id;
+        }
+    }
+
+    /**
+     * Creates the slot of the current thread, called once per thread.
+     */
+    ContextSlot registerCurrentThread() {
+        Thread thread = Thread.currentThread();
+        ContextSlot slot = new ContextSlot(thread);
+        synchronized (this) {
+            if (slotsByThreadId.size() >= purgeSlotsAt) {
+                // forget the slots of terminated threads, amortized over the slots registered meanwhile
+                slotsByThreadId.values().removeIf(s -> !s.isThreadAlive());
+                purgeSlotsAt = Math.max(INITIAL_CAPACITY, slotsByThreadId.size() * 2);
+            }
+            slotsByThreadId.put(thread.getId(), slot);
+            slotsVersion++;
+        }
+        return slot;
+    }
+
+    /**
+     * @param threadId id of a thread
+     * @return slot of the thread, <code>null</code> if the thread never set a context
+     */
+    public ContextSlot getSlot(long threadId) {
+        return slotsByThreadId.get(threadId);
+    }
+
+    /**
+     * @return version incremented with every slot registered, in order to look up the slot of a thread only if new slots were registered
+     */
+    public int getSlotsVersion() {
+        return slotsVersion;
+    }
+
+    /**
+     * @param contextId id of a context
+     * @return ids of the tags of the context, must not be modified
+     */
+    public int[] getTagIds(int contextId) {
+        return contextTags[contextId];
+    }
+
+    /**
+     * @param tagId id of a tag
+     * @return name of the tag, <code>key=value</code>
+     */
+    public String getTagName(int tagId) {
+        return tagNames[tagId];
+    }
+}
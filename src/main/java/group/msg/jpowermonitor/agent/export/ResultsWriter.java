@@ -12,4 +12,12 @@ public interface ResultsWriter {
     void writeEnergyConsumptionPerMethod(Map<String, DataPoint> measurements);
 
     void writeEnergyConsumptionPerMethodFiltered(Map<String, DataPoint> measurements);
+
+    void writeInclusiveEnergyConsumptionPerMethod(Map<String, DataPoint> measurements);
+
+    void writeInclusiveEnergyConsumptionPerMethodFiltered(Map<String, DataPoint> measurements);
+
+    void writeEnergyConsumptionPerThreadGroup(Map<String, DataPoint> measurements);
+
+    void writeEnergyConsumptionPerTag(Map<String, DataPoint> measurements);
 }
@@ -38,6 +38,10 @@ public class CsvResultsWriter implements ResultsWriter {
 
     private final String energyConsumptionPerMethodFileName;
     private final String energyConsumptionPerFilteredMethodFileName;
+    private final String inclusiveEnergyConsumptionPerMethodFileName;
+    private final String inclusiveEnergyConsumptionPerFilteredMethodFileName;
+    private final String energyConsumptionPerThreadGroupFileName;
+    private final String energyConsumptionPerTagFileName;
     private final String powerConsumptionPerMethodFileName;
     private final String powerConsumptionPerFilteredMethodFileName;
 
@@ -48,6 +52,10 @@ public class CsvResultsWriter implements ResultsWriter {
         long pid = ProcessHandle.current().pid();
         this.energyConsumptionPerMethodFileName = FILE_NAME_PREFIX + pid + "_energy_per_method.csv";
         this.energyConsumptionPerFilteredMethodFileName = FILE_NAME_PREFIX + pid + "_energy_per_method_filtered.csv";
+        this.inclusiveEnergyConsumptionPerMethodFileName = FILE_NAME_PREFIX + pid + "_inclusive_energy_per_method.csv";
+        this.inclusiveEnergyConsumptionPerFilteredMethodFileName = FILE_NAME_PREFIX + pid + "_inclusive_energy_per_method_filtered.csv";
+        this.energyConsumptionPerThreadGroupFileName = FILE_NAME_PREFIX + pid + "_energy_per_thread_group.csv";
+        this.energyConsumptionPerTagFileName = FILE_NAME_PREFIX + pid + "_energy_per_tag.csv";
         this.powerConsumptionPerMethodFileName = FILE_NAME_PREFIX + pid + "_power_per_method.csv";
         this.powerConsumptionPerFilteredMethodFileName = FILE_NAME_PREFIX + pid + "_power_per_method_filtered.csv";
         log.debug("Energy consumption per method is written to '{}'", energyConsumptionPerMethodFileName);
@@ -74,6 +82,26 @@ public class CsvResultsWriter implements ResultsWriter {
         writeToFile(createCsv(measurements), energyConsumptionPerFilteredMethodFileName, false);
     }
 
+    @Override
+    public void writeInclusiveEnergyConsumptionPerMethod(Map<String, DataPoint> measurements) {
+        writeToFile(createCsv(measurements), inclusiveEnergyConsumptionPerMethodFileName, false);
+    }
+
+    @Override
+    public void writeInclusiveEnergyConsumptionPerMethodFiltered(Map<String, DataPoint> measurements) {
+        writeToFile(createCsv(measurements), inclusiveEnergyConsumptionPerFilteredMethodFileName, false);
+    }
+
+    @Override
+    public void writeEnergyConsumptionPerThreadGroup(Map<String, DataPoint> measurements) {
+        writeToFile(createCsv(measurements), energyConsumptionPerThreadGroupFileName, false);
+    }
+
+    @Override
+    public void writeEnergyConsumptionPerTag(Map<String, DataPoint> measurements) {
+        writeToFile(createCsv(measurements), energyConsumptionPerTagFileName, false);
+    }
+
     protected String createCsv(Map<String, DataPoint> measurements) {
         StringBuilder csv = new StringBuilder();
         measurements.forEach((method, energy) -> csv.append(createCsvEntryForDataPoint(energy)));
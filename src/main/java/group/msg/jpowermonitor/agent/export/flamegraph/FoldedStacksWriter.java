@@ -0,0 +1,69 @@
+package group.msg.jpowermonitor.agent.export.flamegraph;
+
+import group.msg.jpowermonitor.agent.sampling.CallTree;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static group.msg.jpowermonitor.util.Constants.APP_TITLE;
+
+/**
+ * Write the energy consumption per call path to a collapsed (folded) stack file, which can be rendered
+ * by flame graph tools (e.g. <code>flamegraph.pl</code>, speedscope).
+ * <br><br>
+ * Each line contains the frames of a call path from the bottom to the top of the stack, separated by <code>;</code>,
+ * followed by the energy consumed in the top frame in millijoules. As flame graph tools expect integer weights,
+ * call paths consuming less than one millijoule are omitted.
+ */
+@Slf4j
+@Getter
+public class FoldedStacksWriter {
+    private static final double MILLIJOULE_PER_JOULE = 1000.0;
+    private final String energyConsumptionPerStackFileName;
+
+    /**
+     * Constructor
+     */
+    public FoldedStacksWriter() {
+        long pid = ProcessHandle.current().pid();
+        this.energyConsumptionPerStackFileName = APP_TITLE + "_" + pid + "_energy_per_stack.folded";
+        log.debug("Energy consumption per stack is written to '{}'", energyConsumptionPerStackFileName);
+    }
+
+    /**
+     * Writes the current energy consumption of all call paths, replacing the previous file.
+     *
+     * @param callTree the call tree
+     */
+    public void writeEnergyConsumptionPerStack(CallTree callTree) {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(energyConsumptionPerStackFileName, false))) {
+            writeFoldedStacks(callTree, bw);
+        } catch (IOException ex) {
+            log.error(ex.getMessage(), ex);
+        }
+        if (callTree.getTruncatedStacks() > 0) {
+            log.warn("Call tree is limited to {} nodes, {} stacks have been cut off", callTree.size(), callTree.getTruncatedStacks());
+        }
+    }
+
+    private void writeFoldedStacks(CallTree callTree, Appendable out) throws IOException {
+        try {
+            callTree.forEachStack((foldedStack, energyInJoule) -> {
+                long energyInMillijoule = Math.round(energyInJoule * MILLIJOULE_PER_JOULE);
+                if (energyInMillijoule > 0) {
+                    try {
+                        out.append(foldedStack).append(' ').append(Long.toString(energyInMillijoule)).append('\n');
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+}
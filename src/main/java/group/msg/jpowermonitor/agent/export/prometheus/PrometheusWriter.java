@@ -1,5 +1,6 @@
 package group.msg.jpowermonitor.agent.export.prometheus;
 
+import group.msg.jpowermonitor.agent.ThreadRegistry;
 import group.msg.jpowermonitor.agent.export.ResultsWriter;
 import group.msg.jpowermonitor.config.dto.PrometheusCfg;
 import group.msg.jpowermonitor.dto.DataPoint;
@@ -9,8 +10,12 @@ import io.prometheus.client.hotspot.DefaultExports;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -26,11 +31,33 @@ public class PrometheusWriter implements ResultsWriter {
     protected static final String METRICS_PREFIX = APP_TITLE + "_";
     private static final String ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME = METRICS_PREFIX + "energy_per_method_filtered";
     private static final String CO2_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME = METRICS_PREFIX + "co2_per_method_filtered";
+    private static final String INCLUSIVE_ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME = METRICS_PREFIX + "inclusive_energy_per_method_filtered";
     private static final String POWER_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME = METRICS_PREFIX + "power_per_method_filtered";
+    private static final String ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_NAME = METRICS_PREFIX + "energy_per_thread_group";
+    private static final String ENERGY_CONSUMPTION_PER_TAG_METRIC_NAME = METRICS_PREFIX + "energy_per_tag";
+    private static final String SAMPLING_INTERVAL_METRIC_NAME = METRICS_PREFIX + "sampling_interval_ms";
+    private static final String SAMPLING_OVERHEAD_METRIC_NAME = METRICS_PREFIX + "sampling_overhead_percent";
+    private static final String SAMPLES_DROPPED_METRIC_NAME = METRICS_PREFIX + "samples_dropped";
+    private static final String OVERHEAD_ENERGY_METRIC_NAME = METRICS_PREFIX + "overhead_energy_joule";
+    private static final String OVERHEAD_CPU_TIME_METRIC_NAME = METRICS_PREFIX + "overhead_cpu_time_ms";
+    private static final String THREAD_CPU_USER_METRIC_NAME = METRICS_PREFIX + "thread_cpu_user_seconds";
+    private static final String THREAD_CPU_SYSTEM_METRIC_NAME = METRICS_PREFIX + "thread_cpu_system_seconds";
+    private static final String THREAD_LAST_CPU_METRIC_NAME = METRICS_PREFIX + "thread_last_cpu";
 
     private static final String ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP = "Energy for the filtered methods in Joules";
+    private static final String INCLUSIVE_ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP = "Energy for the filtered methods including the methods called by them in Joules";
     private static final String POWER_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP = "Power for the filtered methods in Watts";
+    private static final String ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_HELP = "Energy for the thread groups in Joules";
+    private static final String ENERGY_CONSUMPTION_PER_TAG_METRIC_HELP = "Energy for the tags of the energy contexts in Joules";
     private static final String CO2_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP = "CO2 consumption of the filtered methods in grams";
+    private static final String SAMPLING_INTERVAL_METRIC_HELP = "Current interval the thread stacks are sampled in, in milliseconds";
+    private static final String SAMPLING_OVERHEAD_METRIC_HELP = "CPU time spent for sampling the thread stacks, in percent of one core";
+    private static final String SAMPLES_DROPPED_METRIC_HELP = "Samples dropped, because the aggregation did not keep up with sampling";
+    private static final String OVERHEAD_ENERGY_METRIC_HELP = "Energy consumed by the threads of jPowerMonitor itself in Joules";
+    private static final String OVERHEAD_CPU_TIME_METRIC_HELP = "CPU time consumed by the threads of jPowerMonitor itself in milliseconds";
+    private static final String THREAD_CPU_USER_METRIC_HELP = "CPU time spent by the thread in user mode in seconds, read from the proc file system";
+    private static final String THREAD_CPU_SYSTEM_METRIC_HELP = "CPU time spent by the thread in kernel mode in seconds, read from the proc file system";
+    private static final String THREAD_LAST_CPU_METRIC_HELP = "CPU core the thread ran on last, read from the proc file system";
 
     private static final Map<String, Gauge> gaugeMap = new ConcurrentHashMap<>();
     private final long pid;
@@ -38,6 +65,8 @@ public class PrometheusWriter implements ResultsWriter {
     private static final Lock lock = new ReentrantLock();
     // keep in mind the last run in order to find out, if a timeseries is not provided with values anymore.
     private static final Map<String, Map<String, DataPoint>> lastRun = new HashMap<>();
+    // labels of the threads written last, the series of threads not read from the proc file system anymore are removed
+    private static final Set<List<String>> lastThreadLabels = new HashSet<>();
 
     /**
      * Constructor
@@ -86,6 +115,118 @@ public class PrometheusWriter implements ResultsWriter {
         registerGaugeAndSetDataPoints(CO2_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME, measurements, pid, DataPoint::getCo2Value);
     }
 
+    @Override
+    public void writeInclusiveEnergyConsumptionPerMethod(Map<String, DataPoint> measurements) {
+        throw new IllegalArgumentException("Currently not implemented");
+    }
+
+    @Override
+    public void writeInclusiveEnergyConsumptionPerMethodFiltered(Map<String, DataPoint> measurements) {
+        registerGaugeAndSetDataPoints(INCLUSIVE_ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME, measurements, pid, DataPoint::getValue);
+    }
+
+    @Override
+    public void writeEnergyConsumptionPerThreadGroup(Map<String, DataPoint> measurements) {
+        Gauge gauge = gaugeMap.computeIfAbsent(ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_NAME,
+            k -> Gauge.build()
+                .name(ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_NAME)
+                .labelNames("pid", "thread_group")
+                .help(helpForName(ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_NAME))
+                .register());
+        for (DataPoint dp : measurements.values()) {
+            gauge.labels(String.valueOf(pid), dp.getName()).set(dp.getValue());
+        }
+    }
+
+    @Override
+    public void writeEnergyConsumptionPerTag(Map<String, DataPoint> measurements) {
+        Gauge gauge = gaugeMap.computeIfAbsent(ENERGY_CONSUMPTION_PER_TAG_METRIC_NAME,
+            k -> Gauge.build()
+                .name(ENERGY_CONSUMPTION_PER_TAG_METRIC_NAME)
+                .labelNames("pid", "tag", "value")
+                .help(helpForName(ENERGY_CONSUMPTION_PER_TAG_METRIC_NAME))
+                .register());
+        for (DataPoint dp : measurements.values()) {
+            // the name is key=value, the key never contains '='
+            int separator = dp.getName().indexOf('=');
+            gauge.labels(String.valueOf(pid), dp.getName().substring(0, separator), dp.getName().substring(separator + 1)).set(dp.getValue());
+        }
+    }
+
+    /**
+     * Writes the current sampling interval, the CPU overhead of sampling and the samples dropped.
+     *
+     * @param samplingIntervalInMs      the current sampling interval
+     * @param samplingOverheadInPercent CPU time spent for sampling in the last measurement interval, in percent of one core
+     * @param droppedSamples            total number of samples dropped, because the aggregation did not keep up with sampling
+     */
+    public void writeSamplingStatistics(long samplingIntervalInMs, double samplingOverheadInPercent, long droppedSamples) {
+        registerGauge(SAMPLING_INTERVAL_METRIC_NAME).labels(String.valueOf(pid)).set(samplingIntervalInMs);
+        registerGauge(SAMPLING_OVERHEAD_METRIC_NAME).labels(String.valueOf(pid)).set(samplingOverheadInPercent);
+        registerGauge(SAMPLES_DROPPED_METRIC_NAME).labels(String.valueOf(pid)).set(droppedSamples);
+    }
+
+    /**
+     * Writes the energy and CPU time consumed by jPowerMonitor itself.
+     *
+     * @param overheadEnergyInJoule total energy consumed by the threads of jPowerMonitor
+     * @param overheadCpuTimeInNs   total CPU time consumed by the threads of jPowerMonitor
+     */
+    public void writeOverheadStatistics(double overheadEnergyInJoule, long overheadCpuTimeInNs) {
+        registerGauge(OVERHEAD_ENERGY_METRIC_NAME).labels(String.valueOf(pid)).set(overheadEnergyInJoule);
+        registerGauge(OVERHEAD_CPU_TIME_METRIC_NAME).labels(String.valueOf(pid)).set(overheadCpuTimeInNs / 1_000_000.0);
+    }
+
+    /**
+     * Writes the CPU time split into user and kernel mode and the CPU core run on last of the threads whose CPU time is
+     * read from the proc file system (see <code>javaAgentCfg -> threadCpuTimeSource</code>).
+     *
+     * @param threads the threads of the measurement interval
+     */
+    public void writeThreadCpuTimes(Collection<ThreadRegistry.RegisteredThread> threads) {
+        Gauge userCpuTime = registerThreadGauge(THREAD_CPU_USER_METRIC_NAME);
+        Gauge systemCpuTime = registerThreadGauge(THREAD_CPU_SYSTEM_METRIC_NAME);
+        Gauge lastCpu = registerThreadGauge(THREAD_LAST_CPU_METRIC_NAME);
+        Set<List<String>> threadLabels = new HashSet<>();
+        for (ThreadRegistry.RegisteredThread t : threads) {
+            if (!t.isCpuTimeFromProc()) {
+                continue;
+            }
+            String[] labels = {String.valueOf(pid), t.getName(), String.valueOf(t.getId())};
+            userCpuTime.labels(labels).set(t.getUserCpuTime() / 1_000_000_000.0);
+            systemCpuTime.labels(labels).set(t.getSystemCpuTime() / 1_000_000_000.0);
+            lastCpu.labels(labels).set(t.getProcessor());
+            threadLabels.add(List.of(labels));
+        }
+        lastThreadLabels.removeAll(threadLabels);
+        for (List<String> labels : lastThreadLabels) {
+            String[] missing = labels.toArray(new String[0]);
+            userCpuTime.remove(missing);
+            systemCpuTime.remove(missing);
+            lastCpu.remove(missing);
+        }
+        lastThreadLabels.clear();
+        lastThreadLabels.addAll(threadLabels);
+    }
+
+    private Gauge registerThreadGauge(String metric) {
+        return gaugeMap.computeIfAbsent(metric,
+            k -> Gauge.build()
+                .name(metric)
+                .labelNames("pid", "thread", "thread_id")
+                .help(helpForName(metric))
+                .register());
+    }
+
+    private Gauge registerGauge(String metric) {
+        return gaugeMap.computeIfAbsent(metric,
+            k -> Gauge.build()
+                .name(metric)
+                .labelNames("pid")
+                .help(helpForName(metric))
+                .register());
+    }
+
     /**
      * @param metric        the name of the metric that is sent to prometheus
      * @param metrics       the DataPoints
@@ -114,7 +255,8 @@ public class PrometheusWriter implements ResultsWriter {
                 gauge.remove(String.valueOf(pid), dp.getThreadName(), dp.getName());
             }
         }
-        lastRun.put(metric, metrics);
+        // copy, the measurements may be a live view, which would not differ from the current run anymore in the next run
+        lastRun.put(metric, new HashMap<>(metrics));
     }
 
     private Map<String, DataPoint> findMissingDatapointsInCurrentRun(Map<String, DataPoint> current, Map<String, DataPoint> last) {
@@ -133,10 +275,32 @@ public class PrometheusWriter implements ResultsWriter {
     private String helpForName(String metric) {
         if (ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME.equals(metric)) {
             return ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP;
+        } else if (INCLUSIVE_ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME.equals(metric)) {
+            return INCLUSIVE_ENERGY_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP;
         } else if (POWER_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME.equals(metric)) {
             return POWER_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP;
+        } else if (ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_NAME.equals(metric)) {
+            return ENERGY_CONSUMPTION_PER_THREAD_GROUP_METRIC_HELP;
+        } else if (ENERGY_CONSUMPTION_PER_TAG_METRIC_NAME.equals(metric)) {
+            return ENERGY_CONSUMPTION_PER_TAG_METRIC_HELP;
         } else if (CO2_CONSUMPTION_PER_FILTERED_METHOD_METRIC_NAME.equals(metric)) {
             return CO2_CONSUMPTION_PER_FILTERED_METHOD_METRIC_HELP;
+        } else if (SAMPLING_INTERVAL_METRIC_NAME.equals(metric)) {
+            return SAMPLING_INTERVAL_METRIC_HELP;
+        } else if (SAMPLING_OVERHEAD_METRIC_NAME.equals(metric)) {
+            return SAMPLING_OVERHEAD_METRIC_HELP;
+        } else if (SAMPLES_DROPPED_METRIC_NAME.equals(metric)) {
+            return SAMPLES_DROPPED_METRIC_HELP;
+        } else if (OVERHEAD_ENERGY_METRIC_NAME.equals(metric)) {
+            return OVERHEAD_ENERGY_METRIC_HELP;
+        } else if (OVERHEAD_CPU_TIME_METRIC_NAME.equals(metric)) {
+            return OVERHEAD_CPU_TIME_METRIC_HELP;
+        } else if (THREAD_CPU_USER_METRIC_NAME.equals(metric)) {
+            return THREAD_CPU_USER_METRIC_HELP;
+        } else if (THREAD_CPU_SYSTEM_METRIC_NAME.equals(metric)) {
+            return THREAD_CPU_SYSTEM_METRIC_HELP;
+        } else if (THREAD_LAST_CPU_METRIC_NAME.equals(metric)) {
+            return THREAD_LAST_CPU_METRIC_HELP;
         } else {
             throw new IllegalArgumentException("Unknown metric. Configure help for " + metric);
         }
@@ -3,9 +3,15 @@ package group.msg.jpowermonitor.agent.export.statistics;
 import group.msg.jpowermonitor.agent.JPowerMonitorAgent;
 import group.msg.jpowermonitor.agent.PowerMeasurementCollector;
 import group.msg.jpowermonitor.agent.export.csv.CsvResultsWriter;
+import group.msg.jpowermonitor.agent.sampling.EnergyAccumulator;
+import group.msg.jpowermonitor.agent.sampling.SamplingIntervalController;
+import group.msg.jpowermonitor.dto.DataPoint;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Comparator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static group.msg.jpowermonitor.util.Constants.SEPARATOR;
 import static group.msg.jpowermonitor.util.Converter.convertJouleToKiloWattHours;
@@ -13,6 +19,8 @@ import static group.msg.jpowermonitor.util.Converter.convertJouleToWattHours;
 
 @Slf4j
 public class StatisticsWriter {
+    private static final int TOP_THREAD_GROUPS = 5;
+    private static final int TOP_TAGS = 5;
     private final PowerMeasurementCollector powerMeasurementCollector;
     private static long benchmarkResult;
 
@@ -38,18 +46,80 @@ public class StatisticsWriter {
                 Locale.GERMANY,
                 "Benchmark result efficiency factor (sum of all loop counters / energyConsumptionTotal): *** %,d *** jPMarks",
                 getBenchmarkResult() / totalEnergyConsumptionInJoule) : "";
+        SamplingIntervalController samplingIntervalController = powerMeasurementCollector.getSamplingIntervalController();
+        String samplingStatistics = String.format("Sampled thread stacks every %d ms (%.1f samples/s)%s, sampling overhead %.2f%% of one core, %d sampling ticks missed, %d samples dropped",
+                samplingIntervalController.getIntervalInMs(),
+                samplingIntervalController.getSamplesPerSecond(),
+                samplingIntervalController.isAdaptive() ? " adapted to the overhead budget" : "",
+                samplingIntervalController.getOverheadInPercent(),
+                powerMeasurementCollector.getMissedTicks(),
+                powerMeasurementCollector.getDroppedSamples());
+        double overheadEnergyInJoule = powerMeasurementCollector.getOverheadEnergyInJoule();
+        double totalEnergyInJoule = powerMeasurementCollector.getEnergyConsumptionTotalInJoule().get().getValue();
+        String overheadStatistics = String.format("jPowerMonitor overhead (not attributed to any method): %.2f joule (%.2f%% of total), %d ms CPU time",
+                overheadEnergyInJoule,
+                totalEnergyInJoule > 0 ? overheadEnergyInJoule * 100.0 / totalEnergyInJoule : 0.0,
+                powerMeasurementCollector.getOverheadCpuTimeInNs() / 1_000_000L);
+        EnergyAccumulator energyPerMethod = powerMeasurementCollector.getEnergyConsumptionPerMethod();
+        String trackedMethodsStatistics = energyPerMethod.getMaxMethods() > 0 ? String.format(
+                "Energy tracked for the top %d methods, %.2f joule of the other methods written as '%s', the energy per method may be too low by at most %.2f joule",
+                energyPerMethod.getMaxMethods(),
+                energyPerMethod.getOtherEnergyInJoule(),
+                EnergyAccumulator.OTHER_METHODS,
+                energyPerMethod.getMaxErrorInJoule()) : "";
+        String threadGroupStatistics = powerMeasurementCollector.isThreadGroups() ? "Thread groups consuming the most energy: "
+                + powerMeasurementCollector.getEnergyConsumptionPerThreadGroup().values().stream()
+                .sorted(Comparator.comparing(DataPoint::getValue).reversed())
+                .limit(TOP_THREAD_GROUPS)
+                .map(dp -> String.format("%s %.2f joule", dp.getName(), dp.getValue()))
+                .collect(Collectors.joining(", ")) : "";
+        Map<String, DataPoint> energyPerTag = powerMeasurementCollector.getEnergyConsumptionPerTag();
+        String tagStatistics = energyPerTag.isEmpty() ? "" : "Tags consuming the most energy: " + energyPerTag.values().stream()
+                .sorted(Comparator.comparing(DataPoint::getValue).reversed())
+                .limit(TOP_TAGS)
+                .map(dp -> String.format("%s %.2f joule", dp.getName(), dp.getValue()))
+                .collect(Collectors.joining(", "));
         String filesInfo = "Energy consumption per method written to '"
                 + csvResultsWriter.getEnergyConsumptionPerMethodFileName()
                 + "' and filtered methods written to '"
-                + csvResultsWriter.getEnergyConsumptionPerFilteredMethodFileName() + "'" + "\n" + SEPARATOR;
+                + csvResultsWriter.getEnergyConsumptionPerFilteredMethodFileName() + "'"
+                + (powerMeasurementCollector.isInclusiveEnergy() ? ", energy including the methods called written to '"
+                + csvResultsWriter.getInclusiveEnergyConsumptionPerMethodFileName() + "' and '"
+                + csvResultsWriter.getInclusiveEnergyConsumptionPerFilteredMethodFileName() + "'" : "")
+                + (powerMeasurementCollector.isThreadGroups() ? ", energy per thread group written to '"
+                + csvResultsWriter.getEnergyConsumptionPerThreadGroupFileName() + "'" : "")
+                + (energyPerTag.isEmpty() ? "" : ", energy per tag written to '" + csvResultsWriter.getEnergyConsumptionPerTagFileName() + "'")
+                + "\n" + SEPARATOR;
 
         if (JPowerMonitorAgent.isSlf4jLoggerImplPresent()) {
             log.info(appStatistics);
             log.info(benchmarkResult);
+            log.info(samplingStatistics);
+            log.info(overheadStatistics);
+            if (!trackedMethodsStatistics.isEmpty()) {
+                log.info(trackedMethodsStatistics);
+            }
+            if (!threadGroupStatistics.isEmpty()) {
+                log.info(threadGroupStatistics);
+            }
+            if (!tagStatistics.isEmpty()) {
+                log.info(tagStatistics);
+            }
             log.info(filesInfo);
         } else {
             System.out.println(appStatistics);
             System.out.println(benchmarkResult);
+            System.out.println(samplingStatistics);
+            System.out.println(overheadStatistics);
+            if (!trackedMethodsStatistics.isEmpty()) {
+                System.out.println(trackedMethodsStatistics);
+            }
+            if (!threadGroupStatistics.isEmpty()) {
+                System.out.println(threadGroupStatistics);
+            }
+            if (!tagStatistics.isEmpty()) {
+                System.out.println(tagStatistics);
+            }
             System.out.println(filesInfo);
         }
     }
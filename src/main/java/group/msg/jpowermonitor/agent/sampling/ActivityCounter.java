@@ -0,0 +1,115 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.Arrays;
+
+/**
+ * Counts the samples per thread id and activity within one measurement interval.
+ * An activity is any <code>long</code> key describing what a thread was doing, e.g. the ids of the sampled frames.
+ * <br><br>
+ * The counts are kept in primitive arrays (open addressing), so counting an already known combination does not allocate.
+ * The arrays are reused after {@link #clear()}, thus the garbage produced per measurement interval depends on the number of
+ * distinct combinations only, not on the number of samples.
+ */
+public class ActivityCounter {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private long[] threadIds = new long[INITIAL_CAPACITY];
+    private long[] activities = new long[INITIAL_CAPACITY];
+    // a count of 0 marks an empty slot
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Counts one sample.
+     *
+     * @param threadId id of the sampled thread
+     * @param activity the activity of the thread
+     */
+    public void increment(long threadId, long activity) {
+        add(threadId, activity, 1);
+    }
+
+    /**
+     * Adds the given number of samples.
+     *
+     * @param threadId id of the sampled thread
+     * @param activity the activity of the thread
+     * @param count    number of samples to add, must be positive
+     */
+    public void add(long threadId, long activity, int count) {
+        int mask = counts.length - 1;
+        int slot = hash(threadId, activity) & mask;
+        while (counts[slot] != 0) {
+            if (threadIds[slot] == threadId && activities[slot] == activity) {
+                counts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        threadIds[slot] = threadId;
+        activities[slot] = activity;
+        counts[slot] = count;
+        size++;
+        if (size * 2 > counts.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Passes every combination of thread id and activity counted since the last {@link #clear()} to the consumer.
+     *
+     * @param consumer the consumer
+     */
+    public void forEach(CountConsumer consumer) {
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] != 0) {
+                consumer.accept(threadIds[slot], activities[slot], counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct combinations of thread id and activity counted
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Resets all counts, keeping the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldThreadIds = threadIds;
+        long[] oldActivities = activities;
+        int[] oldCounts = counts;
+        threadIds = new long[oldCounts.length * 2];
+        activities = new long[oldCounts.length * 2];
+        counts = new int[oldCounts.length * 2];
+        size = 0;
+        for (int slot = 0; slot < oldCounts.length; slot++) {
+            if (oldCounts[slot] != 0) {
+                add(oldThreadIds[slot], oldActivities[slot], oldCounts[slot]);
+            }
+        }
+    }
+
+    private static int hash(long threadId, long activity) {
+        long h = threadId * 0x9E3779B97F4A7C15L + activity;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    /**
+     * Receives the count of one combination of thread id and activity.
+     */
+    @FunctionalInterface
+    public interface CountConsumer {
+        void accept(long threadId, long activity, int count);
+    }
+}
@@ -0,0 +1,210 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Call tree aggregating the complete sampled stacks, weighted with the energy attributed to them.
+ * <br><br>
+ * Each node represents a call path from the bottom of the stack (e.g. <code>java.lang.Thread.run</code>) down to one frame,
+ * stacks sharing a prefix share the nodes of that prefix. Nodes are referenced by compact <code>int</code> ids, the root
+ * node {@link #ROOT} represents the empty path. The energy of a sample is added to the node of its top frame (self energy),
+ * the energy of a call path including its callees is the sum over its subtree.
+ * <br><br>
+ * The number of nodes is limited. When the limit is reached, new call paths are cut off at the deepest known frame
+ * and their energy is added to that frame.
+ * <br><br>
+ * Stacks must be added and energy must be attributed by one thread only (the aggregating thread), the stacks may be read
+ * by any thread.
+ */
+public class CallTree {
+    /**
+     * Id of the root node, representing the empty call path.
+     */
+    public static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final FrameDictionary frameDictionary;
+    private final int maxNodes;
+    // open addressing hash table over parent node id and frame id, each slot contains a node id (0 marks an empty slot,
+    // the root is never a child)
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    // arrays are replaced when growing, volatile publishes the new arrays to threads reading the stacks
+    private volatile int[] parents = new int[INITIAL_CAPACITY];
+    private volatile int[] frameIds = new int[INITIAL_CAPACITY];
+    private volatile double[] energies = new double[INITIAL_CAPACITY];
+    private volatile int size = 1;
+    private volatile long truncatedStacks;
+
+    /**
+     * @param frameDictionary dictionary to intern the frames of the stacks in
+     * @param maxNodes        maximum number of nodes of the tree
+     */
+    public CallTree(FrameDictionary frameDictionary, int maxNodes) {
+        this.frameDictionary = frameDictionary;
+        this.maxNodes = Math.max(maxNodes, 1);
+        frameIds[ROOT] = FrameDictionary.NO_FRAME;
+    }
+
+    /**
+     * Adds the call path of a stack to the tree.
+     *
+     * @param stackTrace stack, the top frame first
+     * @return id of the node of the top frame, the node of the deepest known frame if the stack has been cut off
+     */
+    public int addStack(StackTraceElement[] stackTrace) {
+        int node = ROOT;
+        for (int i = stackTrace.length - 1; i >= 0; i--) {
+            int child = getOrAddChild(node, frameDictionary.intern(stackTrace[i].getClassName(), stackTrace[i].getMethodName()));
+            if (child == ROOT) {
+                truncatedStacks++;
+                break;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Adds energy to the given node.
+     *
+     * @param nodeId        id of the node
+     * @param energyInJoule energy to add
+     */
+    public void addEnergy(int nodeId, double energyInJoule) {
+        energies[nodeId] += energyInJoule;
+    }
+
+    /**
+     * @return number of nodes, including the root
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of stacks cut off since the maximum number of nodes has been reached
+     */
+    public long getTruncatedStacks() {
+        return truncatedStacks;
+    }
+
+    /**
+     * Passes the frame id of every node to the consumer, e.g. in order to keep the ids from being released by the
+     * {@link FrameDictionary}. Must only be called by the thread adding the stacks.
+     *
+     * @param consumer the consumer
+     */
+    public void forEachFrame(IntConsumer consumer) {
+        int[] frames = frameIds;
+        for (int node = ROOT + 1; node < size; node++) {
+            consumer.accept(frames[node]);
+        }
+    }
+
+    /**
+     * Passes the call path of every node with self energy to the consumer.
+     * The call path is given in the collapsed (folded) stack format: the frame names from the bottom to the top of the stack,
+     * separated by <code>;</code>.
+     *
+     * @param consumer the consumer
+     */
+    public void forEachStack(StackConsumer consumer) {
+        int count = size;
+        int[] parentIds = parents;
+        int[] frames = frameIds;
+        double[] selfEnergies = energies;
+        // build the child lists, so that the tree can be walked depth first sharing the path prefixes
+        int[] firstChild = new int[count];
+        int[] nextSibling = new int[count];
+        for (int node = count - 1; node > ROOT; node--) {
+            nextSibling[node] = firstChild[parentIds[node]];
+            firstChild[parentIds[node]] = node;
+        }
+        StringBuilder path = new StringBuilder();
+        int[] pathLengths = new int[count];
+        int node = firstChild[ROOT];
+        while (node != ROOT) {
+            int parent = parentIds[node];
+            path.setLength(pathLengths[parent]);
+            if (parent != ROOT) {
+                path.append(';');
+            }
+            path.append(frameDictionary.getName(frames[node]));
+            pathLengths[node] = path.length();
+            if (selfEnergies[node] > 0) {
+                consumer.accept(path, selfEnergies[node]);
+            }
+            // next node depth first: first child, else next sibling of the node or of its nearest ancestor
+            if (firstChild[node] != ROOT) {
+                node = firstChild[node];
+            } else {
+                while (node != ROOT && nextSibling[node] == ROOT) {
+                    node = parentIds[node];
+                }
+                node = node == ROOT ? ROOT : nextSibling[node];
+            }
+        }
+    }
+
+    private int getOrAddChild(int parent, int frameId) {
+        int mask = slots.length - 1;
+        int slot = hash(parent, frameId) & mask;
+        int[] parentIds = parents;
+        int[] frames = frameIds;
+        while (slots[slot] != 0) {
+            int node = slots[slot];
+            if (parentIds[node] == parent && frames[node] == frameId) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int node = size;
+        if (node >= maxNodes) {
+            return ROOT;
+        }
+        if (node == parentIds.length) {
+            grow();
+            return getOrAddChild(parent, frameId);
+        }
+        parentIds[node] = parent;
+        frames[node] = frameId;
+        slots[slot] = node;
+        size = node + 1;
+        return node;
+    }
+
+    private void grow() {
+        int capacity = parents.length * 2;
+        int[] parentIds = Arrays.copyOf(parents, capacity);
+        int[] frames = Arrays.copyOf(frameIds, capacity);
+        double[] selfEnergies = Arrays.copyOf(energies, capacity);
+        int[] newSlots = new int[capacity * 2];
+        int mask = newSlots.length - 1;
+        for (int node = ROOT + 1; node < size; node++) {
+            int slot = hash(parentIds[node], frames[node]) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = node;
+        }
+        slots = newSlots;
+        parents = parentIds;
+        frameIds = frames;
+        energies = selfEnergies;
+    }
+
+    private static int hash(int parent, int frameId) {
+        int h = parent * 0x9E3779B9 + frameId;
+        // spread the higher bits, as only the lower bits are used for the slot
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Receives the call path of a node and its self energy.
+     */
+    @FunctionalInterface
+    public interface StackConsumer {
+        void accept(CharSequence foldedStack, double energyInJoule);
+    }
+}
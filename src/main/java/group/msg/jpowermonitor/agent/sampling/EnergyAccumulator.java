@@ -0,0 +1,308 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.Unit;
+import group.msg.jpowermonitor.dto.DataPoint;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Running total of the energy per method, indexed by the frame id of the {@link FrameDictionary}.
+ * <br><br>
+ * Each method has a primitive accumulator ({@link DoubleAdder}), so adding the energy of a method already known
+ * does not allocate any objects. {@link DataPoint}s, including their CO2 value, are only created by {@link #snapshot(boolean)}
+ * when the results are written.
+ * <br><br>
+ * The unfiltered and the filtered view of the data points are maintained incrementally: the package filter is applied once
+ * per method, when its energy is added for the first time, and a snapshot only recreates the data points of the methods
+ * whose energy changed since the previous snapshot.
+ * <br><br>
+ * If the number of methods is bounded, the methods consuming the most energy are tracked with the Space-Saving algorithm
+ * (Metwally et al., "Efficient Computation of Frequent and Top-k Elements in Data Streams"): when a new method arrives
+ * and all slots are taken, the method with the lowest energy is evicted and its energy is added to {@link #OTHER_METHODS}.
+ * The new method is ranked as if it had consumed the energy of the evicted method before, so methods consuming energy steadily
+ * are not evicted by the long tail. The energy of a tracked method is exact since it is tracked, it may be too low by at most
+ * {@link #getMaxErrorInJoule()}, which is also the maximum energy of any method not tracked.
+ * <br><br>
+ * Energy must be added by one thread only (the aggregating thread), snapshots may be taken by any thread.
+ */
+public class EnergyAccumulator {
+    /**
+     * Name of the data point containing the energy of the methods evicted, if the number of methods is bounded.
+     */
+    public static final String OTHER_METHODS = "(other methods)";
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final FrameDictionary frameDictionary;
+    private final PackageFilter packageFilter;
+    private final int maxMethods;
+    // the array is replaced when growing, volatile publishes the new array to threads taking snapshots
+    private volatile MethodEnergy[] energyPerFrame = new MethodEnergy[INITIAL_CAPACITY];
+    // min heap of the tracked methods ordered by their rank, only used by the aggregating thread and only if bounded
+    private final MethodEnergy[] heap;
+    private int heapSize;
+    // frame ids of the methods changed since the previous snapshot, guarded by this
+    private int[] changedFrames = new int[INITIAL_CAPACITY];
+    private int changedCount;
+    // energy of the evicted methods, guarded by this
+    private double otherEnergyInJoule;
+    private double otherFilteredEnergyInJoule;
+    private double maxErrorInJoule;
+    private LocalDateTime otherTime;
+    private boolean otherChanged;
+    private final Map<String, DataPoint> energyPerMethod = new ConcurrentHashMap<>();
+    private final Map<String, DataPoint> energyPerFilteredMethod = new ConcurrentHashMap<>();
+
+    /**
+     * @param frameDictionary dictionary of the frame ids, used to resolve the method names of the snapshots
+     * @param packageFilter   filter deciding which methods are part of the filtered view
+     */
+    public EnergyAccumulator(FrameDictionary frameDictionary, PackageFilter packageFilter) {
+        this(frameDictionary, packageFilter, 0);
+    }
+
+    /**
+     * @param frameDictionary dictionary of the frame ids, used to resolve the method names of the snapshots
+     * @param packageFilter   filter deciding which methods are part of the filtered view
+     * @param maxMethods      maximum number of methods tracked, 0 for all methods
+     */
+    public EnergyAccumulator(FrameDictionary frameDictionary, PackageFilter packageFilter, int maxMethods) {
+        this.frameDictionary = frameDictionary;
+        this.packageFilter = packageFilter;
+        this.maxMethods = Math.max(maxMethods, 0);
+        this.heap = this.maxMethods > 0 ? new MethodEnergy[this.maxMethods] : null;
+    }
+
+    /**
+     * Adds energy to the total of a method.
+     *
+     * @param frameId       id of the method
+     * @param energyInJoule energy to add
+     * @param threadName    name of the thread the energy was consumed by, only kept for the first energy added to the method
+     * @param time          time of the measurement interval the energy was consumed in
+     */
+    public void add(int frameId, double energyInJoule, String threadName, LocalDateTime time) {
+        MethodEnergy[] energies = energyPerFrame;
+        if (frameId >= energies.length) {
+            energies = Arrays.copyOf(energies, Math.max(energies.length * 2, frameId + 1));
+            energyPerFrame = energies;
+        }
+        MethodEnergy methodEnergy = energies[frameId];
+        if (heap == null) {
+            if (methodEnergy == null) {
+                methodEnergy = new MethodEnergy(frameId, threadName, packageFilter.matches(frameDictionary, frameId));
+                energies[frameId] = methodEnergy;
+            }
+        } else if (methodEnergy == null) {
+            methodEnergy = track(energies, frameId, energyInJoule, threadName, time);
+        } else {
+            methodEnergy.rank += energyInJoule;
+            siftDown(methodEnergy.heapIndex);
+        }
+        methodEnergy.energyInJoule.add(energyInJoule);
+        methodEnergy.time = time;
+        // the energy is added before checking the flag, a snapshot clears the flag before reading the energy, so no energy is missed
+        if (!methodEnergy.changed) {
+            markChanged(frameId, methodEnergy);
+        }
+    }
+
+    /**
+     * Tracks a new method, evicting the method with the lowest rank, if all slots are taken.
+     */
+    private MethodEnergy track(MethodEnergy[] energies, int frameId, double energyInJoule, String threadName, LocalDateTime time) {
+        boolean filtered = packageFilter.matches(frameDictionary, frameId);
+        MethodEnergy methodEnergy;
+        if (heapSize < heap.length) {
+            methodEnergy = new MethodEnergy(frameId, threadName, filtered);
+            methodEnergy.rank = energyInJoule;
+            methodEnergy.heapIndex = heapSize;
+            heap[heapSize++] = methodEnergy;
+            siftUp(methodEnergy.heapIndex);
+        } else {
+            MethodEnergy evicted = heap[0];
+            energies[evicted.frameId] = null;
+            evict(evicted, time);
+            methodEnergy = new MethodEnergy(frameId, threadName, filtered);
+            // the new method may have consumed up to the energy of the evicted method before
+            methodEnergy.rank = evicted.rank + energyInJoule;
+            heap[0] = methodEnergy;
+            siftDown(0);
+        }
+        energies[frameId] = methodEnergy;
+        return methodEnergy;
+    }
+
+    private synchronized void evict(MethodEnergy evicted, LocalDateTime time) {
+        double energy = evicted.energyInJoule.sum();
+        otherEnergyInJoule += energy;
+        if (evicted.filtered) {
+            otherFilteredEnergyInJoule += energy;
+        }
+        // the lowest rank never decreases, so the last one evicted is the largest error
+        maxErrorInJoule = evicted.rank;
+        otherTime = time;
+        otherChanged = true;
+        String methodName = frameDictionary.getName(evicted.frameId);
+        energyPerMethod.remove(methodName);
+        energyPerFilteredMethod.remove(methodName);
+    }
+
+    private void siftUp(int index) {
+        MethodEnergy methodEnergy = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].rank <= methodEnergy.rank) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(methodEnergy, index);
+    }
+
+    private void siftDown(int index) {
+        MethodEnergy methodEnergy = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1].rank < heap[child].rank) {
+                child++;
+            }
+            if (methodEnergy.rank <= heap[child].rank) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(methodEnergy, index);
+    }
+
+    private void place(MethodEnergy methodEnergy, int index) {
+        heap[index] = methodEnergy;
+        methodEnergy.heapIndex = index;
+    }
+
+    private synchronized void markChanged(int frameId, MethodEnergy methodEnergy) {
+        if (methodEnergy.changed) {
+            return;
+        }
+        methodEnergy.changed = true;
+        if (changedCount == changedFrames.length) {
+            changedFrames = Arrays.copyOf(changedFrames, changedCount * 2);
+        }
+        changedFrames[changedCount++] = frameId;
+    }
+
+    /**
+     * Updates the data points of the methods changed since the previous snapshot and returns the view.
+     * The view is not copied, data points of later snapshots may become visible while iterating it.
+     *
+     * @param filtered <code>true</code> for the methods matching the package filter only
+     * @return unmodifiable view of the total energy per method name
+     */
+    public Map<String, DataPoint> snapshot(boolean filtered) {
+        updateChangedMethods();
+        return Collections.unmodifiableMap(filtered ? energyPerFilteredMethod : energyPerMethod);
+    }
+
+    private synchronized void updateChangedMethods() {
+        MethodEnergy[] energies = energyPerFrame;
+        for (int i = 0; i < changedCount; i++) {
+            int frameId = changedFrames[i];
+            MethodEnergy methodEnergy = energies[frameId];
+            if (methodEnergy == null) {
+                continue; // evicted meanwhile
+            }
+            methodEnergy.changed = false;
+            String methodName = frameDictionary.getName(frameId);
+            DataPoint dp = new DataPoint(methodName, methodEnergy.energyInJoule.sum(), Unit.JOULE, methodEnergy.time, methodEnergy.threadName);
+            energyPerMethod.put(methodName, dp);
+            if (methodEnergy.filtered) {
+                energyPerFilteredMethod.put(methodName, dp);
+            }
+        }
+        changedCount = 0;
+        if (otherChanged) {
+            otherChanged = false;
+            energyPerMethod.put(OTHER_METHODS, new DataPoint(OTHER_METHODS, otherEnergyInJoule, Unit.JOULE, otherTime, ""));
+            if (otherFilteredEnergyInJoule > 0) {
+                energyPerFilteredMethod.put(OTHER_METHODS, new DataPoint(OTHER_METHODS, otherFilteredEnergyInJoule, Unit.JOULE, otherTime, ""));
+            }
+        }
+    }
+
+    /**
+     * Passes the frame id of every method tracked to the consumer, e.g. in order to keep the ids from being released by the
+     * {@link FrameDictionary}. Must only be called by the thread adding the energy.
+     *
+     * @param consumer the consumer
+     */
+    public void forEachFrame(IntConsumer consumer) {
+        if (heap != null) {
+            for (int i = 0; i < heapSize; i++) {
+                consumer.accept(heap[i].frameId);
+            }
+        } else {
+            MethodEnergy[] energies = energyPerFrame;
+            for (MethodEnergy methodEnergy : energies) {
+                if (methodEnergy != null) {
+                    consumer.accept(methodEnergy.frameId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of frame ids the energy per frame has room for
+     */
+    int getFrameCapacity() {
+        return energyPerFrame.length;
+    }
+
+    /**
+     * @return maximum number of methods tracked, 0 for all methods
+     */
+    public int getMaxMethods() {
+        return maxMethods;
+    }
+
+    /**
+     * @return total energy of the methods evicted so far
+     */
+    public synchronized double getOtherEnergyInJoule() {
+        return otherEnergyInJoule;
+    }
+
+    /**
+     * @return maximum energy a tracked method may be too low, which is also the maximum energy of any method not tracked
+     */
+    public synchronized double getMaxErrorInJoule() {
+        return maxErrorInJoule;
+    }
+
+    private static class MethodEnergy {
+        private final int frameId;
+        private final DoubleAdder energyInJoule = new DoubleAdder();
+        private final String threadName;
+        private final boolean filtered;
+        // energy including the energy the method may have consumed before it was tracked, orders the heap, only used by the aggregating thread
+        private double rank;
+        private int heapIndex;
+        private volatile LocalDateTime time;
+        private volatile boolean changed;
+
+        private MethodEnergy(int frameId, String threadName, boolean filtered) {
+            this.frameId = frameId;
+            this.threadName = threadName;
+            this.filtered = filtered;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.Unit;
+import group.msg.jpowermonitor.dto.DataPoint;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Energy per method in time windows of several resolutions, kept in memory: 60 windows of one second, 60 windows of one minute
+ * and 24 windows of one hour.
+ * <br><br>
+ * Each resolution is a ring of windows aligned to the clock, the window of the current time replaces the oldest one.
+ * A window only contains the methods that consumed energy in it, counted in primitive arrays indexed by the frame id
+ * of the {@link FrameDictionary}. A query sums up the windows of the finest resolution covering the requested time,
+ * so e.g. the methods consuming the most energy in the last 5 minutes are found from 5 windows of one minute.
+ * <br><br>
+ * Energy is added by the aggregating thread, queries may be run by any thread.
+ */
+public class EnergyRollups {
+    private static final long[] RESOLUTIONS_IN_MS = {TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1)};
+    private static final int[] WINDOWS = {60, 60, 24};
+
+    private final FrameDictionary frameDictionary;
+    // windows per resolution, guarded by this
+    private final Window[][] windows = new Window[RESOLUTIONS_IN_MS.length][];
+
+    /**
+     * @param frameDictionary dictionary of the frame ids, used to resolve the method names of the query results
+     */
+    public EnergyRollups(FrameDictionary frameDictionary) {
+        this.frameDictionary = frameDictionary;
+        for (int r = 0; r < RESOLUTIONS_IN_MS.length; r++) {
+            windows[r] = new Window[WINDOWS[r]];
+            for (int w = 0; w < WINDOWS[r]; w++) {
+                windows[r][w] = new Window();
+            }
+        }
+    }
+
+    /**
+     * Adds energy of a method to the windows of all resolutions containing the given time.
+     *
+     * @param frameId       id of the method
+     * @param energyInJoule energy to add
+     * @param timeInMs      time the energy was consumed at, in milliseconds since the epoch
+     */
+    public synchronized void add(int frameId, double energyInJoule, long timeInMs) {
+        for (int r = 0; r < RESOLUTIONS_IN_MS.length; r++) {
+            long start = timeInMs - Math.floorMod(timeInMs, RESOLUTIONS_IN_MS[r]);
+            Window window = windows[r][(int) Math.floorMod(start / RESOLUTIONS_IN_MS[r], (long) WINDOWS[r])];
+            if (window.startInMs != start) {
+                window.clear(start);
+            }
+            window.add(frameId, energyInJoule);
+        }
+    }
+
+    /**
+     * Passes the frame id of every method in any window to the consumer, e.g. in order to keep the ids from being released
+     * by the {@link FrameDictionary}.
+     *
+     * @param consumer the consumer
+     */
+    public synchronized void forEachFrame(IntConsumer consumer) {
+        for (Window[] resolution : windows) {
+            for (Window window : resolution) {
+                window.forEach((frameId, energyInJoule) -> consumer.accept(frameId));
+            }
+        }
+    }
+
+    /**
+     * Finds the methods consuming the most energy in the given time up to now.
+     * The time is rounded up to whole windows of the finest resolution covering it, including the current window,
+     * and limited to the longest time kept (24 hours).
+     *
+     * @param durationInMs time to look back from now
+     * @param nowInMs      current time in milliseconds since the epoch
+     * @param limit        maximum number of methods returned
+     * @param methodFilter filter on the full qualified method names to include
+     * @return energy per method, the method consuming the most energy first
+     */
+    public List<DataPoint> getTopMethods(long durationInMs, long nowInMs, int limit, Predicate<String> methodFilter) {
+        int r = 0;
+        while (r < RESOLUTIONS_IN_MS.length - 1 && durationInMs > RESOLUTIONS_IN_MS[r] * WINDOWS[r]) {
+            r++;
+        }
+        long resolution = RESOLUTIONS_IN_MS[r];
+        int count = (int) Math.min(Math.max((durationInMs + resolution - 1) / resolution, 1), WINDOWS[r]);
+        long currentStart = nowInMs - Math.floorMod(nowInMs, resolution);
+        long oldestStart = currentStart - (count - 1) * resolution;
+        Window sum = new Window();
+        LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(nowInMs), ZoneId.systemDefault());
+        List<DataPoint> result = new ArrayList<>();
+        synchronized (this) {
+            for (Window window : windows[r]) {
+                if (window.startInMs >= oldestStart && window.startInMs <= currentStart) {
+                    window.forEach(sum::add);
+                }
+            }
+            // the names are resolved while the frame ids are referenced by the windows, so they cannot be released meanwhile
+            sum.forEach((frameId, energyInJoule) -> {
+                String methodName = frameDictionary.getName(frameId);
+                if (methodFilter.test(methodName)) {
+                    result.add(new DataPoint(methodName, energyInJoule, Unit.JOULE, now, null));
+                }
+            });
+        }
+        result.sort(Comparator.comparing(DataPoint::getValue).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Energy per frame id within one window, kept in primitive arrays (open addressing).
+     */
+    private static class Window {
+        private static final int INITIAL_CAPACITY = 16;
+        private long startInMs = Long.MIN_VALUE;
+        // each slot contains the frame id + 1, 0 marks an empty slot
+        private int[] frameIds = new int[INITIAL_CAPACITY];
+        private double[] energies = new double[INITIAL_CAPACITY];
+        private int size;
+
+        private void add(int frameId, double energyInJoule) {
+            int mask = frameIds.length - 1;
+            int slot = hash(frameId) & mask;
+            while (frameIds[slot] != 0) {
+                if (frameIds[slot] == frameId + 1) {
+                    energies[slot] += energyInJoule;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            frameIds[slot] = frameId + 1;
+            energies[slot] = energyInJoule;
+            size++;
+            if (size * 2 > frameIds.length) {
+                grow();
+            }
+        }
+
+        private void forEach(EnergyConsumer consumer) {
+            for (int slot = 0; slot < frameIds.length; slot++) {
+                if (frameIds[slot] != 0) {
+                    consumer.accept(frameIds[slot] - 1, energies[slot]);
+                }
+            }
+        }
+
+        private void clear(long startInMs) {
+            this.startInMs = startInMs;
+            Arrays.fill(frameIds, 0);
+            size = 0;
+        }
+
+        private void grow() {
+            int[] oldFrameIds = frameIds;
+            double[] oldEnergies = energies;
+            frameIds = new int[oldFrameIds.length * 2];
+            energies = new double[oldFrameIds.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldFrameIds.length; slot++) {
+                if (oldFrameIds[slot] != 0) {
+                    add(oldFrameIds[slot] - 1, oldEnergies[slot]);
+                }
+            }
+        }
+
+        private static int hash(int frameId) {
+            int h = frameId * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    @FunctionalInterface
+    private interface EnergyConsumer {
+        void accept(int frameId, double energyInJoule);
+    }
+}
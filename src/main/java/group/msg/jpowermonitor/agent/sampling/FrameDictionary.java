@@ -0,0 +1,192 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Dictionary assigning a compact <code>int</code> id to each distinct method (class name and method name) found in a stack.
+ * <br><br>
+ * Looking up a method already known does not allocate any objects, the full qualified method name
+ * (<code>className.methodName</code>) is only built when it is requested for the first time, e.g. when exporting results.
+ * <br><br>
+ * The ids of methods not referenced anymore can be released with {@link #retainOnly(BitSet, IntConsumer)} and are assigned
+ * to new methods then, so the dictionary does not grow with every distinct method seen while the application is running.
+ * <br><br>
+ * Methods must be interned and released by one thread only (the aggregating thread), names may be resolved by any thread
+ * that received the id from the aggregating thread, as long as the id is referenced.
+ */
+public class FrameDictionary {
+    /**
+     * Id representing "no frame", e.g. if no frame of a stack matched the package filter.
+     */
+    public static final int NO_FRAME = -1;
+    private static final String CLASS_METHOD_SEPARATOR = ".";
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // open addressing hash table, each slot contains the frame id + 1 (0 marks an empty slot)
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    // arrays are replaced when growing, volatile publishes the new arrays to threads resolving names
+    private volatile String[] classNames = new String[INITIAL_CAPACITY];
+    private volatile String[] methodNames = new String[INITIAL_CAPACITY];
+    private volatile String[] qualifiedNames = new String[INITIAL_CAPACITY];
+    // ids assigned so far, including the released ones
+    private int idCount;
+    private int size;
+    // released ids, assigned again before new ones
+    private int[] releasedIds = new int[16];
+    private int releasedCount;
+
+    /**
+     * Returns the id of the given method, a new id is assigned if the method has not been seen before.
+     *
+     * @param className  class name of the frame
+     * @param methodName method name of the frame
+     * @return id of the method
+     */
+    public int intern(String className, String methodName) {
+        int hash = hash(className, methodName);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        String[] classes = classNames;
+        String[] methods = methodNames;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && equal(classes[id], className) && equal(methods[id], methodName)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, className, methodName);
+    }
+
+    /**
+     * @param frameId id of the method
+     * @return full qualified name of the method, e.g. <code>java.lang.Thread.run</code>
+     */
+    public String getName(int frameId) {
+        String[] names = qualifiedNames;
+        String name = names[frameId];
+        if (name == null) {
+            // racing threads build equal names, so it does not matter which one is cached
+            name = classNames[frameId] + CLASS_METHOD_SEPARATOR + methodNames[frameId];
+            names[frameId] = name;
+        }
+        return name;
+    }
+
+    /**
+     * @param frameId id of the method
+     * @return class name of the method
+     */
+    public String getClassName(int frameId) {
+        return classNames[frameId];
+    }
+
+    /**
+     * @param frameId id of the method
+     * @return method name of the method
+     */
+    public String getMethodName(int frameId) {
+        return methodNames[frameId];
+    }
+
+    /**
+     * @return number of distinct methods interned and not released
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of ids assigned so far, including the released ones, all ids are less than this
+     */
+    int getIdCount() {
+        return idCount;
+    }
+
+    /**
+     * Releases the ids of all methods not referenced anymore, so that they are assigned to new methods.
+     *
+     * @param referenced ids still referenced, e.g. by the methods tracked
+     * @param released   receives each id released, e.g. in order to remove it from a cache
+     */
+    public void retainOnly(BitSet referenced, IntConsumer released) {
+        String[] classes = classNames;
+        String[] methods = methodNames;
+        String[] names = qualifiedNames;
+        for (int id = 0; id < idCount; id++) {
+            if (classes[id] != null && !referenced.get(id)) {
+                classes[id] = null;
+                methods[id] = null;
+                names[id] = null;
+                if (releasedCount == releasedIds.length) {
+                    releasedIds = Arrays.copyOf(releasedIds, releasedCount * 2);
+                }
+                releasedIds[releasedCount++] = id;
+                size--;
+                released.accept(id);
+            }
+        }
+        rehash(slots.length);
+    }
+
+    private int add(int slot, int hash, String className, String methodName) {
+        int id;
+        if (releasedCount > 0) {
+            id = releasedIds[--releasedCount];
+        } else if (idCount == hashes.length) {
+            grow();
+            return intern(className, methodName);
+        } else {
+            id = idCount++;
+        }
+        hashes[id] = hash;
+        classNames[id] = className;
+        methodNames[id] = methodName;
+        slots[slot] = id + 1;
+        size++;
+        return id;
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        String[] classes = Arrays.copyOf(classNames, capacity);
+        String[] methods = Arrays.copyOf(methodNames, capacity);
+        String[] names = Arrays.copyOf(qualifiedNames, capacity);
+        classNames = classes;
+        methodNames = methods;
+        qualifiedNames = names;
+        rehash(capacity * 2);
+    }
+
+    private void rehash(int slotCount) {
+        String[] classes = classNames;
+        int[] newSlots = new int[slotCount];
+        int mask = newSlots.length - 1;
+        for (int id = 0; id < idCount; id++) {
+            if (classes[id] == null) {
+                continue; // released
+            }
+            int slot = hashes[id] & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+
+    private static int hash(String className, String methodName) {
+        int h = 31 * className.hashCode() + methodName.hashCode();
+        // spread the higher bits, as only the lower bits are used for the slot
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(String a, String b) {
+        // class and method names of stack trace elements are mostly the same instances
+        return a == b || a.equals(b);
+    }
+}
@@ -0,0 +1,255 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ThreadInfo;
+import java.lang.reflect.Method;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the stacks of the running threads with the <code>jdk.ExecutionSample</code> events of an in-process
+ * Java Flight Recorder {@link RecordingStream}.
+ * <br><br>
+ * The JVM takes these samples without bringing the threads to a safepoint, so hot loops are attributed to the method
+ * actually running instead of the next safepoint poll, and the application threads are not halted for sampling.
+ * <br><br>
+ * The events are received by the thread of the recording stream, roughly once per second, and handed over to the sampling
+ * thread in a bounded queue. The <code>jdk.ThreadStart</code> and <code>jdk.ThreadEnd</code> events keep the
+ * {@link ThreadRegistry} up to date, including the native thread ids of the threads. The flight recorder samples only a few
+ * threads per sampling period, thus the samples of a thread do not reflect the time it was running (see {@link #isSamplingAllRunningThreads()}).
+ * <br><br>
+ * On Java 21 and later the flight recorder samples the virtual threads mounted on their carrier threads, with the stack of the
+ * virtual thread. These samples, as well as the samples of the carrier threads themselves, are passed as samples of the
+ * entry {@link ThreadRegistry#VIRTUAL_THREADS_ID}, so the code running on virtual threads is attributed the energy of the
+ * carrier threads. The virtual threads are not registered one by one, so any number of them can be sampled.
+ */
+@Slf4j
+public class JfrSampler implements StackSampler {
+    static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    static final String THREAD_START = "jdk.ThreadStart";
+    static final String THREAD_END = "jdk.ThreadEnd";
+    private static final int QUEUE_CAPACITY = 100_000;
+    // thread group of the carrier threads of the default virtual thread scheduler
+    private static final String CARRIER_THREAD_GROUP = "CarrierThreads";
+    // RecordedThread.isVirtual() is available from Java 21 on, null before
+    private static final Method IS_VIRTUAL = findIsVirtual();
+
+    private final ThreadMXBean threadMXBean;
+    private final int maxStackDepth;
+    private final ThreadRegistry threadRegistry;
+    private final boolean readAllocatedBytes;
+    private final BlockingQueue<JfrEvent> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final RecordingStream recordingStream;
+
+    /**
+     * Constructor, starts the recording stream.
+     *
+     * @param threadMXBean         the thread mx bean to register the threads already running with and to read the CPU time of the sampled threads
+     * @param samplingIntervalInMs interval the flight recorder samples the running threads in
+     * @param maxStackDepth        maximum number of frames to pass per sample, counted from the top of the stack.
+     *                             Values less or equal to zero pass the complete stack recorded.
+     * @param threadRegistry       the registry to register the threads in
+     */
+    public JfrSampler(ThreadMXBean threadMXBean, long samplingIntervalInMs, int maxStackDepth, ThreadRegistry threadRegistry) {
+        this(threadMXBean, samplingIntervalInMs, maxStackDepth, threadRegistry, false);
+    }
+
+    /**
+     * Constructor, starts the recording stream.
+     *
+     * @param threadMXBean         the thread mx bean to register the threads already running with and to read the CPU time of the sampled threads
+     * @param samplingIntervalInMs interval the flight recorder samples the running threads in
+     * @param maxStackDepth        maximum number of frames to pass per sample, counted from the top of the stack.
+     *                             Values less or equal to zero pass the complete stack recorded.
+     * @param threadRegistry       the registry to register the threads in
+     * @param readAllocatedBytes   <code>true</code> in order to keep the bytes allocated by the sampled threads up to date, too
+     */
+    public JfrSampler(ThreadMXBean threadMXBean, long samplingIntervalInMs, int maxStackDepth, ThreadRegistry threadRegistry,
+                      boolean readAllocatedBytes) {
+        this.threadMXBean = threadMXBean;
+        this.readAllocatedBytes = readAllocatedBytes;
+        this.maxStackDepth = maxStackDepth > 0 ? maxStackDepth : Integer.MAX_VALUE;
+        this.threadRegistry = threadRegistry;
+        // threads started later are registered by their start events
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0)) {
+            if (threadInfo != null) {
+                threadRegistry.register(threadInfo.getThreadId(), threadInfo.getThreadName());
+            }
+        }
+        this.recordingStream = new RecordingStream();
+        recordingStream.enable(EXECUTION_SAMPLE).withPeriod(Duration.ofMillis(Math.max(samplingIntervalInMs, 1)));
+        recordingStream.enable(THREAD_START);
+        recordingStream.enable(THREAD_END);
+        recordingStream.onEvent(EXECUTION_SAMPLE, this::onExecutionSample);
+        recordingStream.onEvent(THREAD_START, event -> onThreadEvent(event, JfrEvent.Type.START));
+        recordingStream.onEvent(THREAD_END, event -> onThreadEvent(event, JfrEvent.Type.END));
+        recordingStream.startAsync();
+        log.debug("Started JFR execution sampling with period {} ms", samplingIntervalInMs);
+    }
+
+    /**
+     * Passes the execution samples of the application threads received since the last call to the given handler.
+     *
+     * @param handler the handler to receive the samples
+     */
+    @Override
+    public void sample(SampleHandler handler) {
+        JfrEvent event;
+        while ((event = events.poll()) != null) {
+            switch (event.type) {
+                case START:
+                    register(event);
+                    break;
+                case END:
+                    if (!event.virtual) {
+                        threadRegistry.markTerminated(event.threadId);
+                    }
+                    break;
+                default:
+                    ThreadRegistry.RegisteredThread thread = register(event);
+                    // keep the CPU time and the allocated bytes of running threads up to date, so that they are counted even if the
+                    // threads terminate before the end of the interval
+                    if (!event.virtual && !thread.isCpuTimeFromProc()) {
+                        thread.updateCpuTime(threadMXBean.getThreadCpuTime(event.threadId));
+                    }
+                    if (!event.virtual && readAllocatedBytes) {
+                        thread.updateAllocatedBytes(CpuAndThreadUtils.getThreadAllocatedBytes(threadMXBean, event.threadId));
+                    }
+                    if (event.carrier) {
+                        // the carrier threads run the virtual threads, their own samples are part of the virtual threads' share
+                        thread = threadRegistry.registerVirtualThreads();
+                    }
+                    // the threads of jPowerMonitor are accounted as overhead, not attributed to methods
+                    if (!thread.isAgentThread()) {
+                        handler.onSample(thread.getId(), thread.getName(), event.stackTrace);
+                    }
+            }
+        }
+    }
+
+    @Override
+    public boolean isSamplingAllRunningThreads() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        recordingStream.close();
+        if (droppedEvents.get() > 0) {
+            log.warn("{} JFR events have been dropped, as they were not processed in time", droppedEvents.get());
+        }
+    }
+
+    /**
+     * @return number of events dropped, because the queue to the sampling thread was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    private ThreadRegistry.RegisteredThread register(JfrEvent event) {
+        if (event.virtual) {
+            return threadRegistry.registerVirtualThreads();
+        }
+        ThreadRegistry.RegisteredThread thread = threadRegistry.register(event.threadId, event.threadName);
+        if (event.osThreadId > 0) {
+            thread.setNativeThreadId(event.osThreadId);
+        }
+        if (event.carrier) {
+            threadRegistry.markCarrier(event.threadId);
+        }
+        return thread;
+    }
+
+    private void onExecutionSample(RecordedEvent event) {
+        RecordedThread thread = event.getThread("sampledThread");
+        RecordedStackTrace recordedStackTrace = event.getStackTrace();
+        if (thread == null || thread.getJavaThreadId() < 0 || recordedStackTrace == null) {
+            return;
+        }
+        List<RecordedFrame> frames = recordedStackTrace.getFrames();
+        int depth = Math.min(frames.size(), maxStackDepth);
+        if (depth == 0) {
+            return;
+        }
+        StackTraceElement[] stackTrace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            RecordedFrame frame = frames.get(i);
+            RecordedMethod method = frame.getMethod();
+            stackTrace[i] = new StackTraceElement(method.getType().getName(), method.getName(), null, frame.getLineNumber());
+        }
+        offer(new JfrEvent(JfrEvent.Type.SAMPLE, thread, stackTrace));
+    }
+
+    private void onThreadEvent(RecordedEvent event, JfrEvent.Type type) {
+        RecordedThread thread = event.getThread("thread");
+        if (thread != null && thread.getJavaThreadId() >= 0) {
+            offer(new JfrEvent(type, thread, null));
+        }
+    }
+
+    private static boolean isVirtual(RecordedThread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isCarrier(RecordedThread thread) {
+        return thread.getThreadGroup() != null && CARRIER_THREAD_GROUP.equals(thread.getThreadGroup().getName());
+    }
+
+    private static Method findIsVirtual() {
+        try {
+            return RecordedThread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private void offer(JfrEvent event) {
+        if (!events.offer(event)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    private static class JfrEvent {
+        enum Type { START, SAMPLE, END }
+
+        private final Type type;
+        private final long threadId;
+        private final String threadName;
+        private final long osThreadId;
+        private final boolean virtual;
+        private final boolean carrier;
+        private final StackTraceElement[] stackTrace;
+
+        JfrEvent(Type type, RecordedThread thread, StackTraceElement[] stackTrace) {
+            this.type = type;
+            this.threadId = thread.getJavaThreadId();
+            this.threadName = thread.getJavaName();
+            this.osThreadId = thread.getOSThreadId();
+            this.virtual = isVirtual(thread);
+            this.carrier = !virtual && isCarrier(thread);
+            this.stackTrace = stackTrace;
+        }
+    }
+}
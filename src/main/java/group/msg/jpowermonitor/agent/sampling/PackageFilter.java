@@ -0,0 +1,155 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The configured package filter (<code>javaAgent.packageFilter</code>), compiled once into a prefix trie.
+ * <br><br>
+ * A method matches, if its full qualified name (<code>className.methodName</code>) starts with any of the prefixes.
+ * Matching walks the trie along the name, so it costs at most one step per character of the name, independent of the number of prefixes.
+ * In addition the result is cached per frame id of the {@link FrameDictionary}, so every distinct frame is matched only once.
+ * The cache grows with the ids assigned by the dictionary, ids released by the dictionary must be {@link #release(int) released} here, too.
+ * <br><br>
+ * The trie is immutable and may be used by any thread, the frame cache must only be used by the aggregating thread.
+ */
+public class PackageFilter {
+    private static final char CLASS_METHOD_SEPARATOR = '.';
+    private static final byte UNKNOWN = 0;
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
+
+    private final Node root = new Node();
+    private final boolean empty;
+    private byte[] matchPerFrame = new byte[1024];
+
+    public PackageFilter(Collection<String> prefixes) {
+        this.empty = prefixes.isEmpty();
+        for (String prefix : prefixes) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            node.terminal = true;
+        }
+    }
+
+    /**
+     * @return <code>true</code>, if no prefixes are configured, i.e. no method matches
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param qualifiedName full qualified method name, e.g. <code>java.lang.Thread.run</code>
+     * @return <code>true</code>, if the name starts with any of the prefixes
+     */
+    public boolean matches(String qualifiedName) {
+        Node node = root;
+        for (int i = 0; !node.terminal; i++) {
+            if (i == qualifiedName.length() || (node = node.getChild(qualifiedName.charAt(i))) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #matches(String)} for the full qualified method name <code>className.methodName</code>,
+     * but without building the full qualified method name.
+     */
+    public boolean matches(String className, String methodName) {
+        Node node = root;
+        for (int i = 0; i < className.length() && !node.terminal; i++) {
+            if ((node = node.getChild(className.charAt(i))) == null) {
+                return false;
+            }
+        }
+        if (node.terminal) {
+            return true;
+        }
+        if ((node = node.getChild(CLASS_METHOD_SEPARATOR)) == null) {
+            return false;
+        }
+        for (int i = 0; i < methodName.length() && !node.terminal; i++) {
+            if ((node = node.getChild(methodName.charAt(i))) == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    /**
+     * Same as {@link #matches(String)} for an interned frame, the result is cached per frame id.
+     * Must only be called by the thread interning the frames.
+     *
+     * @param frameDictionary dictionary the frame id has been interned in
+     * @param frameId         id of the frame
+     * @return <code>true</code>, if the frame matches any of the prefixes
+     */
+    public boolean matches(FrameDictionary frameDictionary, int frameId) {
+        if (frameId >= matchPerFrame.length) {
+            matchPerFrame = Arrays.copyOf(matchPerFrame, Math.max(frameId + 1, matchPerFrame.length * 2));
+        }
+        byte match = matchPerFrame[frameId];
+        if (match == UNKNOWN) {
+            match = matches(frameDictionary.getClassName(frameId), frameDictionary.getMethodName(frameId)) ? MATCH : NO_MATCH;
+            matchPerFrame[frameId] = match;
+        }
+        return match == MATCH;
+    }
+
+    /**
+     * Removes the cached result of a frame, whose id has been released by the {@link FrameDictionary}.
+     * Must only be called by the thread interning the frames.
+     *
+     * @param frameId id of the frame released
+     */
+    public void release(int frameId) {
+        if (frameId < matchPerFrame.length) {
+            matchPerFrame[frameId] = UNKNOWN;
+        }
+    }
+
+    /**
+     * @return number of frame ids the cache has room for
+     */
+    int getCacheCapacity() {
+        return matchPerFrame.length;
+    }
+
+    private static class Node {
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+        // sorted labels of the children, children[i] is the child for labels[i]
+        private char[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+        private boolean terminal;
+
+        Node getChild(char label) {
+            int i = Arrays.binarySearch(labels, label);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node getOrAddChild(char label) {
+            int i = Arrays.binarySearch(labels, label);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            Node child = new Node();
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newLabels[insertAt] = label;
+            newChildren[insertAt] = child;
+            System.arraycopy(labels, insertAt, newLabels, insertAt + 1, labels.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+}
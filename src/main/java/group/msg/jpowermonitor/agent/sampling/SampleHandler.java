@@ -0,0 +1,14 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+/**
+ * Receives the stack of a thread that was found running while sampling.
+ */
+@FunctionalInterface
+public interface SampleHandler {
+    /**
+     * @param threadId   id of the sampled thread
+     * @param threadName name of the sampled thread
+     * @param stackTrace stack of the sampled thread, top frame first
+     */
+    void onSample(long threadId, String threadName, StackTraceElement[] stackTrace);
+}
@@ -0,0 +1,127 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single producer, single consumer ring buffer passing the samples from the sampling thread to the
+ * aggregating thread without locks.
+ * <br><br>
+ * A sample is stored as thread id, energy context id and stack in three arrays allocated once, so publishing a sample neither allocates
+ * nor blocks. If the aggregating thread does not keep up and the buffer is full, the sample is dropped and counted
+ * instead of delaying the sampling thread.
+ * <br><br>
+ * Every sample gets a sequence number, counting all samples published so far. The consumer can drain the samples up to
+ * a given sequence, e.g. the sequence published at the end of a measurement interval, so the samples of consecutive
+ * intervals are kept apart.
+ * <br><br>
+ * {@link #offer(long, int, StackTraceElement[])} must be called by one thread only (the sampling thread),
+ * {@link #drain(long, Consumer)} by one other thread only (the aggregating thread).
+ */
+public class SampleRingBuffer {
+    private final int mask;
+    private final long[] threadIds;
+    private final int[] contextIds;
+    private final StackTraceElement[][] stackTraces;
+    // sequence of the next sample to publish, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // sequence of the next sample to consume, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    // the producer's view of the head, only read again when the buffer seems full
+    private long cachedHead;
+
+    /**
+     * Consumer of the samples drained from the buffer.
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        /**
+         * @param threadId   id of the sampled thread
+         * @param contextId  id of the energy context active in the sampled thread
+         * @param stackTrace stack of the sampled thread, top frame first
+         */
+        void accept(long threadId, int contextId, StackTraceElement[] stackTrace);
+    }
+
+    /**
+     * @param capacity number of samples the buffer holds, rounded up to the next power of two
+     */
+    public SampleRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.threadIds = new long[size];
+        this.contextIds = new int[size];
+        this.stackTraces = new StackTraceElement[size][];
+    }
+
+    /**
+     * Publishes a sample.
+     *
+     * @param threadId   id of the sampled thread
+     * @param contextId  id of the energy context active in the sampled thread
+     * @param stackTrace stack of the sampled thread, top frame first
+     * @return <code>true</code>, if published, <code>false</code>, if dropped because the buffer is full
+     */
+    public boolean offer(long threadId, int contextId, StackTraceElement[] stackTrace) {
+        long sequence = tail.get();
+        if (sequence - cachedHead > mask) {
+            cachedHead = head.get();
+            if (sequence - cachedHead > mask) {
+                droppedSamples.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) sequence & mask;
+        threadIds[slot] = threadId;
+        contextIds[slot] = contextId;
+        stackTraces[slot] = stackTrace;
+        // publishes the slot written above to the consumer
+        tail.lazySet(sequence + 1);
+        return true;
+    }
+
+    /**
+     * @return sequence of the next sample to publish, i.e. the number of samples published so far
+     */
+    public long getPublishedSequence() {
+        return tail.get();
+    }
+
+    /**
+     * Passes the samples published before the given sequence to the consumer, and removes them from the buffer.
+     *
+     * @param untilSequence sequence to stop at (exclusive), samples not published yet are not waited for
+     * @param consumer      the consumer of the samples
+     * @return number of samples drained
+     */
+    public int drain(long untilSequence, Consumer consumer) {
+        long sequence = head.get();
+        long end = Math.min(untilSequence, tail.get());
+        int drained = 0;
+        for (; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            StackTraceElement[] stackTrace = stackTraces[slot];
+            // the stack is not referenced by the buffer anymore, so it can be garbage collected once processed
+            stackTraces[slot] = null;
+            consumer.accept(threadIds[slot], contextIds[slot], stackTrace);
+            drained++;
+        }
+        // frees the slots read above for the producer
+        head.lazySet(sequence);
+        return drained;
+    }
+
+    /**
+     * @return number of samples the buffer holds
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return number of samples dropped so far, because the buffer was full
+     */
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+}
@@ -0,0 +1,110 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Controls the interval the stacks are sampled in, so that the CPU time spent for sampling stays within an overhead budget.
+ * <br><br>
+ * The CPU time of every sampling tick is recorded. At the end of each measurement interval the overhead is calculated as
+ * the CPU time of all ticks relative to the elapsed time, and the sampling interval for the next measurement interval is
+ * derived from the average CPU time per tick: <code>interval = cpuTimePerTick / budget</code>.
+ * The CPU time per tick is smoothed over the measurement intervals and the interval is only changed by more than 10 percent,
+ * so that it does not jitter. It never falls below the configured gather statistics interval and never exceeds the
+ * measurement interval.
+ * As the interval only changes between measurement intervals, all samples of a measurement interval have the same weight.
+ * <br><br>
+ * Without a budget the sampling interval is fixed, the overhead is reported nevertheless.
+ * <br><br>
+ * Ticks must be recorded by one thread only (the sampling thread), the statistics may be read by any thread.
+ */
+@Slf4j
+public class SamplingIntervalController {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    // weight of the latest measurement interval in the smoothed CPU time per tick
+    private static final double SMOOTHING_FACTOR = 0.5;
+    private static final double MIN_RELATIVE_CHANGE = 0.1;
+    private final long minIntervalInMs;
+    private final long maxIntervalInMs;
+    private final double overheadBudget;
+    private volatile long intervalInMs;
+    private volatile double overheadInPercent;
+    private long tickCpuTimeInNs;
+    private int ticks;
+    private double smoothedCpuTimePerTickInMs = -1;
+
+    /**
+     * @param minIntervalInMs          minimum (and initial) sampling interval
+     * @param maxIntervalInMs          maximum sampling interval
+     * @param overheadBudgetInPercent CPU time allowed for sampling in percent of one core, values less or equal to zero
+     *                                 keep the sampling interval fixed
+     */
+    public SamplingIntervalController(long minIntervalInMs, long maxIntervalInMs, double overheadBudgetInPercent) {
+        this.minIntervalInMs = Math.max(minIntervalInMs, 1);
+        this.maxIntervalInMs = Math.max(maxIntervalInMs, this.minIntervalInMs);
+        this.overheadBudget = overheadBudgetInPercent / 100.0;
+        this.intervalInMs = this.minIntervalInMs;
+    }
+
+    /**
+     * @return <code>true</code>, if the sampling interval is adapted to an overhead budget
+     */
+    public boolean isAdaptive() {
+        return overheadBudget > 0;
+    }
+
+    /**
+     * @return the current sampling interval in milliseconds
+     */
+    public long getIntervalInMs() {
+        return intervalInMs;
+    }
+
+    /**
+     * @return the current sampling rate in samples per second
+     */
+    public double getSamplesPerSecond() {
+        return 1000.0 / intervalInMs;
+    }
+
+    /**
+     * @return CPU time spent for sampling in the last measurement interval, in percent of one core
+     */
+    public double getOverheadInPercent() {
+        return overheadInPercent;
+    }
+
+    /**
+     * Records the CPU time of one sampling tick.
+     *
+     * @param cpuTimeInNs CPU time of the tick in nanoseconds
+     */
+    public void recordTick(long cpuTimeInNs) {
+        tickCpuTimeInNs += Math.max(cpuTimeInNs, 0);
+        ticks++;
+    }
+
+    /**
+     * Ends a measurement interval: calculates the overhead and adapts the sampling interval for the next measurement interval.
+     *
+     * @param elapsedTimeInNs time elapsed during the measurement interval in nanoseconds
+     */
+    public void endInterval(long elapsedTimeInNs) {
+        if (elapsedTimeInNs > 0) {
+            overheadInPercent = 100.0 * tickCpuTimeInNs / elapsedTimeInNs;
+        }
+        if (isAdaptive() && ticks > 0) {
+            double cpuTimePerTickInMs = tickCpuTimeInNs / NANOS_PER_MILLI / ticks;
+            smoothedCpuTimePerTickInMs = smoothedCpuTimePerTickInMs < 0
+                ? cpuTimePerTickInMs
+                : SMOOTHING_FACTOR * cpuTimePerTickInMs + (1 - SMOOTHING_FACTOR) * smoothedCpuTimePerTickInMs;
+            long newIntervalInMs = Math.min(maxIntervalInMs, Math.max(minIntervalInMs, (long) Math.ceil(smoothedCpuTimePerTickInMs / overheadBudget)));
+            if (Math.abs(newIntervalInMs - intervalInMs) > intervalInMs * MIN_RELATIVE_CHANGE) {
+                log.debug("Sampling overhead {}% of budget {}%: changing sampling interval from {} ms to {} ms",
+                    String.format("%.2f", overheadInPercent), String.format("%.2f", overheadBudget * 100), intervalInMs, newIntervalInMs);
+                intervalInMs = newIntervalInMs;
+            }
+        }
+        tickCpuTimeInNs = 0;
+        ticks = 0;
+    }
+}
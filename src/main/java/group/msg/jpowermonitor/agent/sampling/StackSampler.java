@@ -0,0 +1,32 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+/**
+ * Source of the stack samples of the running threads.
+ * <br><br>
+ * {@link #sample(SampleHandler)} is called by the sampling thread once per gather statistics interval.
+ */
+public interface StackSampler {
+
+    /**
+     * Passes the samples of the running threads to the given handler and keeps the thread registry up to date.
+     * Threads run by jPowerMonitor itself are registered, but not passed to the handler.
+     *
+     * @param handler the handler to receive the samples
+     */
+    void sample(SampleHandler handler);
+
+    /**
+     * @return <code>true</code>, if every call of {@link #sample(SampleHandler)} samples all running threads.
+     * Otherwise, the number of samples per thread does not reflect the time the thread was running, so the energy of a thread
+     * has to be distributed over the samples actually taken of it.
+     */
+    default boolean isSamplingAllRunningThreads() {
+        return true;
+    }
+
+    /**
+     * Stops sampling and releases all resources.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,132 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Samples the stacks of all running threads with one bulk call to {@link ThreadMXBean#dumpAllThreads(boolean, boolean, int)}.
+ * <br><br>
+ * Compared to calling <code>Thread.getState()</code> and <code>Thread.getStackTrace()</code> for each thread,
+ * the JVM only has to bring all threads to a halt once per sample instead of once per thread.
+ * The same dump is used to keep the {@link ThreadRegistry} up to date, including the CPU time of the running threads.
+ * <br><br>
+ * Virtual threads (Java 21+) are not part of the dump, and their carrier threads are dumped as waiting in
+ * <code>Continuation.run</code>, so the code running on virtual threads is not sampled. A warning is logged once,
+ * if a carrier thread is seen.
+ */
+@Slf4j
+public class ThreadDumpSampler implements StackSampler {
+    private static final String CONTINUATION_CLASS_NAME = "jdk.internal.vm.Continuation";
+    private final ThreadMXBean threadMXBean;
+    private final int maxStackDepth;
+    private final ThreadRegistry threadRegistry;
+    private final boolean readAllocatedBytes;
+    // running threads of the current sample, their CPU time is read in bulk after the sample
+    private long[] runningThreadIds = new long[64];
+    private ThreadRegistry.RegisteredThread[] runningThreads = new ThreadRegistry.RegisteredThread[64];
+    private int runningThreadCount;
+    private boolean virtualThreadsDetected;
+
+    /**
+     * Constructor
+     *
+     * @param threadMXBean   the thread mx bean to dump the threads with
+     * @param maxStackDepth  maximum number of frames to capture per thread, counted from the top of the stack.
+     *                       Values less or equal to zero capture the complete stack.
+     * @param threadRegistry the registry to register all dumped threads in
+     */
+    public ThreadDumpSampler(ThreadMXBean threadMXBean, int maxStackDepth, ThreadRegistry threadRegistry) {
+        this(threadMXBean, maxStackDepth, threadRegistry, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threadMXBean       the thread mx bean to dump the threads with
+     * @param maxStackDepth      maximum number of frames to capture per thread, counted from the top of the stack.
+     *                           Values less or equal to zero capture the complete stack.
+     * @param threadRegistry     the registry to register all dumped threads in
+     * @param readAllocatedBytes <code>true</code> in order to keep the bytes allocated by the running threads up to date, too
+     */
+    public ThreadDumpSampler(ThreadMXBean threadMXBean, int maxStackDepth, ThreadRegistry threadRegistry, boolean readAllocatedBytes) {
+        this.threadMXBean = threadMXBean;
+        this.maxStackDepth = maxStackDepth > 0 ? maxStackDepth : Integer.MAX_VALUE;
+        this.threadRegistry = threadRegistry;
+        this.readAllocatedBytes = readAllocatedBytes;
+    }
+
+    /**
+     * Takes one sample of all threads and passes the stacks of the application threads currently running
+     * (not waiting or blocked) to the given handler.
+     *
+     * @param handler the handler to receive the samples
+     */
+    @Override
+    public void sample(SampleHandler handler) {
+        ThreadInfo[] threadInfos = threadMXBean.dumpAllThreads(false, false, maxStackDepth);
+        threadRegistry.beginTick();
+        for (ThreadInfo threadInfo : threadInfos) {
+            // threads may have terminated between collecting the ids and dumping them
+            if (threadInfo == null) {
+                continue;
+            }
+            ThreadRegistry.RegisteredThread thread = threadRegistry.register(threadInfo.getThreadId(), threadInfo.getThreadName());
+            if (Thread.State.RUNNABLE != threadInfo.getThreadState()) {
+                if (!virtualThreadsDetected && isCarrierOfVirtualThread(threadInfo.getStackTrace())) {
+                    virtualThreadsDetected = true;
+                    log.warn("Virtual threads are running, but they are not sampled with thread dumps. "
+                        + "Configure 'javaAgent.samplingMethod: jfr' in order to attribute their energy");
+                }
+                continue;
+            }
+            if (!thread.isCpuTimeFromProc() || readAllocatedBytes) {
+                addRunningThread(thread);
+            }
+            // the threads of jPowerMonitor are accounted as overhead, not attributed to methods
+            if (thread.isAgentThread()) {
+                continue;
+            }
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+            if (stackTrace.length == 0) {
+                continue;
+            }
+            handler.onSample(threadInfo.getThreadId(), threadInfo.getThreadName(), stackTrace);
+        }
+        threadRegistry.endTick();
+        // keep the CPU time and the allocated bytes of running threads up to date, so that they are counted even if the threads
+        // terminate before the end of the interval, the CPU time read from the proc file system is not replaced
+        long[] threadIds = Arrays.copyOf(runningThreadIds, runningThreadCount);
+        long[] cpuTimes = CpuAndThreadUtils.getThreadCpuTimes(threadMXBean, threadIds);
+        long[] allocatedBytes = readAllocatedBytes ? CpuAndThreadUtils.getThreadAllocatedBytes(threadMXBean, threadIds) : null;
+        for (int i = 0; i < runningThreadCount; i++) {
+            runningThreads[i].updateCpuTime(cpuTimes[i]);
+            if (allocatedBytes != null) {
+                runningThreads[i].updateAllocatedBytes(allocatedBytes[i]);
+            }
+            runningThreads[i] = null;
+        }
+        runningThreadCount = 0;
+    }
+
+    /**
+     * @param stackTrace stack of a thread, top frame first
+     * @return <code>true</code>, if the thread is a carrier thread currently running a virtual thread
+     */
+    static boolean isCarrierOfVirtualThread(StackTraceElement[] stackTrace) {
+        return stackTrace.length > 0 && CONTINUATION_CLASS_NAME.equals(stackTrace[0].getClassName()) && "run".equals(stackTrace[0].getMethodName());
+    }
+
+    private void addRunningThread(ThreadRegistry.RegisteredThread thread) {
+        if (runningThreadCount == runningThreadIds.length) {
+            runningThreadIds = Arrays.copyOf(runningThreadIds, runningThreadCount * 2);
+            runningThreads = Arrays.copyOf(runningThreads, runningThreadCount * 2);
+        }
+        runningThreadIds[runningThreadCount] = thread.getId();
+        runningThreads[runningThreadCount++] = thread;
+    }
+}
@@ -0,0 +1,74 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the sampling ticks of one measurement interval at fixed deadlines of the monotonic clock ({@link System#nanoTime()}).
+ * <br><br>
+ * The ticks are due at <code>start, start + period, start + 2 * period, ...</code> as long as they are before the end of the
+ * sampling window. The time spent for sampling is part of the period, so it does not shift the following ticks.
+ * If a tick took longer than a period, the deadlines that have already passed are counted as missed and skipped,
+ * so the ticks do not pile up.
+ * <br><br>
+ * A scheduler is used by one thread only (the sampling thread) for one measurement interval.
+ */
+public class TickScheduler {
+    private final long periodInNs;
+    private final long endInNs;
+    private long deadlineInNs;
+    private int ticks;
+    private int missedTicks;
+
+    /**
+     * @param startInNs    time of the first tick, as given by {@link System#nanoTime()}
+     * @param periodInNs   time between two ticks
+     * @param durationInNs duration of the sampling window, no tick is due at or after its end
+     */
+    public TickScheduler(long startInNs, long periodInNs, long durationInNs) {
+        this.periodInNs = Math.max(periodInNs, 1);
+        this.endInNs = startInNs + durationInNs;
+        this.deadlineInNs = startInNs;
+    }
+
+    /**
+     * Waits until the next tick is due.
+     *
+     * @return <code>true</code>, if the next tick is due, <code>false</code>, if the sampling window has ended
+     * @throws InterruptedException if interrupted while waiting, the tick is due immediately then
+     */
+    public boolean awaitNextTick() throws InterruptedException {
+        if (ticks > 0 || missedTicks > 0) {
+            deadlineInNs += periodInNs;
+        }
+        long now = System.nanoTime();
+        long late = now - deadlineInNs;
+        if (late >= periodInNs) {
+            // the previous tick took longer than a period: skip the deadlines passed meanwhile, but only within the window
+            long passed = Math.min(late / periodInNs, Math.max((endInNs - deadlineInNs + periodInNs - 1) / periodInNs, 0));
+            missedTicks += (int) passed;
+            deadlineInNs += passed * periodInNs;
+        }
+        if (deadlineInNs - endInNs >= 0) {
+            return false;
+        }
+        ticks++;
+        if (deadlineInNs - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(deadlineInNs - now);
+        }
+        return true;
+    }
+
+    /**
+     * @return number of ticks that were due so far
+     */
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * @return number of ticks skipped, because a previous tick took longer than a period
+     */
+    public int getMissedTicks() {
+        return missedTicks;
+    }
+}
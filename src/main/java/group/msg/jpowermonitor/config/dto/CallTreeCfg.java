@@ -0,0 +1,12 @@
+package group.msg.jpowermonitor.config.dto;
+
+import lombok.Data;
+
+/**
+ * Data element for call tree config.
+ */
+@Data
+public class CallTreeCfg {
+    boolean enabled; // Default: false
+    Integer maxNodes;
+}
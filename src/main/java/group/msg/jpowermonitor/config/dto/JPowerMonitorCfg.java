@@ -71,10 +71,21 @@ public class JPowerMonitorCfg {
         setDefaultIfNotSet(percentageOfSamplesAtBeginningToDiscard, this::setPercentageOfSamplesAtBeginningToDiscard, 15.0);
         setDefaultIfNotSet(javaAgent.getMonitoring().getPrometheus().getHttpPort(), javaAgent.getMonitoring().getPrometheus()::setHttpPort, 1234);
         setDefaultIfNotSet(javaAgent.getMonitoring().getPrometheus().getWriteEnergyIntervalInS(), javaAgent.getMonitoring().getPrometheus()::setWriteEnergyIntervalInS, 30L);
+        setDefaultIfNotSet(javaAgent.getSamplingMethod(), javaAgent::setSamplingMethod, SamplingMethodKey.THREAD_DUMP.getKey());
+        javaAgent.getSamplingMethodKey(); // fail early on unknown sampling methods
+        setDefaultIfNotSet(javaAgent.getThreadCpuTimeSource(), javaAgent::setThreadCpuTimeSource, ThreadCpuTimeSourceKey.JMX.getKey());
+        javaAgent.getThreadCpuTimeSourceKey(); // fail early on unknown thread CPU time sources
+        setDefaultIfNotSet(javaAgent.getCallTree().getMaxNodes(), javaAgent.getCallTree()::setMaxNodes, 100_000);
 
         setCo2EmissionFactor(Objects.requireNonNullElse(carbonDioxideEmissionFactor, 485.0));
         setCarbonDioxideEmissionFactor(Objects.requireNonNullElse(carbonDioxideEmissionFactor, 485.0));
         javaAgent.setPackageFilter(Objects.requireNonNullElse(javaAgent.getPackageFilter(), Collections.emptySet()));
+        javaAgent.setThreadGroups(Objects.requireNonNullElse(javaAgent.getThreadGroups(), Collections.emptyList()));
+        for (ThreadGroupCfg threadGroup : javaAgent.getThreadGroups()) {
+            if (threadGroup == null || threadGroup.getPattern() == null || threadGroup.getName() == null) {
+                throw new JPowerMonitorException("A pattern and a name must be configured for each thread group");
+            }
+        }
     }
 
     public static void setCo2EmissionFactor(Double carbonDioxideEmissionFactor) {
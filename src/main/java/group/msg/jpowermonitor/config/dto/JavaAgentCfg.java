@@ -5,6 +5,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -17,6 +18,25 @@ public class JavaAgentCfg {
     private Set<String> packageFilter = Collections.emptySet();
     private long measurementIntervalInMs;
     private long gatherStatisticsIntervalInMs;
+    private int maxStackDepth; // Default: 0 = complete stack
+    private int maxTrackedMethods; // Default: 0 = energy of all methods tracked
+    private boolean inclusiveEnergy; // Default: false = energy of the top frame only
+    private double maxSamplingOverheadInPercent; // Default: 0 = fixed sampling interval
+    private double allocationEnergyShareInPercent; // Default: 0 = power distributed by CPU time only
+    private String samplingMethod = SamplingMethodKey.THREAD_DUMP.getKey(); // sadly snakeyaml does not support using Enums as attributes.
+    private String threadCpuTimeSource = ThreadCpuTimeSourceKey.JMX.getKey();
+    private List<ThreadGroupCfg> threadGroups = Collections.emptyList(); // Default: thread names are kept as they are
+    private int maxContextTags = 1000; // Default: 1000 distinct tags of the energy contexts, 0 = default as well
+    private boolean propagateEnergyContext = true; // Default: true = the tags of the energy contexts are passed to the tasks of the JDK executors
     private long writeEnergyMeasurementsToCsvIntervalInS;
+    private CallTreeCfg callTree = new CallTreeCfg();
     private MonitoringCfg monitoring = new MonitoringCfg();
+
+    public SamplingMethodKey getSamplingMethodKey() {
+        return SamplingMethodKey.of(samplingMethod);
+    }
+
+    public ThreadCpuTimeSourceKey getThreadCpuTimeSourceKey() {
+        return ThreadCpuTimeSourceKey.of(threadCpuTimeSource);
+    }
 }
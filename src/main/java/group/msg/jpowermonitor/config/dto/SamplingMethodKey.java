@@ -0,0 +1,27 @@
+package group.msg.jpowermonitor.config.dto;
+
+import group.msg.jpowermonitor.JPowerMonitorException;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+@Getter
+public enum SamplingMethodKey {
+    THREAD_DUMP("threadDump", "Thread dumps of all threads"),
+    JFR("jfr", "Java Flight Recorder execution samples");
+
+    private final String key;
+    private final String name;
+
+    SamplingMethodKey(String k, String n) {
+        this.key = k;
+        this.name = n;
+    }
+
+    public static SamplingMethodKey of(String providedKey) {
+        return Arrays.stream(values())
+            .filter(v -> v.getKey().equalsIgnoreCase(providedKey))
+            .findFirst()
+            .orElseThrow(() -> new JPowerMonitorException("Unable to recognize SamplingMethod with key " + providedKey));
+    }
+}
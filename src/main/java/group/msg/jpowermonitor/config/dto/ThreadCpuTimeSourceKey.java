@@ -0,0 +1,27 @@
+package group.msg.jpowermonitor.config.dto;
+
+import group.msg.jpowermonitor.JPowerMonitorException;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+@Getter
+public enum ThreadCpuTimeSourceKey {
+    JMX("jmx", "ThreadMXBean CPU time per thread"),
+    PROC("proc", "Linux /proc/self/task/<tid>/stat of all threads");
+
+    private final String key;
+    private final String name;
+
+    ThreadCpuTimeSourceKey(String k, String n) {
+        this.key = k;
+        this.name = n;
+    }
+
+    public static ThreadCpuTimeSourceKey of(String providedKey) {
+        return Arrays.stream(values())
+            .filter(v -> v.getKey().equalsIgnoreCase(providedKey))
+            .findFirst()
+            .orElseThrow(() -> new JPowerMonitorException("Unable to recognize ThreadCpuTimeSource with key " + providedKey));
+    }
+}
@@ -0,0 +1,18 @@
+package group.msg.jpowermonitor.config.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Data class for a thread group config: threads whose name matches the pattern are reported as one thread group.
+ *
+ * @see JavaAgentCfg
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ThreadGroupCfg {
+    private String pattern; // regular expression matching the complete thread name
+    private String name; // name of the thread group, may refer to the groups of the pattern, e.g. $1
+}
@@ -10,6 +10,7 @@ import group.msg.jpowermonitor.util.CpuAndThreadUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
+import java.lang.management.ThreadMXBean;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
@@ -54,14 +55,12 @@ public class EstimationReader implements MeasureMethod {
 
     public double getCpuUsage() {
         // see https://www.cloudcarbonfootprint.org/docs/methodology/#energy-estimate-watt-hours
-        long[] ids = CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication().getAllThreadIds();
+        ThreadMXBean threadMXBean = CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication();
+        long[] ids = threadMXBean.getAllThreadIds();
 
         // Init measurement start time and CPU time
         long startTime = System.nanoTime();
-        long startCpuTime = 0L;
-        for (long id : ids) {
-            startCpuTime += CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication().getThreadCpuTime(id);
-        }
+        long[] startCpuTimes = CpuAndThreadUtils.getThreadCpuTimes(threadMXBean, ids);
 
         // Wait for 100ms (WAIT_TIME_ESTIMATION_MS)
         try {
@@ -72,13 +71,16 @@ public class EstimationReader implements MeasureMethod {
 
         // End measurement and add CPU time of all threads
         long endTime = System.nanoTime();
-        long endCpuTime = 0L;
-        for (long id : ids) {
-            endCpuTime += CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication().getThreadCpuTime(id);
+        long[] endCpuTimes = CpuAndThreadUtils.getThreadCpuTimes(threadMXBean, ids);
+        long elapsedCpu = 0L;
+        for (int i = 0; i < ids.length; i++) {
+            // threads terminated meanwhile (-1) cannot be considered
+            if (startCpuTimes[i] >= 0 && endCpuTimes[i] >= startCpuTimes[i]) {
+                elapsedCpu += endCpuTimes[i] - startCpuTimes[i];
+            }
         }
 
         // Calculate approximated CPU usage in the last 100ms
-        long elapsedCpu = endCpuTime - startCpuTime;
         long elapsedTime = endTime - startTime;
         double cpuUsage = (double) elapsedCpu / elapsedTime;
 
@@ -1,14 +1,17 @@
 package group.msg.jpowermonitor.util;
 
+import group.msg.jpowermonitor.agent.ThreadRegistry;
 import group.msg.jpowermonitor.dto.DataPoint;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 import static group.msg.jpowermonitor.util.Constants.ONE_HUNDRED;
 
@@ -20,6 +23,8 @@ import static group.msg.jpowermonitor.util.Constants.ONE_HUNDRED;
 @Slf4j
 public class CpuAndThreadUtils {
 
+    // Linux limits thread names to 16 bytes including the terminating null byte
+    private static final int NATIVE_THREAD_NAME_LENGTH = 15;
     private static ThreadMXBean threadMXBean;
 
     @NotNull
@@ -39,32 +44,294 @@ public class CpuAndThreadUtils {
         return threadMXBean;
     }
 
-    public static long getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(ThreadMXBean threadMxBean, Map<String, Long> cpuTimePerApplicationThread, Set<Thread> applicationThreads) {
+    /**
+     * Reads the CPU time consumed by all threads of the process, including the threads of the JVM, e.g. garbage collection.
+     *
+     * @return CPU time of the process in nanoseconds, -1 if not supported by the JVM
+     */
+    public static long getProcessCpuTime() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        }
+        return -1L;
+    }
+
+    /**
+     * Enables the measurement of the bytes allocated per thread, if supported by the JVM.
+     *
+     * @param threadMxBean the thread mx bean to read the allocated bytes with
+     * @return <code>true</code>, if the bytes allocated per thread can be read
+     */
+    public static boolean enableThreadAllocatedMemory(ThreadMXBean threadMxBean) {
+        if (!(threadMxBean instanceof com.sun.management.ThreadMXBean)
+            || !((com.sun.management.ThreadMXBean) threadMxBean).isThreadAllocatedMemorySupported()) {
+            return false;
+        }
+        if (!((com.sun.management.ThreadMXBean) threadMxBean).isThreadAllocatedMemoryEnabled()) {
+            ((com.sun.management.ThreadMXBean) threadMxBean).setThreadAllocatedMemoryEnabled(true);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the CPU time of the given threads. If supported by the JVM, all threads are read with one call of
+     * {@link com.sun.management.ThreadMXBean#getThreadCpuTime(long[])}, which looks up all threads at once instead
+     * of one by one. Otherwise, the threads are read one by one.
+     *
+     * @param threadMxBean the thread mx bean to read the CPU time with
+     * @param threadIds    ids of the threads, must be positive
+     * @return CPU time in nanoseconds per thread, in the order of the ids given, -1 for threads not alive anymore
+     */
+    public static long[] getThreadCpuTimes(ThreadMXBean threadMxBean, long[] threadIds) {
+        if (threadMxBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMxBean).getThreadCpuTime(threadIds);
+        }
+        long[] cpuTimes = new long[threadIds.length];
+        for (int i = 0; i < threadIds.length; i++) {
+            cpuTimes[i] = threadMxBean.getThreadCpuTime(threadIds[i]);
+        }
+        return cpuTimes;
+    }
+
+    /**
+     * Reads the CPU time of all registered threads with the thread mx bean and ends their CPU time interval.
+     *
+     * @param threadMxBean   the thread mx bean to read the CPU time with
+     * @param threadRegistry the registry of the threads, keeping the CPU time per thread
+     * @return the CPU time consumed by all threads in the interval
+     * @see #getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(ThreadMXBean, ProcThreadCpuReader, ThreadRegistry)
+     */
+    public static long getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(ThreadMXBean threadMxBean, ThreadRegistry threadRegistry) {
+        return getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMxBean, null, threadRegistry);
+    }
+
+    /**
+     * Reads the CPU time of all registered threads and ends their CPU time interval.
+     * Threads terminated since the last interval are counted with the CPU time read last while they were running.
+     * <br><br>
+     * If a proc reader is given, the CPU time of all native threads is read in one pass from the proc file system and
+     * the threads mapped to a native thread are updated from it, including their user and system time (see
+     * {@link #updateCpuTimesFromProc(ProcThreadCpuReader, ThreadRegistry)}). Only the remaining threads are read with
+     * the thread mx bean.
+     *
+     * @param threadMxBean        the thread mx bean to read the CPU time with
+     * @param procThreadCpuReader the reader of the proc file system, <code>null</code> to read all threads with the thread mx bean
+     * @param threadRegistry      the registry of the threads, keeping the CPU time per thread
+     * @return the CPU time consumed by all threads in the interval
+     */
+    public static long getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(ThreadMXBean threadMxBean, ProcThreadCpuReader procThreadCpuReader,
+                                                                                        ThreadRegistry threadRegistry) {
+        if (procThreadCpuReader != null) {
+            updateCpuTimesFromProc(procThreadCpuReader, threadRegistry);
+        }
+        Collection<ThreadRegistry.RegisteredThread> threads = threadRegistry.getThreads();
+        ThreadRegistry.RegisteredThread[] liveThreads = new ThreadRegistry.RegisteredThread[threads.size()];
+        long[] liveThreadIds = new long[threads.size()];
+        int liveThreadCount = 0;
+        for (ThreadRegistry.RegisteredThread t : threads) {
+            // virtual threads are attributed the CPU time of their carrier threads,
+            // a terminated thread's CPU time is not available anymore, the time read last is kept then
+            if (!t.isVirtualThreads() && !t.isTerminated() && !t.isCpuTimeFromProc()) {
+                liveThreads[liveThreadCount] = t;
+                liveThreadIds[liveThreadCount++] = t.getId();
+            }
+        }
+        long[] cpuTimes = getThreadCpuTimes(threadMxBean, Arrays.copyOf(liveThreadIds, liveThreadCount));
+        for (int i = 0; i < liveThreadCount; i++) {
+            liveThreads[i].updateCpuTime(cpuTimes[i]);
+        }
         long totalApplicationCpuTime = 0L;
-        for (Thread t : applicationThreads) {
-            long applicationThreadCpuTime = threadMxBean.getThreadCpuTime(t.getId()); // use t.threadId() with JDK 21
+        for (ThreadRegistry.RegisteredThread t : threads) {
+            if (!t.isVirtualThreads()) {
+                totalApplicationCpuTime += t.endCpuTimeInterval();
+            }
+        }
+        return totalApplicationCpuTime;
+    }
 
-            // If thread already monitored, then calculate CPU time since last time
-            if (cpuTimePerApplicationThread.containsKey(t.getName())) {
-                applicationThreadCpuTime -= cpuTimePerApplicationThread.get(t.getName());
+    /**
+     * Updates the CPU time of the registered threads from the proc file system, read in one pass for all native threads.
+     * <br><br>
+     * A registered thread is mapped to its native thread by the native thread id, if known (e.g. from the flight recorder).
+     * Otherwise, it is mapped by its name: the JVM names the native threads after the Java threads, truncated to 15 bytes,
+     * so a thread is mapped, if its truncated name is unique among all Java threads as well as among all native threads.
+     * A mapping is kept until the thread terminates. Threads not mapped, e.g. the main thread, whose native
+     * thread is named after the launcher, are read with the thread mx bean.
+     *
+     * @param procThreadCpuReader the reader of the proc file system
+     * @param threadRegistry      the registry of the threads, keeping the CPU time per thread
+     */
+    static void updateCpuTimesFromProc(ProcThreadCpuReader procThreadCpuReader, ThreadRegistry threadRegistry) {
+        Map<Long, ProcThreadCpuReader.NativeThreadCpuTime> nativeThreads = procThreadCpuReader.readThreadCpuTimes();
+        // a name mapped to null is ambiguous: the names of all threads count, including the ones mapped already,
+        // e.g. pool-1-thread-1 and pool-1-thread-10 are both truncated to pool-1-thread-1 and cannot be told apart
+        Map<String, Long> nativeThreadIdsByName = new HashMap<>();
+        for (ProcThreadCpuReader.NativeThreadCpuTime nativeThread : nativeThreads.values()) {
+            putUnlessAmbiguous(nativeThreadIdsByName, nativeThread.getName(), nativeThread.getTid());
+        }
+        Map<String, ThreadRegistry.RegisteredThread> threadsByNativeName = new HashMap<>();
+        boolean unmappedThreads = false;
+        for (ThreadRegistry.RegisteredThread t : threadRegistry.getThreads()) {
+            if (t.isVirtualThreads()) {
+                continue;
+            }
+            String nativeName = toNativeThreadName(t.getName());
+            if (nativeName != null) {
+                putUnlessAmbiguous(threadsByNativeName, nativeName, t);
+            }
+            if (t.isTerminated()) {
+                continue;
             }
+            if (t.getNativeThreadId() > 0) {
+                updateCpuTime(t, nativeThreads.get(t.getNativeThreadId()));
+            } else {
+                unmappedThreads = true;
+            }
+        }
+        if (!unmappedThreads) {
+            return;
+        }
+        for (Map.Entry<String, ThreadRegistry.RegisteredThread> entry : threadsByNativeName.entrySet()) {
+            ThreadRegistry.RegisteredThread t = entry.getValue();
+            Long nativeThreadId = nativeThreadIdsByName.get(entry.getKey());
+            if (t != null && !t.isTerminated() && t.getNativeThreadId() <= 0 && nativeThreadId != null) {
+                entry.getValue().setNativeThreadId(nativeThreadId);
+                updateCpuTime(entry.getValue(), nativeThreads.get(nativeThreadId));
+            }
+        }
+    }
 
-            cpuTimePerApplicationThread.put(t.getName(), applicationThreadCpuTime);
-            totalApplicationCpuTime += applicationThreadCpuTime;
+    private static void updateCpuTime(ThreadRegistry.RegisteredThread thread, ProcThreadCpuReader.NativeThreadCpuTime nativeThread) {
+        // a native thread missing has terminated, the CPU time read last is kept then
+        if (nativeThread != null) {
+            thread.updateCpuTime(nativeThread.getUserTimeInNs(), nativeThread.getSystemTimeInNs(), nativeThread.getProcessor());
         }
-        return totalApplicationCpuTime;
     }
 
-    @NotNull
-    public static Map<String, Double> calculatePowerPerApplicationThread(Map<String, Long> cpuTimePerApplicationThread, DataPoint currentPower, long totalApplicationCpuTime) {
-        Map<String, Double> powerPerApplicationThread = new HashMap<>();
-        for (Map.Entry<String, Long> entry : cpuTimePerApplicationThread.entrySet()) {
-            Double percentageCpuTimePerApplicationThread = totalApplicationCpuTime > 0 ? entry.getValue() * ONE_HUNDRED / totalApplicationCpuTime : 0.0;
-            Double applicationThreadPower = currentPower.getValue() * percentageCpuTimePerApplicationThread / ONE_HUNDRED;
-            powerPerApplicationThread.put(entry.getKey(), applicationThreadPower);
-        }
-        return powerPerApplicationThread;
+    private static <T> void putUnlessAmbiguous(Map<String, T> map, String key, T value) {
+        if (map.containsKey(key)) {
+            map.put(key, null);
+        } else {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * @param threadName name of a Java thread
+     * @return the name of its native thread, as truncated by Linux to 15 bytes, <code>null</code> for names that are not
+     * plain ASCII and may be truncated within a character
+     */
+    static String toNativeThreadName(String threadName) {
+        if (threadName == null || !StandardCharsets.US_ASCII.newEncoder().canEncode(threadName)) {
+            return null;
+        }
+        return threadName.length() > NATIVE_THREAD_NAME_LENGTH ? threadName.substring(0, NATIVE_THREAD_NAME_LENGTH) : threadName;
+    }
+
+    /**
+     * Reads the bytes allocated by the given threads. If supported by the JVM, all threads are read with one call of
+     * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}.
+     *
+     * @param threadMxBean the thread mx bean to read the allocated bytes with
+     * @param threadIds    ids of the threads, must be positive
+     * @return allocated bytes per thread, in the order of the ids given, -1 for threads not alive anymore or if not supported by the JVM
+     */
+    public static long[] getThreadAllocatedBytes(ThreadMXBean threadMxBean, long[] threadIds) {
+        if (threadMxBean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) threadMxBean).isThreadAllocatedMemoryEnabled()) {
+            return ((com.sun.management.ThreadMXBean) threadMxBean).getThreadAllocatedBytes(threadIds);
+        }
+        long[] allocatedBytes = new long[threadIds.length];
+        Arrays.fill(allocatedBytes, -1L);
+        return allocatedBytes;
+    }
+
+    /**
+     * Reads the bytes allocated by one thread.
+     *
+     * @param threadMxBean the thread mx bean to read the allocated bytes with
+     * @param threadId     id of the thread, must be positive
+     * @return allocated bytes of the thread, -1 if the thread is not alive anymore or if not supported by the JVM
+     */
+    public static long getThreadAllocatedBytes(ThreadMXBean threadMxBean, long threadId) {
+        if (threadMxBean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) threadMxBean).isThreadAllocatedMemoryEnabled()) {
+            return ((com.sun.management.ThreadMXBean) threadMxBean).getThreadAllocatedBytes(threadId);
+        }
+        return -1L;
     }
 
+    /**
+     * Reads the bytes allocated by all registered threads and ends their allocated bytes interval.
+     * Threads terminated since the last interval are counted with the bytes read last while they were running, e.g. by the
+     * stack sampler, or at the end of the previous interval.
+     *
+     * @param threadMxBean   the thread mx bean to read the allocated bytes with
+     * @param threadRegistry the registry of the threads, keeping the allocated bytes per thread
+     * @return the bytes allocated by all threads in the interval, 0 if not supported by the JVM
+     */
+    public static long getTotalApplicationAllocatedBytesAndCalculateAllocatedBytesPerApplicationThread(ThreadMXBean threadMxBean, ThreadRegistry threadRegistry) {
+        Collection<ThreadRegistry.RegisteredThread> threads = threadRegistry.getThreads();
+        ThreadRegistry.RegisteredThread[] liveThreads = new ThreadRegistry.RegisteredThread[threads.size()];
+        long[] liveThreadIds = new long[threads.size()];
+        int liveThreadCount = 0;
+        for (ThreadRegistry.RegisteredThread t : threads) {
+            // virtual threads allocate on behalf of their carrier threads
+            if (!t.isVirtualThreads() && !t.isTerminated()) {
+                liveThreads[liveThreadCount] = t;
+                liveThreadIds[liveThreadCount++] = t.getId();
+            }
+        }
+        long[] allocatedBytes = getThreadAllocatedBytes(threadMxBean, Arrays.copyOf(liveThreadIds, liveThreadCount));
+        for (int i = 0; i < liveThreadCount; i++) {
+            liveThreads[i].updateAllocatedBytes(allocatedBytes[i]);
+        }
+        long totalApplicationAllocatedBytes = 0L;
+        for (ThreadRegistry.RegisteredThread t : threads) {
+            if (!t.isVirtualThreads()) {
+                totalApplicationAllocatedBytes += t.endAllocatedBytesInterval();
+            }
+        }
+        return totalApplicationAllocatedBytes;
+    }
+
+    /**
+     * Distributes the current power over the registered threads by their share of the CPU time in the interval.
+     *
+     * @param threadRegistry          the registry of the threads, keeping the power per thread
+     * @param currentPower            the current power
+     * @param totalApplicationCpuTime the CPU time consumed by all threads in the interval
+     */
+    public static void calculatePowerPerApplicationThread(ThreadRegistry threadRegistry, DataPoint currentPower, long totalApplicationCpuTime) {
+        calculatePowerPerApplicationThread(threadRegistry, currentPower, totalApplicationCpuTime, 0L, 0.0);
+    }
 
+    /**
+     * Distributes the current power over the registered threads by their share of the CPU time and of the allocated bytes
+     * in the interval. The allocation share of the power stands for the energy of the memory subsystem (caches, memory
+     * controller and DRAM) spent on the memory traffic caused by allocations.
+     * <br><br>
+     * If no thread consumed CPU time or no thread allocated any bytes in the interval, the complete power is distributed
+     * by the other dimension.
+     *
+     * @param threadRegistry                 the registry of the threads, keeping the power per thread
+     * @param currentPower                   the current power
+     * @param totalApplicationCpuTime        the CPU time consumed by all threads in the interval
+     * @param totalApplicationAllocatedBytes the bytes allocated by all threads in the interval
+     * @param allocationShareInPercent       share of the power distributed by the allocated bytes, the rest is distributed by the CPU time
+     */
+    public static void calculatePowerPerApplicationThread(ThreadRegistry threadRegistry, DataPoint currentPower, long totalApplicationCpuTime,
+                                                          long totalApplicationAllocatedBytes, double allocationShareInPercent) {
+        double allocationShare = Math.min(Math.max(allocationShareInPercent, 0.0), ONE_HUNDRED) / ONE_HUNDRED;
+        if (totalApplicationAllocatedBytes <= 0) {
+            allocationShare = 0.0;
+        } else if (totalApplicationCpuTime <= 0) {
+            allocationShare = 1.0;
+        }
+        for (ThreadRegistry.RegisteredThread t : threadRegistry.getThreads()) {
+            double cpuTimeShare = totalApplicationCpuTime > 0 ? (double) t.getCpuTimeInInterval() / totalApplicationCpuTime : 0.0;
+            double allocatedBytesShare = totalApplicationAllocatedBytes > 0 ? (double) t.getAllocatedBytesInInterval() / totalApplicationAllocatedBytes : 0.0;
+            t.setPower(currentPower.getValue() * ((1 - allocationShare) * cpuTimeShare + allocationShare * allocatedBytesShare));
+        }
+    }
 }
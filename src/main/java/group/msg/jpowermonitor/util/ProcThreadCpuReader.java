@@ -0,0 +1,193 @@
+package group.msg.jpowermonitor.util;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the CPU time of all native threads of the own process on Linux in one pass over <code>/proc/self/task/&lt;tid&gt;/stat</code>.
+ * <br><br>
+ * Each stat file contains the user and system time (fields <code>utime</code> and <code>stime</code>, in clock ticks)
+ * and the CPU core the thread ran on last (field <code>processor</code>), see <code>man 5 proc</code>.
+ * The times are counted in clock ticks of usually 10 ms, so they are coarser than the CPU time of the
+ * {@link java.lang.management.ThreadMXBean}. The native threads are identified by their Linux thread id (tid), not by the
+ * Java thread id, see {@link CpuAndThreadUtils} for how they are mapped to the Java threads.
+ * <br><br>
+ * Reading the stat files is not cheaper than reading the CPU time with the thread mx bean: the kernel formats each file on
+ * opening, which takes about 10 µs per thread compared to about 0.5 µs for the thread mx bean. The proc file system
+ * provides the split into user and system time and the CPU core, though.
+ * <br><br>
+ * A reader reuses its read buffer and must be used by one thread only.
+ */
+@Slf4j
+public class ProcThreadCpuReader {
+    /**
+     * Directory with one subdirectory per thread of the own process.
+     */
+    public static final Path DEFAULT_TASK_DIR = Paths.get("/proc/self/task");
+    /**
+     * Unit of the times in the proc file system (USER_HZ), which is 100 on all Linux platforms.
+     */
+    public static final long DEFAULT_CLOCK_TICKS_PER_SECOND = 100;
+    // the stat file of a thread has about 300 bytes
+    private static final int STAT_BUFFER_SIZE = 4096;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // positions of the fields in the stat file, counted from the state following the command name (field 3 in man 5 proc)
+    private static final int UTIME_FIELD = 14 - 3;
+    private static final int STIME_FIELD = 15 - 3;
+    private static final int PROCESSOR_FIELD = 39 - 3;
+    private final Path taskDir;
+    private final long nanosPerClockTick;
+    private final ByteBuffer buffer = ByteBuffer.allocate(STAT_BUFFER_SIZE);
+
+    public ProcThreadCpuReader() {
+        this(DEFAULT_TASK_DIR, DEFAULT_CLOCK_TICKS_PER_SECOND);
+    }
+
+    /**
+     * @param taskDir             directory with one subdirectory per thread, named by the tid and containing the file <code>stat</code>
+     * @param clockTicksPerSecond unit of the times in the stat files
+     */
+    public ProcThreadCpuReader(Path taskDir, long clockTicksPerSecond) {
+        this.taskDir = taskDir;
+        this.nanosPerClockTick = NANOS_PER_SECOND / clockTicksPerSecond;
+    }
+
+    /**
+     * @return <code>true</code>, if the task directory exists, i.e. if running on Linux
+     */
+    public boolean isAvailable() {
+        return Files.isDirectory(taskDir);
+    }
+
+    /**
+     * Reads the stat files of all threads. Threads terminating while reading are left out.
+     *
+     * @return CPU time per tid
+     */
+    public Map<Long, NativeThreadCpuTime> readThreadCpuTimes() {
+        Map<Long, NativeThreadCpuTime> cpuTimes = new HashMap<>();
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(taskDir)) {
+            for (Path task : tasks) {
+                NativeThreadCpuTime cpuTime = read(task);
+                if (cpuTime != null) {
+                    cpuTimes.put(cpuTime.getTid(), cpuTime);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to read the threads from {}: {}", taskDir, ex.getMessage());
+        }
+        return cpuTimes;
+    }
+
+    private NativeThreadCpuTime read(Path task) {
+        long tid;
+        try {
+            tid = Long.parseLong(task.getFileName().toString());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        try {
+            return parse(tid, readStat(task.resolve("stat")));
+        } catch (NoSuchFileException ex) {
+            return null; // thread terminated meanwhile
+        } catch (IOException ex) {
+            log.debug("Unable to read stat of thread {}: {}", tid, ex.getMessage());
+            return null;
+        }
+    }
+
+    private String readStat(Path stat) throws IOException {
+        // the stat files report a size of 0, so they are read into a buffer reused for all files
+        try (FileChannel channel = FileChannel.open(stat)) {
+            buffer.clear();
+            while (channel.read(buffer) > 0 && buffer.hasRemaining()) {
+                // read until end of file
+            }
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    /**
+     * @param tid  id of the native thread
+     * @param stat content of the stat file of the thread
+     * @return the CPU time of the thread or <code>null</code>, if the content cannot be parsed
+     */
+    NativeThreadCpuTime parse(long tid, String stat) {
+        // the command name may contain blanks and parentheses, so the fields are counted from the last closing parenthesis
+        int nameStart = stat.indexOf('(');
+        int nameEnd = stat.lastIndexOf(')');
+        if (nameStart < 0 || nameEnd < nameStart) {
+            return null;
+        }
+        long utime = -1;
+        long stime = -1;
+        int processor = -1;
+        int field = 0;
+        int pos = nameEnd + 2;
+        while (pos < stat.length() && field <= PROCESSOR_FIELD) {
+            int end = stat.indexOf(' ', pos);
+            if (end < 0) {
+                end = stat.length();
+            }
+            if (field == UTIME_FIELD) {
+                utime = parseLong(stat, pos, end);
+            } else if (field == STIME_FIELD) {
+                stime = parseLong(stat, pos, end);
+            } else if (field == PROCESSOR_FIELD) {
+                processor = (int) parseLong(stat, pos, end);
+            }
+            field++;
+            pos = end + 1;
+        }
+        if (utime < 0 || stime < 0) {
+            return null;
+        }
+        return new NativeThreadCpuTime(tid, stat.substring(nameStart + 1, nameEnd), utime * nanosPerClockTick, stime * nanosPerClockTick, processor);
+    }
+
+    private static long parseLong(String s, int start, int end) {
+        try {
+            return Long.parseLong(s, start, end, 10);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * CPU time of a native thread read from its stat file.
+     */
+    @Value
+    public static class NativeThreadCpuTime {
+        /**
+         * Linux thread id.
+         */
+        long tid;
+        /**
+         * Name of the thread (<code>comm</code>), truncated to 15 bytes by Linux.
+         */
+        String name;
+        long userTimeInNs;
+        long systemTimeInNs;
+        /**
+         * CPU core the thread ran on last, -1 if unknown.
+         */
+        int processor;
+
+        public long getCpuTimeInNs() {
+            return userTimeInNs + systemTimeInNs;
+        }
+    }
+}
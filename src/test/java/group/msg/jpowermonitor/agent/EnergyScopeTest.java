@@ -0,0 +1,53 @@
+package group.msg.jpowermonitor.agent;
+
+import group.msg.jpowermonitor.config.DefaultCfgProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EnergyScopeTest {
+
+    @BeforeAll
+    static void readConfig() {
+        // without the agent the power is measured when closing the scope, estimation does not need any hardware access
+        DefaultCfgProvider.invalidateCachedConfig();
+        new DefaultCfgProvider().readConfig("EstimationReaderTest.yaml");
+    }
+
+    @Test
+    void energyOfBlockTest() {
+        EnergyScope scope = EnergyScope.start("busy");
+        try (scope) {
+            busy(TimeUnit.MILLISECONDS.toNanos(200));
+        }
+        assertThat(scope.getName()).isEqualTo("busy");
+        assertThat(scope.getElapsedTimeInNs()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(scope.getCpuTimeInNs()).isPositive().isLessThanOrEqualTo(scope.getElapsedTimeInNs());
+        assertThat(scope.getEnergyInJoule()).isPositive();
+    }
+
+    @Test
+    void closingAgainKeepsResultsTest() {
+        EnergyScope scope = EnergyScope.start("closed twice");
+        busy(TimeUnit.MILLISECONDS.toNanos(50));
+        scope.close();
+        double energyInJoule = scope.getEnergyInJoule();
+        long elapsedTimeInNs = scope.getElapsedTimeInNs();
+        busy(TimeUnit.MILLISECONDS.toNanos(50));
+        scope.close();
+        assertThat(scope.getEnergyInJoule()).isEqualTo(energyInJoule);
+        assertThat(scope.getElapsedTimeInNs()).isEqualTo(elapsedTimeInNs);
+    }
+
+    private static long busy(long durationInNs) {
+        long end = System.nanoTime() + durationInNs;
+        long sum = 0;
+        while (System.nanoTime() < end) {
+            sum += sum * 31 + 7;
+        }
+        return sum;
+    }
+}
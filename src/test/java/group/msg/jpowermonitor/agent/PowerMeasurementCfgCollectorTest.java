@@ -1,17 +1,17 @@
 package group.msg.jpowermonitor.agent;
 
+import group.msg.jpowermonitor.agent.context.EnergyContext;
+import group.msg.jpowermonitor.config.DefaultCfgProvider;
 import group.msg.jpowermonitor.config.dto.JavaAgentCfg;
-import group.msg.jpowermonitor.config.dto.MonitoringCfg;
-import group.msg.jpowermonitor.dto.Activity;
 import group.msg.jpowermonitor.dto.DataPoint;
-import group.msg.jpowermonitor.dto.MethodActivity;
-import group.msg.jpowermonitor.dto.Quantity;
+import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.time.LocalDateTime;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -24,16 +24,23 @@ class PowerMeasurementCfgCollectorTest {
     private static final DataPoint DP1 = new DataPoint("x", 0.0, Unit.WATT, LocalDateTime.now(), null);
     private static final DataPoint DP2 = new DataPoint("y", 1.0, Unit.WATT, LocalDateTime.now(), null);
 
+    @BeforeAll
+    static void readConfig() {
+        // the collector reads the measure method from the configuration when loaded, estimation does not need any hardware access
+        DefaultCfgProvider.invalidateCachedConfig();
+        new DefaultCfgProvider().readConfig("EstimationReaderTest.yaml");
+    }
+
     @Test
     void areAddableTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         assertTrue(new PowerMeasurementCollector(0, null, javaAgentCfg).areDataPointsAddable(DP1, DP2));
     }
 
     @SuppressWarnings("ConstantConditions")
     @Test
     void areNotAddableFailBecauseOfValueNullTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         assertThatThrownBy(() -> testee.areDataPointsAddable(DP1, null)).isInstanceOf(Exception.class);
         assertThatThrownBy(() -> testee.areDataPointsAddable(null, DP2)).isInstanceOf(Exception.class);
@@ -41,7 +48,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void areNotAddableBecauseOfValueNullTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
 
         DataPoint dp2 = new DataPoint("y", null, Unit.WATT, LocalDateTime.now(), null);
@@ -51,7 +58,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void areNotAddableBecauseOfUnitNullTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dp2 = new DataPoint("y", 0.0, null, LocalDateTime.now(), null);
         assertThat(testee.areDataPointsAddable(DP1, dp2)).isFalse();
@@ -60,7 +67,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void areNotAddableBecauseOfDifferentUnitsTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dp2 = testee.cloneAndCalculateDataPoint(DP2, Unit.WATTHOURS, x -> x);
         assertThat(testee.areDataPointsAddable(DP1, dp2)).isFalse();
@@ -68,7 +75,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void addTwoDataPointsTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dpSum = testee.addDataPoint(DP1, DP2);
         assertThat(dpSum.getValue()).isEqualTo(DP1.getValue() + DP2.getValue());
@@ -76,7 +83,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void addMultipleDataPointsTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dp3 = new DataPoint("x", 10.0, Unit.WATT, LocalDateTime.now(), null);
         DataPoint dp4 = new DataPoint("x", 100.0, Unit.WATT, LocalDateTime.now(), null);
@@ -86,7 +93,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void addMultipleDataPointsWithDifferentUnitsTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dp3 = new DataPoint("x", 10.0, Unit.WATT, LocalDateTime.now(), null);
         DataPoint dp4 = new DataPoint("x", 100.0, Unit.WATTHOURS, LocalDateTime.now(), null);
@@ -96,7 +103,7 @@ class PowerMeasurementCfgCollectorTest {
 
     @Test
     void cloneWithNewUnitTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
         PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
         DataPoint dp3 = testee.cloneAndCalculateDataPoint(DP1, Unit.WATTHOURS, x -> x);
         assertNotEquals(dp3, DP1);
@@ -104,27 +111,74 @@ class PowerMeasurementCfgCollectorTest {
     }
 
     @Test
-    void aggregateActivityTest() {
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(new HashSet<>(), 0, 0, 0, new MonitoringCfg());
-        PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, null, javaAgentCfg);
-
-        MethodActivity ma1 = new MethodActivity();
-        ma1.setMethodQualifier("no.filter.Method");
-        ma1.setRepresentedQuantity(Quantity.of(0.0, Unit.JOULE));
-
-        MethodActivity ma2 = new MethodActivity();
-        ma2.setMethodQualifier("no.filter.method.Either");
-        ma2.setRepresentedQuantity(Quantity.of(1.0, Unit.JOULE));
+    void inclusiveEnergyCountsRecursiveMethodsOnceTest() throws InterruptedException {
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
+        javaAgentCfg.setPackageFilter(Set.of(PowerMeasurementCfgCollectorTest.class.getPackageName()));
+        javaAgentCfg.setMeasurementIntervalInMs(200);
+        javaAgentCfg.setGatherStatisticsIntervalInMs(10);
+        javaAgentCfg.setInclusiveEnergy(true);
+        PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication(), javaAgentCfg);
+        testee.start();
+        Thread worker = new Thread(() -> outer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500)), "inclusive-energy-worker");
+        worker.start();
+        worker.join();
+        TimeUnit.MILLISECONDS.sleep(500);
+        testee.cancel();
+
+        String prefix = PowerMeasurementCfgCollectorTest.class.getName() + ".";
+        Map<String, DataPoint> inclusive = testee.getEnergyConsumptionPerMethod(true, true);
+        assertThat(inclusive).containsKeys(prefix + "outer", prefix + "recurse");
+        double outer = inclusive.get(prefix + "outer").getValue();
+        assertThat(outer).isPositive();
+        // every sample of recurse is a sample of outer, and recurse is counted once per sample, however deep the recursion is
+        assertThat(inclusive.get(prefix + "recurse").getValue()).isLessThanOrEqualTo(outer + 1e-9);
+        // the energy of outer itself is part of its inclusive energy
+        DataPoint exclusive = testee.getEnergyConsumptionPerMethod(true).get(prefix + "outer");
+        assertThat(exclusive == null ? 0.0 : exclusive.getValue()).isLessThanOrEqualTo(outer + 1e-9);
+        // no thread groups configured, so the thread names are not collected as thread groups
+        assertThat(testee.isThreadGroups()).isFalse();
+        assertThat(testee.getEnergyConsumptionPerThreadGroup()).isEmpty();
+    }
 
-        MethodActivity ma3 = new MethodActivity();
-        ma3.setFilteredMethodQualifier("a.filter.method");
-        ma3.setRepresentedQuantity(Quantity.of(10.0, Unit.JOULE));
+    @Test
+    @SuppressWarnings("try") // the scope is opened for its tag only
+    void energyIsAttributedToContextTagsTest() throws InterruptedException {
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
+        javaAgentCfg.setMeasurementIntervalInMs(200);
+        javaAgentCfg.setGatherStatisticsIntervalInMs(10);
+        PowerMeasurementCollector testee = new PowerMeasurementCollector(0L, CpuAndThreadUtils.initializeAndGetThreadMxBeanOrFailAndQuitApplication(), javaAgentCfg);
+        testee.start();
+        Thread worker = new Thread(() -> {
+            try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+                outer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500));
+            }
+        }, "tagged-worker");
+        worker.start();
+        worker.join();
+        TimeUnit.MILLISECONDS.sleep(500);
+        testee.cancel();
+
+        Map<String, DataPoint> energyPerTag = testee.getEnergyConsumptionPerTag();
+        assertThat(energyPerTag).containsKey("tenant=acme");
+        assertThat(energyPerTag.get("tenant=acme").getValue()).isPositive();
+    }
 
-        List<Activity> activities = List.of(ma1, ma2, ma3);
-        Map<String, DataPoint> unfiltered = testee.aggregateActivityToDataPoints(activities, false);
-        assertEquals(3, unfiltered.size());
+    private static long outer(long endInNs) {
+        long sum = 0;
+        while (System.nanoTime() < endInNs) {
+            sum += recurse(10);
+        }
+        return sum;
+    }
 
-        Map<String, DataPoint> filtered = testee.aggregateActivityToDataPoints(activities, true);
-        assertEquals(1, filtered.size());
+    private static long recurse(int depth) {
+        if (depth == 0) {
+            long sum = 0;
+            for (int i = 0; i < 10_000; i++) {
+                sum += i * 31L;
+            }
+            return sum;
+        }
+        return recurse(depth - 1) + 1;
     }
 }
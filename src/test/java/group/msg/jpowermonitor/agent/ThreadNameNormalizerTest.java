@@ -0,0 +1,51 @@
+package group.msg.jpowermonitor.agent;
+
+import group.msg.jpowermonitor.config.dto.ThreadGroupCfg;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThreadNameNormalizerTest {
+
+    @Test
+    void normalizeToThreadGroupTest() {
+        ThreadNameNormalizer normalizer = new ThreadNameNormalizer(List.of(
+            new ThreadGroupCfg("pool-(\\d+)-thread-\\d+", "pool-$1"),
+            new ThreadGroupCfg("(http-nio-\\d+-exec)-\\d+", "$1"),
+            new ThreadGroupCfg("ForkJoinPool.*", "ForkJoinPool")));
+        assertThat(normalizer.normalize("pool-7-thread-193")).isEqualTo("pool-7");
+        assertThat(normalizer.normalize("pool-7-thread-1")).isEqualTo("pool-7");
+        assertThat(normalizer.normalize("http-nio-8080-exec-42")).isEqualTo("http-nio-8080-exec");
+        assertThat(normalizer.normalize("ForkJoinPool.commonPool-worker-3")).isEqualTo("ForkJoinPool");
+        // the pattern must match the complete name
+        assertThat(normalizer.normalize("my-pool-7-thread-1-old")).isEqualTo("my-pool-7-thread-1-old");
+        assertThat(normalizer.normalize("main")).isEqualTo("main");
+    }
+
+    @Test
+    void firstMatchingRuleWinsTest() {
+        ThreadNameNormalizer normalizer = new ThreadNameNormalizer(List.of(
+            new ThreadGroupCfg("worker-io-\\d+", "io"),
+            new ThreadGroupCfg("worker-.*", "workers")));
+        assertThat(normalizer.normalize("worker-io-1")).isEqualTo("io");
+        assertThat(normalizer.normalize("worker-cpu-1")).isEqualTo("workers");
+    }
+
+    @Test
+    void groupNameReplacesCompleteMatchTest() {
+        // a lazy quantifier matches the complete name with matches(), but only a part of it when searched again
+        ThreadNameNormalizer normalizer = new ThreadNameNormalizer(List.of(
+            new ThreadGroupCfg("http-nio-(\\d+)-exec-\\d+?", "http-nio-$1-exec")));
+        assertThat(normalizer.normalize("http-nio-8080-exec-42")).isEqualTo("http-nio-8080-exec");
+    }
+
+    @Test
+    void noRulesKeepsThreadNamesTest() {
+        ThreadNameNormalizer normalizer = new ThreadNameNormalizer(List.of());
+        assertThat(normalizer.normalize("pool-7-thread-193")).isEqualTo("pool-7-thread-193");
+        assertThat(normalizer.normalize(null)).isNull();
+        assertThat(normalizer.hasRules()).isFalse();
+    }
+}
@@ -0,0 +1,118 @@
+package group.msg.jpowermonitor.agent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThreadRegistryTest {
+
+    @Test
+    void registerNewThreadsTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        registry.beginTick();
+        registry.register(1L, "main");
+        registry.endTick();
+        registry.beginTick();
+        registry.register(1L, "main");
+        registry.register(42L, "pool-1-thread-1");
+        registry.endTick();
+        assertThat(registry.getThreads())
+            .extracting(ThreadRegistry.RegisteredThread::getId)
+            .containsExactlyInAnyOrder(1L, 42L);
+        assertThat(registry.getThreads()).noneMatch(ThreadRegistry.RegisteredThread::isTerminated);
+    }
+
+    @Test
+    void renamedThreadKeepsIdTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        registry.beginTick();
+        registry.register(7L, "Thread-0");
+        registry.endTick();
+        registry.beginTick();
+        registry.register(7L, "worker");
+        registry.endTick();
+        assertThat(registry.getThreads()).singleElement()
+            .extracting(ThreadRegistry.RegisteredThread::getName)
+            .isEqualTo("worker");
+    }
+
+    @Test
+    void terminatedThreadsAreKeptUntilEvictedTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        registry.beginTick();
+        registry.register(1L, "main");
+        registry.register(42L, "short-lived");
+        registry.endTick();
+        registry.beginTick();
+        registry.register(1L, "main");
+        registry.endTick();
+
+        assertThat(registry.getThreads()).hasSize(2);
+        assertThat(registry.getThreads())
+            .filteredOn(ThreadRegistry.RegisteredThread::isTerminated)
+            .extracting(ThreadRegistry.RegisteredThread::getId)
+            .containsExactly(42L);
+
+        registry.evictTerminatedThreads();
+        assertThat(registry.getThreads())
+            .extracting(ThreadRegistry.RegisteredThread::getId)
+            .containsExactly(1L);
+    }
+
+    @Test
+    void agentThreadsAreMarkedTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        registry.beginTick();
+        assertThat(registry.register(1L, "main").isAgentThread()).isFalse();
+        assertThat(registry.register(2L, AgentThreads.CSV_RESULTS_WRITER).isAgentThread()).isTrue();
+        assertThat(registry.register(3L, "prometheus-http-1-1").isAgentThread()).isTrue();
+        assertThat(registry.register(4L, "JFR Event Stream 1").isAgentThread()).isTrue();
+        registry.endTick();
+        // a renamed thread is classified again
+        registry.beginTick();
+        assertThat(registry.register(1L, AgentThreads.PROMETHEUS_WRITER).isAgentThread()).isTrue();
+        assertThat(registry.register(2L, "pool-1-thread-1").isAgentThread()).isFalse();
+        registry.endTick();
+    }
+
+    @Test
+    void virtualThreadsShareOneEntryTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        registry.beginTick();
+        registry.register(21L, "ForkJoinPool-1-worker-1");
+        registry.markCarrier(21L);
+        ThreadRegistry.RegisteredThread virtualThreads = registry.registerVirtualThreads();
+        registry.endTick();
+        assertThat(registry.registerVirtualThreads()).isSameAs(virtualThreads);
+        assertThat(virtualThreads.getId()).isEqualTo(ThreadRegistry.VIRTUAL_THREADS_ID);
+        assertThat(virtualThreads.getName()).isEqualTo(ThreadRegistry.VIRTUAL_THREADS_NAME);
+        assertThat(virtualThreads.isVirtualThreads()).isTrue();
+        assertThat(registry.getThread(21L).isCarrier()).isTrue();
+
+        // the entry of the virtual threads is never terminated by missing in a thread dump
+        registry.beginTick();
+        registry.endTick();
+        registry.evictTerminatedThreads();
+        assertThat(registry.getThreads()).containsExactly(virtualThreads);
+    }
+
+    @Test
+    void threadChurnKeepsRegistrySmallTest() {
+        ThreadRegistry registry = new ThreadRegistry();
+        long nextThreadId = 100;
+        for (int tick = 0; tick < 1000; tick++) {
+            registry.beginTick();
+            registry.register(1L, "main");
+            // every tick a pool of short-lived threads with reused names
+            for (int i = 0; i < 100; i++) {
+                registry.register(nextThreadId++, "pool-1-thread-" + i);
+            }
+            registry.endTick();
+            registry.evictTerminatedThreads();
+        }
+        assertThat(registry.getThreads()).hasSize(101);
+        assertThat(registry.getThread(1L)).isNotNull();
+        assertThat(registry.getThread(nextThreadId - 1)).isNotNull();
+        assertThat(registry.getThread(nextThreadId - 101)).isNull();
+    }
+}
@@ -0,0 +1,176 @@
+package group.msg.jpowermonitor.agent.context;
+
+import group.msg.jpowermonitor.agent.context.bootstrap.ContextPropagationBridge;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SuppressWarnings("try") // the scopes are opened for their tags only
+class ContextPropagationInstallerTest {
+
+    @BeforeAll
+    static void install() {
+        assertThat(ContextPropagationInstaller.install(ByteBuddyAgent.install())).isTrue();
+    }
+
+    @Test
+    void bridgeIsLoadedByBootstrapClassLoaderTest() {
+        assertThat(ContextPropagationBridge.class.getClassLoader()).isNull();
+        // the application class loader cannot define the bridge, whichever test runs first
+        assertThat(ContextPropagationInstallerTest.class.getClassLoader()
+            .getResource("group/msg/jpowermonitor/agent/context/bootstrap/ContextPropagationBridge.class")).isNull();
+    }
+
+    @Test
+    void threadPoolExecutorPropagatesTagsTest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+                assertThat(executor.submit(ContextPropagationInstallerTest::currentTags).get()).containsExactly("tenant=acme");
+                assertThat(CompletableFuture.supplyAsync(ContextPropagationInstallerTest::currentTags, executor).get())
+                    .containsExactly("tenant=acme");
+            }
+            // the tags are removed from the pool thread after the task
+            assertThat(executor.submit(ContextPropagationInstallerTest::currentTags).get()).isEmpty();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void scheduledThreadPoolExecutorPropagatesTagsTest() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        List<String> tagsOfRunnable = new CopyOnWriteArrayList<>();
+        List<String> tagsAtFixedRate = new CopyOnWriteArrayList<>();
+        List<String> tagsWithFixedDelay = new CopyOnWriteArrayList<>();
+        CountDownLatch runsAtFixedRate = new CountDownLatch(2);
+        CountDownLatch runsWithFixedDelay = new CountDownLatch(2);
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            assertThat(executor.schedule(ContextPropagationInstallerTest::currentTags, 1, TimeUnit.MILLISECONDS).get())
+                .containsExactly("tenant=acme");
+            executor.schedule(() -> tagsOfRunnable.addAll(currentTags()), 1, TimeUnit.MILLISECONDS).get();
+            executor.scheduleAtFixedRate(() -> addTagsOfRun(tagsAtFixedRate, runsAtFixedRate), 0, 1, TimeUnit.MILLISECONDS);
+            executor.scheduleWithFixedDelay(() -> addTagsOfRun(tagsWithFixedDelay, runsWithFixedDelay), 0, 1, TimeUnit.MILLISECONDS);
+            assertThat(runsAtFixedRate.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(runsWithFixedDelay.await(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(tagsOfRunnable).containsExactly("tenant=acme");
+        assertThat(tagsAtFixedRate).containsOnly("tenant=acme");
+        assertThat(tagsWithFixedDelay).containsOnly("tenant=acme");
+    }
+
+    private static void addTagsOfRun(List<String> tags, CountDownLatch runs) {
+        tags.addAll(currentTags());
+        runs.countDown();
+    }
+
+    @Test
+    void forkJoinPoolPropagatesTagsTest() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            assertThat(pool.submit(ContextPropagationInstallerTest::currentTags).get()).containsExactly("tenant=acme");
+            List<String> tagsInTask = new ArrayList<>();
+            Runnable addTags = () -> tagsInTask.addAll(currentTags());
+            pool.submit(addTags).get();
+            assertThat(tagsInTask).containsExactly("tenant=acme");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void completableFuturePropagatesTagsTest() throws Exception {
+        CompletableFuture<Void> trigger = new CompletableFuture<>();
+        CompletableFuture<List<String>> tagsOfDependentStage;
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            assertThat(CompletableFuture.supplyAsync(ContextPropagationInstallerTest::currentTags).get()).containsExactly("tenant=acme");
+            tagsOfDependentStage = trigger.thenApplyAsync(ignored -> currentTags());
+        }
+        // the dependent stage runs with the tags active when it was created, not when the trigger completes
+        trigger.complete(null);
+        assertThat(tagsOfDependentStage.get()).containsExactly("tenant=acme");
+    }
+
+    @Test
+    void afterExecuteSeesSubmittedTaskTest() throws Exception {
+        RecordingThreadPoolExecutor executor = new RecordingThreadPoolExecutor();
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            Future<?> future = executor.submit(() -> {
+            });
+            future.get();
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.executed).containsExactly(future);
+        }
+    }
+
+    @Test
+    void shutdownNowReturnsSubmittedTasksTest() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        Runnable task = () -> {
+        };
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            executor.execute(() -> {
+                started.countDown();
+                awaitUninterruptibly(blocked);
+            });
+            started.await();
+            executor.execute(task);
+            assertThat(executor.shutdownNow()).containsExactly(task);
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            awaitUninterruptibly(latch);
+        }
+    }
+
+    private static List<String> currentTags() {
+        EnergyContextRegistry registry = EnergyContextRegistry.getInstance();
+        ContextSlot slot = registry.getSlot(Thread.currentThread().getId());
+        int contextId = slot != null ? slot.getContextId() : EnergyContextRegistry.NO_CONTEXT;
+        return Arrays.stream(registry.getTagIds(contextId))
+            .mapToObj(registry::getTagName)
+            .collect(Collectors.toList());
+    }
+
+    private static class RecordingThreadPoolExecutor extends ThreadPoolExecutor {
+        private final List<Object> executed = new ArrayList<>();
+
+        RecordingThreadPoolExecutor() {
+            super(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            executed.add(r);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package group.msg.jpowermonitor.agent.context;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SuppressWarnings("try") // the scopes are opened for their tags only
+class EnergyContextTest {
+
+    @Test
+    void nestedScopesRestoreTheTagsTest() {
+        try (EnergyContext.Scope tenant = EnergyContext.tag("tenant", "acme")) {
+            assertThat(currentTags()).containsExactly("tenant=acme");
+            try (EnergyContext.Scope endpoint = EnergyContext.tag("endpoint", "/orders")) {
+                assertThat(currentTags()).containsExactly("tenant=acme", "endpoint=/orders");
+            }
+            assertThat(currentTags()).containsExactly("tenant=acme");
+        }
+        assertThat(currentContextId()).isEqualTo(EnergyContextRegistry.NO_CONTEXT);
+    }
+
+    @Test
+    void tagReplacesTagOfSameKeyTest() {
+        try (EnergyContext.Scope outer = EnergyContext.tag("tenant", "acme")) {
+            try (EnergyContext.Scope inner = EnergyContext.tag("tenant", "globex")) {
+                assertThat(currentTags()).containsExactly("tenant=globex");
+            }
+            assertThat(currentTags()).containsExactly("tenant=acme");
+        }
+    }
+
+    @Test
+    void sameTagsSameContextIdTest() {
+        int contextId;
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "initech")) {
+            contextId = currentContextId();
+        }
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "initech")) {
+            assertThat(currentContextId()).isEqualTo(contextId);
+        }
+    }
+
+    @Test
+    void closingScopeTwiceDoesNotRestoreTwiceTest() {
+        try (EnergyContext.Scope outer = EnergyContext.tag("tenant", "acme")) {
+            EnergyContext.Scope inner = EnergyContext.tag("endpoint", "/orders");
+            inner.close();
+            try (EnergyContext.Scope other = EnergyContext.tag("endpoint", "/invoices")) {
+                inner.close();
+                assertThat(currentTags()).containsExactly("tenant=acme", "endpoint=/invoices");
+            }
+        }
+    }
+
+    @Test
+    void maxTagsReplacesFurtherValuesTest() {
+        EnergyContextRegistry registry = new EnergyContextRegistry();
+        registry.setMaxTags(3);
+        int first = registry.internTag("request", "1");
+        registry.internTag("request", "2");
+        registry.internTag("request", "3");
+        assertThat(registry.getTagName(registry.internTag("request", "4"))).isEqualTo("request=" + EnergyContextRegistry.OTHER_VALUE);
+        assertThat(registry.getTagName(registry.internTag("tenant", "acme")))
+            .isEqualTo(EnergyContextRegistry.OTHER_VALUE + "=" + EnergyContextRegistry.OTHER_VALUE);
+        // known tags are kept
+        assertThat(registry.internTag("request", "1")).isEqualTo(first);
+    }
+
+    @Test
+    void maxTagsReplacesFurtherKeysByOneTagTest() {
+        EnergyContextRegistry registry = new EnergyContextRegistry();
+        registry.setMaxTags(3);
+        for (int i = 0; i < 1000; i++) {
+            registry.internTag("key" + i, "value");
+        }
+        int other = registry.internTag("key1000", "value");
+        assertThat(registry.getTagName(other)).isEqualTo(EnergyContextRegistry.OTHER_VALUE + "=" + EnergyContextRegistry.OTHER_VALUE);
+        assertThat(registry.internTag("key999", "value")).isEqualTo(other);
+        // the tags below the maximum and the single tag of all further keys
+        assertThat(registry.getTagCount()).isEqualTo(4);
+        assertThat(registry.getTagName(registry.internTag("key0", "value"))).isEqualTo("key0=value");
+    }
+
+    @Test
+    void invalidTagTest() {
+        assertThatThrownBy(() -> EnergyContext.tag("tenant=acme", "x")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> EnergyContext.tag("tenant", null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void wrappedTaskRunsWithTagsOfSubmittingThreadTest() throws InterruptedException {
+        List<String> tagsInTask = new ArrayList<>();
+        Runnable task;
+        try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+            Runnable addTags = () -> tagsInTask.addAll(currentTags());
+            task = EnergyContext.wrap(addTags);
+        }
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+        assertThat(tagsInTask).containsExactly("tenant=acme");
+    }
+
+    @Test
+    void wrappedExecutorServicePropagatesTagsTest() throws Exception {
+        ExecutorService executor = EnergyContext.wrapExecutorService(Executors.newSingleThreadExecutor());
+        try {
+            try (EnergyContext.Scope scope = EnergyContext.tag("tenant", "acme")) {
+                assertThat(executor.submit(EnergyContextTest::currentTags).get()).containsExactly("tenant=acme");
+                assertThat(CompletableFuture.supplyAsync(EnergyContextTest::currentTags, EnergyContext.wrapExecutor(executor)).get())
+                    .containsExactly("tenant=acme");
+            }
+            // the tags are removed from the pool thread after the task
+            assertThat(executor.submit(EnergyContextTest::currentTags).get()).isEmpty();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void wrapWithoutTagsReturnsTaskTest() {
+        Runnable task = () -> {
+        };
+        assertThat(EnergyContext.wrap(task)).isSameAs(task);
+    }
+
+    private static int currentContextId() {
+        ContextSlot slot = EnergyContextRegistry.getInstance().getSlot(Thread.currentThread().getId());
+        return slot != null ? slot.getContextId() : EnergyContextRegistry.NO_CONTEXT;
+    }
+
+    private static List<String> currentTags() {
+        EnergyContextRegistry registry = EnergyContextRegistry.getInstance();
+        return Arrays.stream(registry.getTagIds(currentContextId()))
+            .mapToObj(registry::getTagName)
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,89 @@
+package group.msg.jpowermonitor.agent.export.prometheus;
+
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import group.msg.jpowermonitor.agent.sampling.EnergyAccumulator;
+import group.msg.jpowermonitor.agent.sampling.FrameDictionary;
+import group.msg.jpowermonitor.agent.sampling.PackageFilter;
+import group.msg.jpowermonitor.config.DefaultCfgProvider;
+import group.msg.jpowermonitor.config.dto.PrometheusCfg;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrometheusWriterTest {
+    private static final String ENERGY_METRIC = "jPowerMonitor_energy_per_method_filtered";
+    private static final String[] LABELS = {"pid", "thread", "method"};
+
+    @BeforeAll
+    static void readConfig() {
+        // the data points of the energy contain the CO2 value calculated with the configured emission factor
+        new DefaultCfgProvider().readConfig("EstimationReaderTest.yaml");
+    }
+
+    @Test
+    void seriesOfEvictedMethodIsRemovedTest() throws IOException {
+        PrometheusWriter writer = new PrometheusWriter(prometheusCfg());
+        FrameDictionary dictionary = new FrameDictionary();
+        int hot = dictionary.intern("com.msg.Prometheus", "hot");
+        int warm = dictionary.intern("com.msg.Prometheus", "warm");
+        int cold = dictionary.intern("com.msg.Prometheus", "cold");
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, new PackageFilter(List.of("com.msg")), 2);
+        LocalDateTime now = LocalDateTime.now();
+        accumulator.add(hot, 5.0, "main", now);
+        accumulator.add(warm, 3.0, "main", now);
+        writer.writeEnergyConsumptionPerMethodFiltered(accumulator.snapshot(true));
+        assertThat(energy("com.msg.Prometheus.warm")).isEqualTo(3.0);
+
+        // the new method evicts the method consuming the least energy
+        accumulator.add(cold, 1.0, "main", now);
+        writer.writeEnergyConsumptionPerMethodFiltered(accumulator.snapshot(true));
+        assertThat(energy("com.msg.Prometheus.warm")).isNull();
+        assertThat(energy("com.msg.Prometheus.hot")).isEqualTo(5.0);
+        assertThat(energy("com.msg.Prometheus.cold")).isNotNull();
+    }
+
+    @Test
+    void cpuTimesOfThreadsReadFromProcAreWrittenTest() throws IOException {
+        PrometheusWriter writer = new PrometheusWriter(prometheusCfg());
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        ThreadRegistry.RegisteredThread fromProc = threadRegistry.register(201, "proc-thread");
+        fromProc.updateCpuTime(1_500_000_000L, 250_000_000L, 3);
+        threadRegistry.register(202, "mx-bean-thread").updateCpuTime(1_000_000_000L);
+        writer.writeThreadCpuTimes(threadRegistry.getThreads());
+        assertThat(threadMetric("jPowerMonitor_thread_cpu_user_seconds", "proc-thread", 201)).isEqualTo(1.5);
+        assertThat(threadMetric("jPowerMonitor_thread_cpu_system_seconds", "proc-thread", 201)).isEqualTo(0.25);
+        assertThat(threadMetric("jPowerMonitor_thread_last_cpu", "proc-thread", 201)).isEqualTo(3.0);
+        assertThat(threadMetric("jPowerMonitor_thread_cpu_user_seconds", "mx-bean-thread", 202)).isNull();
+
+        // the series of a thread gone are removed
+        writer.writeThreadCpuTimes(List.of());
+        assertThat(threadMetric("jPowerMonitor_thread_cpu_user_seconds", "proc-thread", 201)).isNull();
+        assertThat(threadMetric("jPowerMonitor_thread_last_cpu", "proc-thread", 201)).isNull();
+    }
+
+    private static Double threadMetric(String metric, String thread, long threadId) {
+        String pid = String.valueOf(ProcessHandle.current().pid());
+        return CollectorRegistry.defaultRegistry.getSampleValue(metric, new String[]{"pid", "thread", "thread_id"},
+            new String[]{pid, thread, String.valueOf(threadId)});
+    }
+
+    private static Double energy(String method) {
+        String pid = String.valueOf(ProcessHandle.current().pid());
+        return CollectorRegistry.defaultRegistry.getSampleValue(ENERGY_METRIC, LABELS, new String[]{pid, "main", method});
+    }
+
+    private static PrometheusCfg prometheusCfg() throws IOException {
+        PrometheusCfg prometheusCfg = new PrometheusCfg();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            prometheusCfg.setHttpPort(socket.getLocalPort());
+        }
+        return prometheusCfg;
+    }
+}
@@ -0,0 +1,56 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ActivityCounterTest {
+
+    @Test
+    void countPerThreadAndActivityTest() {
+        ActivityCounter counter = new ActivityCounter();
+        counter.increment(1L, 10L);
+        counter.increment(1L, 10L);
+        counter.increment(1L, 11L);
+        counter.increment(2L, 10L);
+        assertThat(counter.size()).isEqualTo(3);
+        assertThat(countsOf(counter)).containsOnly(
+            Map.entry("1/10", 2),
+            Map.entry("1/11", 1),
+            Map.entry("2/10", 1));
+    }
+
+    @Test
+    void countBeyondInitialCapacityTest() {
+        ActivityCounter counter = new ActivityCounter();
+        for (int round = 0; round < 3; round++) {
+            for (long threadId = 0; threadId < 50; threadId++) {
+                for (long activity = 0; activity < 40; activity++) {
+                    counter.increment(threadId, activity);
+                }
+            }
+        }
+        assertThat(counter.size()).isEqualTo(2000);
+        assertThat(countsOf(counter).values()).hasSize(2000).containsOnly(3);
+    }
+
+    @Test
+    void clearTest() {
+        ActivityCounter counter = new ActivityCounter();
+        counter.increment(1L, 10L);
+        counter.clear();
+        assertThat(counter.size()).isZero();
+        assertThat(countsOf(counter)).isEmpty();
+        counter.add(1L, 10L, 5);
+        assertThat(countsOf(counter)).containsOnly(Map.entry("1/10", 5));
+    }
+
+    private static Map<String, Integer> countsOf(ActivityCounter counter) {
+        Map<String, Integer> counts = new HashMap<>();
+        counter.forEach((threadId, activity, count) -> counts.put(threadId + "/" + activity, count));
+        return counts;
+    }
+}
@@ -0,0 +1,79 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CallTreeTest {
+
+    @Test
+    void sharedPrefixTest() {
+        CallTree callTree = new CallTree(new FrameDictionary(), 100);
+        int first = callTree.addStack(stack("com.msg.A.leaf1", "com.msg.A.middle", "java.lang.Thread.run"));
+        int second = callTree.addStack(stack("com.msg.A.leaf2", "com.msg.A.middle", "java.lang.Thread.run"));
+        int again = callTree.addStack(stack("com.msg.A.leaf1", "com.msg.A.middle", "java.lang.Thread.run"));
+        assertThat(again).isEqualTo(first);
+        assertThat(second).isNotEqualTo(first);
+        // root, run, middle, leaf1, leaf2
+        assertThat(callTree.size()).isEqualTo(5);
+    }
+
+    @Test
+    void foldedStacksTest() {
+        CallTree callTree = new CallTree(new FrameDictionary(), 100);
+        int leaf1 = callTree.addStack(stack("com.msg.A.leaf1", "com.msg.A.middle", "java.lang.Thread.run"));
+        int leaf2 = callTree.addStack(stack("com.msg.A.leaf2", "com.msg.A.middle", "java.lang.Thread.run"));
+        int middle = callTree.addStack(stack("com.msg.A.middle", "java.lang.Thread.run"));
+        int other = callTree.addStack(stack("com.msg.B.main"));
+        callTree.addEnergy(leaf1, 1.0);
+        callTree.addEnergy(leaf1, 0.5);
+        callTree.addEnergy(leaf2, 2.0);
+        callTree.addEnergy(middle, 3.0);
+        callTree.addEnergy(other, 4.0);
+        assertThat(foldedStacks(callTree)).containsOnly(
+            Map.entry("java.lang.Thread.run;com.msg.A.middle", 3.0),
+            Map.entry("java.lang.Thread.run;com.msg.A.middle;com.msg.A.leaf1", 1.5),
+            Map.entry("java.lang.Thread.run;com.msg.A.middle;com.msg.A.leaf2", 2.0),
+            Map.entry("com.msg.B.main", 4.0));
+    }
+
+    @Test
+    void maxNodesTest() {
+        CallTree callTree = new CallTree(new FrameDictionary(), 3);
+        int middle = callTree.addStack(stack("com.msg.A.middle", "java.lang.Thread.run"));
+        int cutOff = callTree.addStack(stack("com.msg.A.leaf", "com.msg.A.middle", "java.lang.Thread.run"));
+        assertThat(cutOff).isEqualTo(middle);
+        assertThat(callTree.size()).isEqualTo(3);
+        assertThat(callTree.getTruncatedStacks()).isEqualTo(1);
+    }
+
+    @Test
+    void growBeyondInitialCapacityTest() {
+        CallTree callTree = new CallTree(new FrameDictionary(), 100_000);
+        for (int i = 0; i < 3000; i++) {
+            callTree.addEnergy(callTree.addStack(stack("com.msg.A.leaf" + i, "com.msg.A.middle" + (i % 10), "java.lang.Thread.run")), 1.0);
+        }
+        // root, run, 10 middles, 3000 leaves
+        assertThat(callTree.size()).isEqualTo(3012);
+        Map<String, Double> foldedStacks = foldedStacks(callTree);
+        assertThat(foldedStacks).hasSize(3000).containsEntry("java.lang.Thread.run;com.msg.A.middle7;com.msg.A.leaf2997", 1.0);
+    }
+
+    private static StackTraceElement[] stack(String... methods) {
+        StackTraceElement[] stack = new StackTraceElement[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            int separator = methods[i].lastIndexOf('.');
+            stack[i] = new StackTraceElement(methods[i].substring(0, separator), methods[i].substring(separator + 1), null, -1);
+        }
+        return stack;
+    }
+
+    private static Map<String, Double> foldedStacks(CallTree callTree) {
+        Map<String, Double> foldedStacks = new LinkedHashMap<>();
+        callTree.forEachStack((foldedStack, energy) -> foldedStacks.put(foldedStack.toString(), energy));
+        return foldedStacks;
+    }
+}
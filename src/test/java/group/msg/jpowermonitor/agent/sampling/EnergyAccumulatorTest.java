@@ -0,0 +1,235 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.PowerMeasurementCollector;
+import group.msg.jpowermonitor.agent.Unit;
+import group.msg.jpowermonitor.config.DefaultCfgProvider;
+import group.msg.jpowermonitor.config.dto.JavaAgentCfg;
+import group.msg.jpowermonitor.dto.DataPoint;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+@Slf4j
+class EnergyAccumulatorTest {
+    private static final int METHOD_COUNT = 10_000;
+    // methods sampled in one measurement interval
+    private static final int CHANGED_METHOD_COUNT = 100;
+    private static final int ITERATIONS = 20;
+
+    @BeforeAll
+    static void readConfig() {
+        // the data points of the energy contain the CO2 value calculated with the configured emission factor
+        new DefaultCfgProvider().readConfig("EstimationReaderTest.yaml");
+    }
+
+    @Test
+    void energyPerMethodTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int run = dictionary.intern("java.lang.Thread", "run");
+        int sleep = dictionary.intern("java.lang.Thread", "sleep");
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, new PackageFilter(List.of()));
+        LocalDateTime first = LocalDateTime.of(2024, 1, 1, 12, 0);
+        LocalDateTime second = first.plusSeconds(1);
+        accumulator.add(run, 1.5, "main", first);
+        accumulator.add(run, 2.0, "worker", second);
+        accumulator.add(sleep, 0.5, "worker", first);
+
+        Map<String, DataPoint> snapshot = accumulator.snapshot(false);
+        assertThat(snapshot).containsOnlyKeys("java.lang.Thread.run", "java.lang.Thread.sleep");
+        DataPoint dp = snapshot.get("java.lang.Thread.run");
+        assertThat(dp.getValue()).isCloseTo(3.5, within(1e-9));
+        assertThat(dp.getUnit()).isEqualTo(Unit.JOULE);
+        assertThat(dp.getThreadName()).isEqualTo("main");
+        assertThat(dp.getTime()).isEqualTo(second);
+        assertThat(dp.getCo2Value()).isNotNull();
+        assertThat(accumulator.snapshot(true)).isEmpty();
+    }
+
+    @Test
+    void releasingUnreferencedFramesBoundsTheFrameIdsTest() {
+        int maxMethods = 10;
+        FrameDictionary dictionary = new FrameDictionary();
+        PackageFilter packageFilter = new PackageFilter(List.of("com.msg"));
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, packageFilter, maxMethods);
+        LocalDateTime now = LocalDateTime.now();
+        // more methods than the initial capacity of the arrays indexed by the frame ids
+        for (int i = 0; i < 300 * maxMethods; i++) {
+            // every method is seen once only, like the long tail of a long running application
+            int frameId = dictionary.intern("com.msg.Class" + i, "method");
+            packageFilter.matches(dictionary, frameId);
+            accumulator.add(frameId, 1.0 + i % 3, "main", now);
+            if (i % maxMethods == 0) {
+                // end of an interval, as done by the collector
+                accumulator.snapshot(true);
+                BitSet referenced = new BitSet();
+                accumulator.forEachFrame(referenced::set);
+                dictionary.retainOnly(referenced, packageFilter::release);
+            }
+        }
+        assertThat(dictionary.size()).isLessThanOrEqualTo(2 * maxMethods);
+        assertThat(dictionary.getIdCount()).isLessThanOrEqualTo(2 * maxMethods + 1);
+        assertThat(packageFilter.getCacheCapacity()).isLessThanOrEqualTo(1024);
+        assertThat(accumulator.getFrameCapacity()).isLessThanOrEqualTo(1024);
+        assertThat(accumulator.snapshot(false)).hasSize(maxMethods + 1);
+        assertThat(accumulator.snapshot(false).keySet())
+            .allSatisfy(methodName -> assertThat(methodName).matches("com\\.msg\\.Class\\d+\\.method|\\(other methods\\)"));
+    }
+
+    @Test
+    void filteredViewIsUpdatedWithChangedMethodsTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int main = dictionary.intern("com.msg.App", "main");
+        int helper = dictionary.intern("com.msg.util.Helper", "help");
+        int run = dictionary.intern("java.lang.Thread", "run");
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, new PackageFilter(List.of("com.msg")));
+        LocalDateTime now = LocalDateTime.now();
+        accumulator.add(main, 1.0, "main", now);
+        accumulator.add(run, 1.0, "main", now);
+        Map<String, DataPoint> filtered = accumulator.snapshot(true);
+        assertThat(filtered).containsOnlyKeys("com.msg.App.main");
+        DataPoint unchanged = filtered.get("com.msg.App.main");
+
+        accumulator.add(helper, 2.0, "main", now);
+        accumulator.add(run, 1.0, "main", now);
+        filtered = accumulator.snapshot(true);
+        assertThat(filtered).containsOnlyKeys("com.msg.App.main", "com.msg.util.Helper.help");
+        // data points of methods not changed since the previous snapshot are not created again
+        assertThat(filtered.get("com.msg.App.main")).isSameAs(unchanged);
+        assertThat(accumulator.snapshot(false).get("java.lang.Thread.run").getValue()).isEqualTo(2.0);
+    }
+
+    @Test
+    void energyBeyondInitialCapacityTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, new PackageFilter(List.of()));
+        LocalDateTime now = LocalDateTime.now();
+        for (int round = 0; round < 2; round++) {
+            for (int m = 0; m < 3000; m++) {
+                accumulator.add(dictionary.intern("com.msg.Class", "method" + m), 1.0, "main", now);
+            }
+        }
+        Map<String, DataPoint> snapshot = accumulator.snapshot(false);
+        assertThat(snapshot).hasSize(3000);
+        assertThat(snapshot.values()).allSatisfy(dp -> assertThat(dp.getValue()).isEqualTo(2.0));
+    }
+
+    @Test
+    void boundedKeepsTopMethodsTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int[] hot = new int[3];
+        for (int m = 0; m < hot.length; m++) {
+            hot[m] = dictionary.intern("com.msg.Hot", "method" + m);
+        }
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, new PackageFilter(List.of("com.msg")), 5);
+        LocalDateTime now = LocalDateTime.now();
+        double total = 0.0;
+        for (int interval = 0; interval < 100; interval++) {
+            for (int frameId : hot) {
+                accumulator.add(frameId, 1.0, "main", now);
+                total += 1.0;
+            }
+            // a long tail of methods consuming little energy once each
+            for (int m = 0; m < 10; m++) {
+                accumulator.add(dictionary.intern("com.msg.Cold", "method" + interval + "_" + m), 0.01, "main", now);
+                total += 0.01;
+            }
+        }
+        Map<String, DataPoint> snapshot = accumulator.snapshot(false);
+        // the tracked methods and the other methods
+        assertThat(snapshot).hasSize(6).containsKeys("com.msg.Hot.method0", "com.msg.Hot.method1", "com.msg.Hot.method2",
+            EnergyAccumulator.OTHER_METHODS);
+        // Space-Saving bounds the error by the total energy divided by the number of methods tracked
+        assertThat(accumulator.getMaxErrorInJoule()).isPositive().isLessThanOrEqualTo(total / 5);
+        for (int m = 0; m < hot.length; m++) {
+            // tracked from the start, thus exact
+            assertThat(snapshot.get("com.msg.Hot.method" + m).getValue()).isCloseTo(100.0, within(1e-9));
+        }
+        double sum = snapshot.values().stream().mapToDouble(DataPoint::getValue).sum();
+        assertThat(sum).isCloseTo(total, within(1e-6));
+        assertThat(snapshot.get(EnergyAccumulator.OTHER_METHODS).getValue()).isCloseTo(accumulator.getOtherEnergyInJoule(), within(1e-9));
+        assertThat(accumulator.snapshot(true)).hasSize(6);
+    }
+
+    /**
+     * Compares time and allocated bytes of adding the energy of every method once with merging {@link DataPoint}s into a map
+     * and with an {@link EnergyAccumulator}, and of taking the filtered and unfiltered views by copying and filtering the map and
+     * with the incrementally updated views of an {@link EnergyAccumulator}, if only some methods changed.
+     */
+    @Disabled("Use this test to compare the costs of merging data points and of primitive energy accumulators on your platform")
+    @Test
+    void compareDataPointMergeAndAccumulatorTest() {
+        // the collector reads the measure method from the configuration read before all tests
+        PowerMeasurementCollector collector = new PowerMeasurementCollector(0L, null, new JavaAgentCfg());
+        FrameDictionary dictionary = new FrameDictionary();
+        int[] frameIds = new int[METHOD_COUNT];
+        for (int m = 0; m < METHOD_COUNT; m++) {
+            frameIds[m] = dictionary.intern("com.msg.Class" + (m % 100), "method" + m);
+        }
+        PackageFilter packageFilter = new PackageFilter(List.of("com.msg.Class1"));
+        Map<String, DataPoint> merged = new HashMap<>();
+        EnergyAccumulator accumulator = new EnergyAccumulator(dictionary, packageFilter);
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long[] merge = measure(() -> {
+                LocalDateTime now = LocalDateTime.now();
+                for (int frameId : frameIds) {
+                    String methodName = dictionary.getName(frameId);
+                    merged.merge(methodName, new DataPoint(methodName, 0.01, Unit.JOULE, now, "main"), collector::addDataPoint);
+                }
+            });
+            long[] accumulate = measure(() -> {
+                LocalDateTime now = LocalDateTime.now();
+                for (int frameId : frameIds) {
+                    accumulator.add(frameId, 0.01, "main", now);
+                }
+            });
+            log.info("{} methods/interval: merging data points {} µs and {} KB/interval, accumulators {} µs and {} KB/interval",
+                METHOD_COUNT, merge[0] / 1000, merge[1] / 1024, accumulate[0] / 1000, accumulate[1] / 1024);
+            long[] copy = measure(() -> {
+                for (boolean filtered : new boolean[]{false, true}) {
+                    merged.entrySet().stream()
+                        .filter(e -> filtered ? packageFilter.matches(e.getKey()) : e.getKey() != null)
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                }
+            });
+            long[] views = measure(() -> {
+                LocalDateTime now = LocalDateTime.now();
+                for (int m = 0; m < CHANGED_METHOD_COUNT; m++) {
+                    accumulator.add(frameIds[m], 0.01, "main", now);
+                }
+                accumulator.snapshot(false);
+                accumulator.snapshot(true);
+            });
+            log.info("{} methods, {} changed: copying and filtering {} µs and {} KB/export, incremental views {} µs and {} KB/export",
+                METHOD_COUNT, CHANGED_METHOD_COUNT, copy[0] / 1000, copy[1] / 1024, views[0] / 1000, views[1] / 1024);
+        }
+        assertThat(accumulator.snapshot(false)).hasSameSizeAs(merged);
+    }
+
+    /**
+     * @return average nanoseconds and allocated bytes per interval
+     */
+    private static long[] measure(Runnable interval) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            interval.run();
+        }
+        long nanos = (System.nanoTime() - start) / ITERATIONS;
+        long allocated = (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / ITERATIONS;
+        return new long[]{nanos, allocated};
+    }
+}
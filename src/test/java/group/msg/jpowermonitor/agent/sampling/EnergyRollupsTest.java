@@ -0,0 +1,70 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.config.DefaultCfgProvider;
+import group.msg.jpowermonitor.dto.DataPoint;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class EnergyRollupsTest {
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toMillis(1);
+    private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+    // an arbitrary time at the start of a full hour
+    private static final long START = 1_700_000_000_000L - 1_700_000_000_000L % ONE_HOUR;
+
+    @BeforeAll
+    static void readConfig() {
+        // the data points of the energy contain the CO2 value calculated with the configured emission factor
+        new DefaultCfgProvider().readConfig("EstimationReaderTest.yaml");
+    }
+
+    @Test
+    void topMethodsOfLastSecondsTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int run = dictionary.intern("java.lang.Thread", "run");
+        int main = dictionary.intern("com.msg.App", "main");
+        EnergyRollups rollups = new EnergyRollups(dictionary);
+        for (int second = 0; second < 10; second++) {
+            rollups.add(run, 1.0, START + second * ONE_SECOND);
+            rollups.add(main, second < 5 ? 0.5 : 3.0, START + second * ONE_SECOND + 500);
+        }
+        long now = START + 9 * ONE_SECOND + 900;
+        List<DataPoint> lastThreeSeconds = rollups.getTopMethods(3 * ONE_SECOND, now, 10, name -> true);
+        assertThat(lastThreeSeconds).extracting(DataPoint::getName).containsExactly("com.msg.App.main", "java.lang.Thread.run");
+        assertThat(lastThreeSeconds.get(0).getValue()).isCloseTo(9.0, within(1e-9));
+        assertThat(lastThreeSeconds.get(1).getValue()).isCloseTo(3.0, within(1e-9));
+
+        List<DataPoint> lastMinute = rollups.getTopMethods(ONE_MINUTE, now, 1, name -> true);
+        assertThat(lastMinute).hasSize(1);
+        assertThat(lastMinute.get(0).getName()).isEqualTo("com.msg.App.main");
+        assertThat(lastMinute.get(0).getValue()).isCloseTo(17.5, within(1e-9));
+        assertThat(rollups.getTopMethods(ONE_MINUTE, now, 10, name -> name.startsWith("java."))).extracting(DataPoint::getName)
+            .containsExactly("java.lang.Thread.run");
+    }
+
+    @Test
+    void coarserResolutionsAndExpiredWindowsTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int run = dictionary.intern("java.lang.Thread", "run");
+        EnergyRollups rollups = new EnergyRollups(dictionary);
+        // one joule every minute for three hours
+        for (long minute = 0; minute < 180; minute++) {
+            rollups.add(run, 1.0, START + minute * ONE_MINUTE);
+        }
+        long now = START + 179 * ONE_MINUTE + ONE_SECOND;
+        // the windows of one second older than a minute are replaced
+        assertThat(rollups.getTopMethods(ONE_MINUTE, now, 10, name -> true).get(0).getValue()).isEqualTo(1.0);
+        assertThat(rollups.getTopMethods(5 * ONE_MINUTE, now, 10, name -> true).get(0).getValue()).isEqualTo(5.0);
+        // the last two hours: the current hour with 60 minutes and the previous one
+        assertThat(rollups.getTopMethods(2 * ONE_HOUR, now, 10, name -> true).get(0).getValue()).isEqualTo(120.0);
+        // nothing consumed in the next hour yet, the windows of the previous hours are kept
+        assertThat(rollups.getTopMethods(ONE_HOUR, now + ONE_HOUR, 10, name -> true)).isEmpty();
+        assertThat(rollups.getTopMethods(24 * ONE_HOUR, now + ONE_HOUR, 10, name -> true).get(0).getValue()).isEqualTo(180.0);
+    }
+}
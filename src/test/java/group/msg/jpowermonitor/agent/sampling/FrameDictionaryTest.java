@@ -0,0 +1,71 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FrameDictionaryTest {
+
+    @Test
+    void internSameMethodTwiceTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int id = dictionary.intern("com.msg.MyClass", "myMethod");
+        // equal, but not the same string instances
+        int again = dictionary.intern(new String("com.msg.MyClass"), new String("myMethod"));
+        assertThat(again).isEqualTo(id);
+        assertThat(dictionary.size()).isEqualTo(1);
+    }
+
+    @Test
+    void internDistinctMethodsTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int first = dictionary.intern("com.msg.MyClass", "myMethod");
+        int second = dictionary.intern("com.msg.MyClass", "otherMethod");
+        int third = dictionary.intern("com.msg.MyClass.myMethod", "");
+        assertThat(Set.of(first, second, third)).hasSize(3);
+        assertThat(dictionary.getName(first)).isEqualTo("com.msg.MyClass.myMethod");
+        assertThat(dictionary.getName(second)).isEqualTo("com.msg.MyClass.otherMethod");
+    }
+
+    @Test
+    void internBeyondInitialCapacityTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            ids.add(dictionary.intern("com.msg.Class" + (i % 100), "method" + i));
+        }
+        assertThat(ids).hasSize(5000);
+        assertThat(dictionary.size()).isEqualTo(5000);
+        for (int i = 0; i < 5000; i++) {
+            int id = dictionary.intern("com.msg.Class" + (i % 100), "method" + i);
+            assertThat(dictionary.getName(id)).isEqualTo("com.msg.Class" + (i % 100) + ".method" + i);
+        }
+    }
+
+    @Test
+    void releasedIdsAreAssignedAgainTest() {
+        FrameDictionary dictionary = new FrameDictionary();
+        int kept = dictionary.intern("com.msg.MyClass", "kept");
+        int released = dictionary.intern("com.msg.MyClass", "released");
+        BitSet referenced = new BitSet();
+        referenced.set(kept);
+        List<Integer> releasedIds = new ArrayList<>();
+        dictionary.retainOnly(referenced, releasedIds::add);
+
+        assertThat(releasedIds).containsExactly(released);
+        assertThat(dictionary.size()).isEqualTo(1);
+        assertThat(dictionary.intern("com.msg.MyClass", "kept")).isEqualTo(kept);
+        int reused = dictionary.intern("com.msg.MyClass", "new");
+        assertThat(reused).isEqualTo(released);
+        assertThat(dictionary.getName(reused)).isEqualTo("com.msg.MyClass.new");
+        // the released method gets a new id, if it is seen again
+        assertThat(dictionary.intern("com.msg.MyClass", "released")).isNotIn(kept, reused);
+        assertThat(dictionary.getIdCount()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,64 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JfrSamplerTest {
+    private volatile boolean running = true;
+
+    @Test
+    void sampleBusyThreadAndTrackLifecycleTest() throws InterruptedException {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        JfrSampler sampler = new JfrSampler(ManagementFactory.getThreadMXBean(), 10, 0, threadRegistry);
+        Thread busyThread = new Thread(this::spin, "jfr-busy-thread");
+        List<StackTraceElement[]> samples = new ArrayList<>();
+        try {
+            busyThread.start();
+            // the recording stream delivers the events about once per second
+            for (int i = 0; i < 50 && samples.isEmpty(); i++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+                sampler.sample((threadId, threadName, stackTrace) -> {
+                    if (threadId == busyThread.getId()) {
+                        samples.add(stackTrace);
+                    }
+                });
+            }
+            assertThat(samples).isNotEmpty();
+            assertThat(samples.get(0)).anySatisfy(frame -> {
+                assertThat(frame.getClassName()).isEqualTo(JfrSamplerTest.class.getName());
+                assertThat(frame.getMethodName()).isEqualTo("spin");
+            });
+            assertThat(threadRegistry.getThread(busyThread.getId())).isNotNull();
+            assertThat(threadRegistry.getThread(busyThread.getId()).getName()).isEqualTo("jfr-busy-thread");
+
+            running = false;
+            busyThread.join();
+            for (int i = 0; i < 50 && !threadRegistry.getThread(busyThread.getId()).isTerminated(); i++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+                sampler.sample((threadId, threadName, stackTrace) -> {
+                });
+            }
+            assertThat(threadRegistry.getThread(busyThread.getId()).isTerminated()).isTrue();
+        } finally {
+            running = false;
+            sampler.close();
+        }
+        assertThat(sampler.isSamplingAllRunningThreads()).isFalse();
+        assertThat(sampler.getDroppedEvents()).isZero();
+    }
+
+    private void spin() {
+        long x = 0;
+        while (running) {
+            x += System.nanoTime() % 7;
+        }
+        assertThat(x).isNotNegative();
+    }
+}
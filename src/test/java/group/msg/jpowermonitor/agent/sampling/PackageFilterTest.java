@@ -0,0 +1,57 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PackageFilterTest {
+
+    @Test
+    void matchesQualifiedNameTest() {
+        PackageFilter filter = new PackageFilter(Set.of("com.msg", "com.msg.sub.Deep", "org.example.MyClass.run"));
+        assertThat(filter.matches("com.msg.MyClass.myMethod")).isTrue();
+        assertThat(filter.matches("com.msgother.MyClass.myMethod")).isTrue();
+        assertThat(filter.matches("org.example.MyClass.runFast")).isTrue();
+        assertThat(filter.matches("org.example.MyClass.stop")).isFalse();
+        assertThat(filter.matches("com.ms")).isFalse();
+        assertThat(filter.matches("java.lang.Thread.run")).isFalse();
+    }
+
+    @Test
+    void matchesClassAndMethodNameTest() {
+        PackageFilter filter = new PackageFilter(Set.of("com.msg", "org.example.MyClass.run"));
+        assertThat(filter.matches("com.msg.MyClass", "myMethod")).isTrue();
+        // prefix spanning class and method name
+        assertThat(filter.matches("org.example.MyClass", "runFast")).isTrue();
+        assertThat(filter.matches("org.example.MyClass", "stop")).isFalse();
+        assertThat(filter.matches("org.example.MyClassLoader", "run")).isFalse();
+        assertThat(filter.matches("org.example", "MyClass")).isFalse();
+    }
+
+    @Test
+    void emptyFilterMatchesNothingTest() {
+        PackageFilter filter = new PackageFilter(Collections.emptySet());
+        assertThat(filter.isEmpty()).isTrue();
+        assertThat(filter.matches("com.msg.MyClass.myMethod")).isFalse();
+        assertThat(filter.matches("com.msg.MyClass", "myMethod")).isFalse();
+    }
+
+    @Test
+    void matchesInternedFrameTest() {
+        PackageFilter filter = new PackageFilter(Set.of("com.msg"));
+        FrameDictionary dictionary = new FrameDictionary();
+        int matching = dictionary.intern("com.msg.MyClass", "myMethod");
+        int other = dictionary.intern("java.lang.Thread", "run");
+        for (int i = 0; i < 2; i++) { // second round answered from the cache
+            assertThat(filter.matches(dictionary, matching)).isTrue();
+            assertThat(filter.matches(dictionary, other)).isFalse();
+        }
+        for (int i = 0; i < 3000; i++) {
+            int id = dictionary.intern("com.msg.Class" + i, "method");
+            assertThat(filter.matches(dictionary, id)).isTrue();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SampleRingBufferTest {
+    private static final StackTraceElement[] STACK = {new StackTraceElement("a.B", "c", null, 1)};
+
+    @Test
+    void drainUntilSequenceTest() {
+        SampleRingBuffer buffer = new SampleRingBuffer(8);
+        buffer.offer(1, 0, STACK);
+        buffer.offer(2, 0, STACK);
+        long endOfInterval = buffer.getPublishedSequence();
+        buffer.offer(3, 0, STACK);
+
+        List<Long> drained = new ArrayList<>();
+        assertThat(buffer.drain(endOfInterval, (threadId, contextId, stackTrace) -> drained.add(threadId))).isEqualTo(2);
+        assertThat(drained).containsExactly(1L, 2L);
+        // samples not published yet are not waited for
+        assertThat(buffer.drain(Long.MAX_VALUE, (threadId, contextId, stackTrace) -> drained.add(threadId))).isEqualTo(1);
+        assertThat(drained).containsExactly(1L, 2L, 3L);
+    }
+
+    @Test
+    void fullBufferDropsSamplesTest() {
+        SampleRingBuffer buffer = new SampleRingBuffer(5);
+        assertThat(buffer.getCapacity()).isEqualTo(8);
+        for (int i = 0; i < 10; i++) {
+            buffer.offer(i, 0, STACK);
+        }
+        assertThat(buffer.getDroppedSamples()).isEqualTo(2);
+        List<Long> drained = new ArrayList<>();
+        buffer.drain(Long.MAX_VALUE, (threadId, contextId, stackTrace) -> drained.add(threadId));
+        assertThat(drained).containsExactly(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L);
+        // space is available again after draining
+        assertThat(buffer.offer(10, 0, STACK)).isTrue();
+    }
+
+    @Test
+    void producerAndConsumerThreadsTest() throws InterruptedException {
+        SampleRingBuffer buffer = new SampleRingBuffer(64);
+        int samples = 1_000_000;
+        Thread producer = new Thread(() -> {
+            for (int i = 1; i <= samples; i++) {
+                buffer.offer(i, 0, STACK);
+            }
+        });
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        AtomicLong lastThreadId = new AtomicLong();
+        producer.start();
+        while (producer.isAlive() || buffer.getPublishedSequence() > count.get()) {
+            buffer.drain(Long.MAX_VALUE, (threadId, contextId, stackTrace) -> {
+                // samples arrive in the order published, without gaps except the dropped ones
+                assertThat(threadId).isGreaterThan(lastThreadId.get());
+                assertThat(stackTrace).isSameAs(STACK);
+                lastThreadId.set(threadId);
+                sum.addAndGet(threadId);
+                count.incrementAndGet();
+            });
+        }
+        producer.join();
+        assertThat(count.get() + buffer.getDroppedSamples()).isEqualTo(samples);
+        assertThat(sum.get()).isPositive();
+    }
+}
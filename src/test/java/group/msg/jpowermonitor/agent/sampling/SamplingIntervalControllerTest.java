@@ -0,0 +1,70 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class SamplingIntervalControllerTest {
+    private static final long ONE_MS_IN_NS = 1_000_000L;
+    private static final long ONE_SECOND_IN_NS = 1_000_000_000L;
+
+    @Test
+    void fixedIntervalTest() {
+        SamplingIntervalController controller = new SamplingIntervalController(10, 1000, 0);
+        for (int i = 0; i < 100; i++) {
+            controller.recordTick(ONE_MS_IN_NS);
+        }
+        controller.endInterval(ONE_SECOND_IN_NS);
+        assertThat(controller.isAdaptive()).isFalse();
+        assertThat(controller.getIntervalInMs()).isEqualTo(10);
+        assertThat(controller.getSamplesPerSecond()).isEqualTo(100.0);
+        // 100 ticks of 1 ms CPU time within 1 s
+        assertThat(controller.getOverheadInPercent()).isCloseTo(10.0, within(1e-9));
+    }
+
+    @Test
+    void adaptToBudgetTest() {
+        SamplingIntervalController controller = new SamplingIntervalController(10, 1000, 1.0);
+        for (int i = 0; i < 100; i++) {
+            controller.recordTick(ONE_MS_IN_NS);
+        }
+        controller.endInterval(ONE_SECOND_IN_NS);
+        // 1 ms per tick at 1 % of one core allows one tick every 100 ms
+        assertThat(controller.getIntervalInMs()).isEqualTo(100);
+        assertThat(controller.getSamplesPerSecond()).isEqualTo(10.0);
+
+        // ticks got cheaper, the interval decreases smoothly, but not below the minimum
+        for (int interval = 0; interval < 10; interval++) {
+            for (int i = 0; i < 10; i++) {
+                controller.recordTick(ONE_MS_IN_NS / 100);
+            }
+            controller.endInterval(ONE_SECOND_IN_NS);
+            if (interval == 0) {
+                assertThat(controller.getIntervalInMs()).isBetween(11L, 99L);
+            }
+        }
+        assertThat(controller.getIntervalInMs()).isEqualTo(10);
+        assertThat(controller.getOverheadInPercent()).isCloseTo(0.01, within(1e-9));
+    }
+
+    @Test
+    void smallChangesIgnoredTest() {
+        SamplingIntervalController controller = new SamplingIntervalController(10, 1000, 1.0);
+        controller.recordTick(ONE_MS_IN_NS);
+        controller.endInterval(ONE_SECOND_IN_NS);
+        assertThat(controller.getIntervalInMs()).isEqualTo(100);
+        // smoothed CPU time per tick of 1.05 ms would result in 105 ms
+        controller.recordTick(ONE_MS_IN_NS + ONE_MS_IN_NS / 10);
+        controller.endInterval(ONE_SECOND_IN_NS);
+        assertThat(controller.getIntervalInMs()).isEqualTo(100);
+    }
+
+    @Test
+    void intervalLimitedByMaximumTest() {
+        SamplingIntervalController controller = new SamplingIntervalController(10, 1000, 0.1);
+        controller.recordTick(10 * ONE_MS_IN_NS);
+        controller.endInterval(ONE_SECOND_IN_NS);
+        assertThat(controller.getIntervalInMs()).isEqualTo(1000);
+    }
+}
@@ -0,0 +1,157 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import group.msg.jpowermonitor.agent.AgentThreads;
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import group.msg.jpowermonitor.util.CpuAndThreadUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThreadDumpSamplerTest {
+    private volatile boolean running;
+    private Thread busyThread;
+    private Thread sleepingThread;
+
+    @BeforeEach
+    void startThreads() throws InterruptedException {
+        running = true;
+        CountDownLatch started = new CountDownLatch(2);
+        busyThread = new Thread(() -> {
+            started.countDown();
+            spin(0);
+        }, "busy-thread");
+        sleepingThread = new Thread(() -> {
+            started.countDown();
+            try {
+                TimeUnit.MINUTES.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "sleeping-thread");
+        busyThread.start();
+        sleepingThread.start();
+        started.await();
+    }
+
+    @AfterEach
+    void stopThreads() throws InterruptedException {
+        running = false;
+        sleepingThread.interrupt();
+        busyThread.join();
+        sleepingThread.join();
+    }
+
+    @Test
+    void sampleOnlyRunningThreadsTest() {
+        Map<String, StackTraceElement[]> samples = new HashMap<>();
+        new ThreadDumpSampler(ManagementFactory.getThreadMXBean(), 0, new ThreadRegistry())
+            .sample((threadId, threadName, stackTrace) -> samples.put(threadName, stackTrace));
+        assertThat(samples).containsKey("busy-thread").doesNotContainKey("sleeping-thread");
+        assertThat(samples.get("busy-thread")).isNotEmpty();
+    }
+
+    @Test
+    void sampleRegistersAllThreadsTest() {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        new ThreadDumpSampler(ManagementFactory.getThreadMXBean(), 0, threadRegistry)
+            .sample((threadId, threadName, stackTrace) -> {
+            });
+        assertThat(threadRegistry.getThreads())
+            .extracting(ThreadRegistry.RegisteredThread::getName)
+            .contains("busy-thread", "sleeping-thread", Thread.currentThread().getName());
+    }
+
+    @Test
+    void sampleSkipsAgentThreadsTest() throws InterruptedException {
+        Map<String, StackTraceElement[]> samples = new HashMap<>();
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        // sample from a thread named like the collector thread, which is running while it takes the dump
+        Thread collectorThread = new Thread(() -> new ThreadDumpSampler(ManagementFactory.getThreadMXBean(), 0, threadRegistry)
+            .sample((threadId, threadName, stackTrace) -> samples.put(threadName, stackTrace)), AgentThreads.POWER_MEASUREMENT_COLLECTOR);
+        collectorThread.start();
+        collectorThread.join();
+        assertThat(samples).containsKey("busy-thread").doesNotContainKey(AgentThreads.POWER_MEASUREMENT_COLLECTOR);
+        assertThat(threadRegistry.getThreads())
+            .filteredOn(ThreadRegistry.RegisteredThread::isAgentThread)
+            .extracting(ThreadRegistry.RegisteredThread::getName)
+            .contains(AgentThreads.POWER_MEASUREMENT_COLLECTOR)
+            .doesNotContain("busy-thread", "sleeping-thread");
+    }
+
+    @Test
+    void sampleRespectsMaxStackDepthTest() {
+        Map<Long, StackTraceElement[]> samples = new HashMap<>();
+        new ThreadDumpSampler(ManagementFactory.getThreadMXBean(), 2, new ThreadRegistry())
+            .sample((threadId, threadName, stackTrace) -> samples.put(threadId, stackTrace));
+        assertThat(samples).containsKey(busyThread.getId());
+        assertThat(samples.values()).allSatisfy(stackTrace -> assertThat(stackTrace).hasSizeLessThanOrEqualTo(2));
+    }
+
+    @Test
+    void terminatedThreadKeepsAllocatedBytesSampledTest() throws InterruptedException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(CpuAndThreadUtils.enableThreadAllocatedMemory(threadMXBean), "allocated bytes not supported");
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        ThreadDumpSampler sampler = new ThreadDumpSampler(threadMXBean, 0, threadRegistry, true);
+        CountDownLatch allocating = new CountDownLatch(1);
+        AtomicBoolean sampled = new AtomicBoolean();
+        Thread shortLived = new Thread(() -> {
+            long sum = 0;
+            while (!sampled.get()) {
+                sum += new byte[1024].length;
+                allocating.countDown();
+            }
+            assertThat(sum).isPositive();
+        }, "short-lived");
+        shortLived.start();
+        allocating.await();
+        // sample while it is running, until it has been seen running
+        Map<Long, StackTraceElement[]> samples = new HashMap<>();
+        while (!samples.containsKey(shortLived.getId())) {
+            sampler.sample((threadId, threadName, stackTrace) -> samples.put(threadId, stackTrace));
+        }
+        sampled.set(true);
+        shortLived.join();
+        threadRegistry.markTerminated(shortLived.getId());
+
+        long totalAllocatedBytes = CpuAndThreadUtils.getTotalApplicationAllocatedBytesAndCalculateAllocatedBytesPerApplicationThread(threadMXBean, threadRegistry);
+        assertThat(threadRegistry.getThread(shortLived.getId()).getAllocatedBytesInInterval()).isPositive();
+        assertThat(totalAllocatedBytes).isGreaterThanOrEqualTo(threadRegistry.getThread(shortLived.getId()).getAllocatedBytesInInterval());
+    }
+
+    @Test
+    void carrierOfVirtualThreadIsDetectedTest() {
+        // stack of a carrier thread running a virtual thread, as dumped on Java 21
+        StackTraceElement[] carrier = {
+            new StackTraceElement("jdk.internal.vm.Continuation", "run", "Continuation.java", 248),
+            new StackTraceElement("java.lang.VirtualThread", "runContinuation", "VirtualThread.java", 221),
+            new StackTraceElement("java.util.concurrent.ForkJoinWorkerThread", "run", "ForkJoinWorkerThread.java", 188)};
+        assertThat(ThreadDumpSampler.isCarrierOfVirtualThread(carrier)).isTrue();
+        assertThat(ThreadDumpSampler.isCarrierOfVirtualThread(new StackTraceElement[]{carrier[2]})).isFalse();
+        assertThat(ThreadDumpSampler.isCarrierOfVirtualThread(new StackTraceElement[0])).isFalse();
+    }
+
+    private void spin(int depth) {
+        // recurse a little in order to have a stack deeper than the max stack depth tested
+        if (depth < 5) {
+            spin(depth + 1);
+            return;
+        }
+        long counter = 0;
+        while (running) {
+            counter++;
+        }
+        assertThat(counter).isPositive();
+    }
+}
@@ -0,0 +1,47 @@
+package group.msg.jpowermonitor.agent.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TickSchedulerTest {
+    private static final long ONE_MS_IN_NS = 1_000_000L;
+
+    @Test
+    void ticksAtDeadlinesTest() throws InterruptedException {
+        long start = System.nanoTime();
+        TickScheduler scheduler = new TickScheduler(start, 20 * ONE_MS_IN_NS, 100 * ONE_MS_IN_NS);
+        while (scheduler.awaitNextTick()) {
+            // sampling takes some time, which must not delay the following ticks
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertThat(scheduler.getTicks() + scheduler.getMissedTicks()).isEqualTo(5);
+        // the last tick is due after 80 ms and takes 5 ms, with fixed sleeps of 20 ms it would have taken 125 ms
+        assertThat(elapsed).isGreaterThanOrEqualTo(85 * ONE_MS_IN_NS).isLessThan(120 * ONE_MS_IN_NS);
+    }
+
+    @Test
+    void slowTickIsCountedAsMissedTest() throws InterruptedException {
+        TickScheduler scheduler = new TickScheduler(System.nanoTime(), 10 * ONE_MS_IN_NS, 100 * ONE_MS_IN_NS);
+        while (scheduler.awaitNextTick()) {
+            if (scheduler.getTicks() == 3) {
+                TimeUnit.MILLISECONDS.sleep(35);
+            }
+        }
+        assertThat(scheduler.getMissedTicks()).isBetween(2, 4);
+        assertThat(scheduler.getTicks() + scheduler.getMissedTicks()).isEqualTo(10);
+    }
+
+    @Test
+    void missedTicksAreLimitedToWindowTest() throws InterruptedException {
+        TickScheduler scheduler = new TickScheduler(System.nanoTime(), 10 * ONE_MS_IN_NS, 50 * ONE_MS_IN_NS);
+        assertThat(scheduler.awaitNextTick()).isTrue();
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertThat(scheduler.awaitNextTick()).isFalse();
+        assertThat(scheduler.getTicks()).isEqualTo(1);
+        assertThat(scheduler.getMissedTicks()).isEqualTo(4);
+    }
+}
@@ -1,5 +1,6 @@
 package group.msg.jpowermonitor.config;
 
+import group.msg.jpowermonitor.config.dto.CallTreeCfg;
 import group.msg.jpowermonitor.config.dto.CsvColumnCfg;
 import group.msg.jpowermonitor.config.dto.CsvMeasurementCfg;
 import group.msg.jpowermonitor.config.dto.CsvRecordingCfg;
@@ -71,11 +72,15 @@ class DefaultCfgProviderTest {
         prometheusCfg.setHttpPort(1234); // Default
         prometheusCfg.setWriteEnergyIntervalInS(30L); // Default
         monitoringCfg.setPrometheus(prometheusCfg);
-        JavaAgentCfg javaAgentCfg = new JavaAgentCfg(Set.of("com.something", "com.anything"),
-            2,
-            3,
-            4,
-            monitoringCfg);
+        JavaAgentCfg javaAgentCfg = new JavaAgentCfg();
+        javaAgentCfg.setPackageFilter(Set.of("com.something", "com.anything"));
+        javaAgentCfg.setMeasurementIntervalInMs(2);
+        javaAgentCfg.setGatherStatisticsIntervalInMs(3);
+        javaAgentCfg.setWriteEnergyMeasurementsToCsvIntervalInS(4);
+        CallTreeCfg callTreeCfg = new CallTreeCfg();
+        callTreeCfg.setMaxNodes(100_000); // Default
+        javaAgentCfg.setCallTree(callTreeCfg);
+        javaAgentCfg.setMonitoring(monitoringCfg);
         expected.setJavaAgent(javaAgentCfg);
 
         assertThat(cfg).usingRecursiveComparison().isEqualTo(expected);
@@ -6,6 +6,8 @@ import group.msg.jpowermonitor.config.dto.JPowerMonitorCfg;
 import group.msg.jpowermonitor.config.dto.LibreHardwareMonitorCfg;
 import group.msg.jpowermonitor.config.dto.MeasurementCfg;
 import group.msg.jpowermonitor.config.dto.PathElementCfg;
+import group.msg.jpowermonitor.config.dto.SamplingMethodKey;
+import group.msg.jpowermonitor.config.dto.ThreadGroupCfg;
 import org.junit.jupiter.api.Test;
 
 import java.util.List;
@@ -85,6 +87,12 @@ public class JPowerMonitorCfgTest {
         assertThat(config.getJavaAgent().getPackageFilter().isEmpty()).isTrue();
         assertThat(config.getJavaAgent().getMeasurementIntervalInMs()).isEqualTo(0L);
         assertThat(config.getJavaAgent().getGatherStatisticsIntervalInMs()).isEqualTo(0L);
+        assertThat(config.getJavaAgent().getMaxStackDepth()).isZero();
+        assertThat(config.getJavaAgent().getMaxSamplingOverheadInPercent()).isZero();
+        assertThat(config.getJavaAgent().getSamplingMethodKey()).isEqualTo(SamplingMethodKey.THREAD_DUMP);
+        assertThat(config.getJavaAgent().getCallTree().isEnabled()).isFalse();
+        assertThat(config.getJavaAgent().getCallTree().getMaxNodes()).isEqualTo(100_000);
+        assertThat(config.getJavaAgent().getThreadGroups()).isEmpty();
         assertThat(config.getJavaAgent().getWriteEnergyMeasurementsToCsvIntervalInS()).isEqualTo(0L);
     }
 
@@ -117,4 +125,12 @@ public class JPowerMonitorCfgTest {
             .getWriteEnergyMeasurementsToCsvIntervalInS();
         assertThat(writeEnergyMeasurementsToCsvIntervalInS).isEqualTo(20L);
     }
+
+    @Test
+    public void testThreadGroups() {
+        JPowerMonitorCfg config = new CfgProviderForTests().readConfig(getClass());
+        assertThat(config.getJavaAgent().getThreadGroups()).containsExactly(
+            new ThreadGroupCfg("pool-(\\d+)-thread-\\d+", "pool-$1"),
+            new ThreadGroupCfg("http-nio-.*", "http"));
+    }
 }
@@ -0,0 +1,224 @@
+package group.msg.jpowermonitor.util;
+
+import group.msg.jpowermonitor.agent.ThreadRegistry;
+import group.msg.jpowermonitor.agent.Unit;
+import group.msg.jpowermonitor.dto.DataPoint;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class CpuAndThreadUtilsTest {
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @Test
+    void virtualThreadsEntryHasNoCpuTimeTest() {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        threadRegistry.register(Thread.currentThread().getId(), Thread.currentThread().getName());
+        threadRegistry.registerVirtualThreads();
+        long totalCpuTime = CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, threadRegistry);
+        assertThat(totalCpuTime).isPositive();
+        assertThat(threadRegistry.getThread(ThreadRegistry.VIRTUAL_THREADS_ID).getCpuTimeInInterval()).isZero();
+    }
+
+    @Test
+    void threadsWithSameNameAreKeptApartTest() throws InterruptedException {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread busy = new Thread(() -> burnCpu(done), "worker");
+        Thread idle = new Thread(() -> await(done), "worker");
+        busy.start();
+        idle.start();
+        threadRegistry.register(busy.getId(), busy.getName());
+        threadRegistry.register(idle.getId(), idle.getName());
+        CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, threadRegistry);
+        burnCpu(null);
+        long totalCpuTime = CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, threadRegistry);
+        CpuAndThreadUtils.calculatePowerPerApplicationThread(threadRegistry, new DataPoint("power", 10.0, Unit.WATT, LocalDateTime.now(), null), totalCpuTime);
+        done.countDown();
+        busy.join();
+        idle.join();
+
+        ThreadRegistry.RegisteredThread busyThread = threadRegistry.getThread(busy.getId());
+        ThreadRegistry.RegisteredThread idleThread = threadRegistry.getThread(idle.getId());
+        assertThat(busyThread.getCpuTimeInInterval()).isGreaterThan(idleThread.getCpuTimeInInterval());
+        assertThat(busyThread.getPower()).isGreaterThan(idleThread.getPower());
+        assertThat(busyThread.getPower() + idleThread.getPower()).isCloseTo(10.0, within(1e-9));
+    }
+
+    @Test
+    void terminatedThreadKeepsCpuTimeReadLastTest() throws InterruptedException {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        Thread shortLived = new Thread(() -> burnCpu(null), "short-lived");
+        shortLived.start();
+        ThreadRegistry.RegisteredThread thread = threadRegistry.register(shortLived.getId(), shortLived.getName());
+        // read while running, e.g. by the sampler
+        long cpuTimeWhileRunning;
+        do {
+            cpuTimeWhileRunning = threadMXBean.getThreadCpuTime(shortLived.getId());
+        } while (cpuTimeWhileRunning <= 0 && shortLived.isAlive());
+        thread.updateCpuTime(cpuTimeWhileRunning);
+        shortLived.join();
+        threadRegistry.markTerminated(shortLived.getId());
+
+        long totalCpuTime = CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, threadRegistry);
+        assertThat(totalCpuTime).isEqualTo(cpuTimeWhileRunning).isPositive();
+        threadRegistry.evictTerminatedThreads();
+        assertThat(threadRegistry.getThreads()).isEmpty();
+    }
+
+    @Test
+    void powerIsDistributedByCpuTimeAndAllocatedBytesTest() {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        ThreadRegistry.RegisteredThread computing = threadRegistry.register(1, "computing");
+        ThreadRegistry.RegisteredThread allocating = threadRegistry.register(2, "allocating");
+        computing.updateCpuTime(300);
+        computing.endCpuTimeInterval();
+        computing.updateAllocatedBytes(0);
+        computing.endAllocatedBytesInterval();
+        allocating.updateCpuTime(100);
+        allocating.endCpuTimeInterval();
+        allocating.updateAllocatedBytes(1000);
+        allocating.endAllocatedBytesInterval();
+        DataPoint power = new DataPoint("power", 10.0, Unit.WATT, LocalDateTime.now(), null);
+
+        CpuAndThreadUtils.calculatePowerPerApplicationThread(threadRegistry, power, 400, 1000, 0.0);
+        assertThat(computing.getPower()).isCloseTo(7.5, within(1e-9));
+        assertThat(allocating.getPower()).isCloseTo(2.5, within(1e-9));
+
+        CpuAndThreadUtils.calculatePowerPerApplicationThread(threadRegistry, power, 400, 1000, 40.0);
+        assertThat(computing.getPower()).isCloseTo(0.6 * 7.5, within(1e-9));
+        assertThat(allocating.getPower()).isCloseTo(0.6 * 2.5 + 4.0, within(1e-9));
+
+        // nothing allocated: the complete power is distributed by CPU time
+        CpuAndThreadUtils.calculatePowerPerApplicationThread(threadRegistry, power, 400, 0, 40.0);
+        assertThat(computing.getPower()).isCloseTo(7.5, within(1e-9));
+        assertThat(allocating.getPower()).isCloseTo(2.5, within(1e-9));
+    }
+
+    @Test
+    void allocatedBytesPerThreadTest() throws InterruptedException {
+        Assumptions.assumeTrue(CpuAndThreadUtils.enableThreadAllocatedMemory(threadMXBean), "allocated bytes not supported");
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread busy = new Thread(() -> burnCpu(done), "busy");
+        Thread allocating = new Thread(() -> allocate(done), "allocating");
+        busy.start();
+        allocating.start();
+        threadRegistry.register(busy.getId(), busy.getName());
+        threadRegistry.register(allocating.getId(), allocating.getName());
+        CpuAndThreadUtils.getTotalApplicationAllocatedBytesAndCalculateAllocatedBytesPerApplicationThread(threadMXBean, threadRegistry);
+        burnCpu(null);
+        long totalAllocatedBytes = CpuAndThreadUtils.getTotalApplicationAllocatedBytesAndCalculateAllocatedBytesPerApplicationThread(threadMXBean, threadRegistry);
+        done.countDown();
+        busy.join();
+        allocating.join();
+
+        ThreadRegistry.RegisteredThread allocatingThread = threadRegistry.getThread(allocating.getId());
+        assertThat(allocatingThread.getAllocatedBytesInInterval()).isPositive();
+        assertThat(allocatingThread.getAllocatedBytesInInterval()).isGreaterThan(threadRegistry.getThread(busy.getId()).getAllocatedBytesInInterval());
+        assertThat(totalAllocatedBytes).isGreaterThanOrEqualTo(allocatingThread.getAllocatedBytesInInterval());
+    }
+
+    @Test
+    void cpuTimeFromProcIsMappedByNativeThreadIdAndNameTest(@TempDir Path taskDir) throws IOException {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        ThreadRegistry.RegisteredThread sampledByJfr = threadRegistry.register(101, "jfr-sampled");
+        sampledByJfr.setNativeThreadId(5001);
+        ThreadRegistry.RegisteredThread longName = threadRegistry.register(102, "my-very-long-thread-name");
+        ThreadRegistry.RegisteredThread sameName1 = threadRegistry.register(103, "pool-1-thread-1");
+        ThreadRegistry.RegisteredThread sameName2 = threadRegistry.register(104, "pool-1-thread-10");
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5001, "jfr-sampled", 10, 0, 0);
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5002, "my-very-long-th", 20, 5, 1);
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5003, "pool-1-thread-1", 30, 0, 0);
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5004, "pool-1-thread-1", 40, 0, 0);
+
+        CpuAndThreadUtils.updateCpuTimesFromProc(new ProcThreadCpuReader(taskDir, 100), threadRegistry);
+
+        assertThat(sampledByJfr.getCpuTime()).isEqualTo(100_000_000L);
+        assertThat(longName.getNativeThreadId()).isEqualTo(5002);
+        assertThat(longName.getUserCpuTime()).isEqualTo(200_000_000L);
+        assertThat(longName.getSystemCpuTime()).isEqualTo(50_000_000L);
+        assertThat(longName.getCpuTime()).isEqualTo(250_000_000L);
+        assertThat(longName.getProcessor()).isEqualTo(1);
+        // truncated to the same native name: ambiguous, left to the thread mx bean
+        assertThat(sameName1.isCpuTimeFromProc()).isFalse();
+        assertThat(sameName2.isCpuTimeFromProc()).isFalse();
+        assertThat(sameName1.getNativeThreadId()).isEqualTo(-1);
+    }
+
+    @Test
+    void threadNamedLikeMappedThreadIsNotMappedTest(@TempDir Path taskDir) throws IOException {
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        ThreadRegistry.RegisteredThread first = threadRegistry.register(103, "pool-1-thread-1");
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5003, "pool-1-thread-1", 30, 0, 0);
+        CpuAndThreadUtils.updateCpuTimesFromProc(new ProcThreadCpuReader(taskDir, 100), threadRegistry);
+        assertThat(first.getNativeThreadId()).isEqualTo(5003);
+
+        // the new thread is truncated to the name of the mapped thread, its native thread is unique among the unmapped ones
+        ThreadRegistry.RegisteredThread tenth = threadRegistry.register(112, "pool-1-thread-10");
+        ProcThreadCpuReaderTest.writeStat(taskDir, 5012, "pool-1-thread-1", 40, 0, 0);
+        CpuAndThreadUtils.updateCpuTimesFromProc(new ProcThreadCpuReader(taskDir, 100), threadRegistry);
+
+        assertThat(first.getNativeThreadId()).isEqualTo(5003);
+        assertThat(first.getCpuTime()).isEqualTo(300_000_000L);
+        assertThat(tenth.isCpuTimeFromProc()).isFalse();
+        assertThat(tenth.getNativeThreadId()).isEqualTo(-1);
+    }
+
+    @Test
+    void cpuTimeFromProcOfOwnThreadTest() throws InterruptedException {
+        ProcThreadCpuReader reader = new ProcThreadCpuReader();
+        Assumptions.assumeTrue(reader.isAvailable(), "Linux only");
+        ThreadRegistry threadRegistry = new ThreadRegistry();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread busy = new Thread(() -> {
+            running.countDown();
+            burnCpu(done);
+        }, "proc-busy-thread");
+        busy.start();
+        // the native thread is named by the thread itself when it starts running
+        running.await();
+        ThreadRegistry.RegisteredThread thread = threadRegistry.register(busy.getId(), busy.getName());
+        CpuAndThreadUtils.getTotalApplicationCpuTimeAndCalculateCpuTimePerApplicationThread(threadMXBean, reader, threadRegistry);
+        done.countDown();
+        busy.join();
+        assertThat(thread.isCpuTimeFromProc()).isTrue();
+        assertThat(thread.getNativeThreadId()).isPositive();
+    }
+
+    private static void burnCpu(CountDownLatch until) {
+        long end = System.nanoTime() + 50_000_000L;
+        long x = 0;
+        while (System.nanoTime() < end || (until != null && until.getCount() > 0)) {
+            x += System.nanoTime() % 7;
+        }
+        assertThat(x).isNotNegative();
+    }
+
+    private static void allocate(CountDownLatch until) {
+        long sum = 0;
+        while (until.getCount() > 0) {
+            sum += new byte[1024].length;
+        }
+        assertThat(sum).isNotNegative();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package group.msg.jpowermonitor.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProcThreadCpuReaderTest {
+    @TempDir
+    Path taskDir;
+
+    @Test
+    void readThreadCpuTimesTest() throws IOException {
+        writeStat(taskDir, 4711, "worker-1", 150, 25, 3);
+        writeStat(taskDir, 4712, "C2 CompilerThre", 7, 1, 0);
+        Files.createDirectory(taskDir.resolve("4713")); // terminated while reading, no stat file anymore
+        ProcThreadCpuReader reader = new ProcThreadCpuReader(taskDir, 100);
+        assertThat(reader.isAvailable()).isTrue();
+
+        Map<Long, ProcThreadCpuReader.NativeThreadCpuTime> cpuTimes = reader.readThreadCpuTimes();
+        assertThat(cpuTimes).containsOnlyKeys(4711L, 4712L);
+        ProcThreadCpuReader.NativeThreadCpuTime worker = cpuTimes.get(4711L);
+        assertThat(worker.getName()).isEqualTo("worker-1");
+        assertThat(worker.getUserTimeInNs()).isEqualTo(1_500_000_000L);
+        assertThat(worker.getSystemTimeInNs()).isEqualTo(250_000_000L);
+        assertThat(worker.getCpuTimeInNs()).isEqualTo(1_750_000_000L);
+        assertThat(worker.getProcessor()).isEqualTo(3);
+        assertThat(cpuTimes.get(4712L).getName()).isEqualTo("C2 CompilerThre");
+    }
+
+    @Test
+    void nameWithBlanksAndParenthesesTest() {
+        ProcThreadCpuReader reader = new ProcThreadCpuReader(taskDir, 250);
+        ProcThreadCpuReader.NativeThreadCpuTime cpuTime = reader.parse(1, stat(1, "a) (b c", 5, 10, 1));
+        assertThat(cpuTime.getName()).isEqualTo("a) (b c");
+        assertThat(cpuTime.getUserTimeInNs()).isEqualTo(20_000_000L);
+        assertThat(cpuTime.getSystemTimeInNs()).isEqualTo(40_000_000L);
+        assertThat(reader.parse(1, "1 (truncated) S 0")).isNull();
+    }
+
+    @Test
+    void notAvailableTest() {
+        ProcThreadCpuReader reader = new ProcThreadCpuReader(taskDir.resolve("missing"), 100);
+        assertThat(reader.isAvailable()).isFalse();
+        assertThat(reader.readThreadCpuTimes()).isEmpty();
+    }
+
+    static void writeStat(Path taskDir, long tid, String name, long utime, long stime, int processor) throws IOException {
+        Path task = Files.createDirectories(taskDir.resolve(String.valueOf(tid)));
+        Files.writeString(task.resolve("stat"), stat(tid, name, utime, stime, processor));
+    }
+
+    // format of man 5 proc, fields 14 (utime), 15 (stime) and 39 (processor) are set
+    private static String stat(long tid, String name, long utime, long stime, int processor) {
+        return tid + " (" + name + ") S 1 1 1 0 -1 4194368 23 0 0 0 " + utime + " " + stime
+            + " 0 0 20 0 15 0 736802 3702984704 27252 18446744073709551615 1 1 1 0 0 0 4 0 16800975 1 0 0 -1 "
+            + processor + " 0 0 0 0 0 1 1 1 1 1 1 1 0\n";
+    }
+}